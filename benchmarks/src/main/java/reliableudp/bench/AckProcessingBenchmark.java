@@ -0,0 +1,139 @@
+package reliableudp.bench;
+
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandle;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The ACK path of the Sender, Sender.dealingWithRecACKOfDATA and the walk
+ * of Sender.fixACKGap over the segments an ACK covers. Before every
+ * operation a whole window of segments is loaded into the SegmentRing and
+ * put in flight, the operation then ACKs all of it:
+ * cumulativeAcks with one ACK per ackEvery segments, as a receiver with
+ * delayed ACKs would send them, fixAckGap with the single ACK that follows
+ * a retransmission which filled the hole at the start of the window.
+ * The score is the time per window. The setup of every operation is not
+ * measured, but JMH still takes two timestamps around it, so a window of
+ * a few segments is dominated by them, compare the large windows.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AckProcessingBenchmark {
+    private static final int CONN_ID = 1;
+    private static final int INIT_SEQ_NO = -7;
+
+    private static final MethodHandle NEW_SENDER = Internals.constructor("Sender",
+            int.class, int.class, String.class, int.class, int.class, Map.class);
+    private static final MethodHandle NEW_SEGMENT_RING = Internals.constructor("SegmentRing",
+            FileChannel.class, long.class, long.class, int.class, int.class, int.class);
+    private static final MethodHandle LOAD = Internals.method("SegmentRing", "load",
+            void.class, long.class, int.class);
+    private static final MethodHandle CREATE_CONGESTION_CONTROLLER = Internals.staticMethod("CongestionController",
+            "create", Internals.type("CongestionController"), String.class, int.class, long.class);
+    private static final MethodHandle DEALING_WITH_ACK = Internals.method("Sender", "dealingWithRecACKOfDATA",
+            void.class, int.class, int.class, int.class);
+    private static final MethodHandle FIX_ACK_GAP = Internals.method("Sender", "fixACKGap",
+            long.class, long.class, int.class);
+    private static final MethodHandle CLOSE_SENDER = Internals.method("Sender", "close", void.class);
+
+    @Param({"1024", "8192"})
+    public int segmentSize;
+
+    @Param({"65536", "1048576", "8388608"})
+    public int windowSize;
+
+    // segments covered by one ACK of cumulativeAcks
+    @Param({"1", "2"})
+    public int ackEvery;
+
+    private Path file;
+    private Object sender;
+    private Object segmentRing;
+    private int numOfSegInWindow;
+    private int[] acks;
+
+    @Setup
+    public void setUp() throws Throwable {
+        numOfSegInWindow = Math.max(1, windowSize / segmentSize);
+        // the Sender opens its file relative to the working directory
+        file = Files.createTempFile(Path.of(System.getProperty("user.dir")), "ack-benchmark", ".bin");
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file.toFile(), "rw")) {
+            randomAccessFile.setLength((long) numOfSegInWindow * segmentSize);
+        }
+        Map<String, String> options = new HashMap<>();
+        options.put("mss", Integer.toString(segmentSize));
+        options.put("connId", Integer.toString(CONN_ID));
+        options.put("log", "off");
+        options.put("stats", "0");
+        // port 0, the Sender binds an ephemeral port and never sends
+        sender = NEW_SENDER.invoke(0, 60000, file.getFileName().toString(), windowSize, 100, options);
+
+        // the state sendSYNAndCheckACK leaves behind
+        segmentRing = NEW_SEGMENT_RING.invoke(Internals.get(sender, "fileChannel"), 0L,
+                (long) numOfSegInWindow * segmentSize, segmentSize, numOfSegInWindow, CONN_ID);
+        Internals.set(sender, "segmentRing", segmentRing);
+        Internals.set(sender, "congestionController", CREATE_CONGESTION_CONTROLLER.invoke("newreno",
+                segmentSize, (long) numOfSegInWindow * segmentSize));
+        Internals.set(sender, "connectionIsEstablished", true);
+
+        acks = new int[(numOfSegInWindow + ackEvery - 1) / ackEvery];
+        for (int i = 0; i < acks.length; i++) {
+            int lastSegment = Math.min((i + 1) * ackEvery, numOfSegInWindow);
+            acks[i] = INIT_SEQ_NO + 1 + lastSegment * segmentSize;
+        }
+    }
+
+    // a window in flight, nothing ACKed yet
+    @Setup(Level.Invocation)
+    public void sendWindow() throws Throwable {
+        for (int i = 0; i < numOfSegInWindow; i++) {
+            LOAD.invoke(segmentRing, (long) i, INIT_SEQ_NO + 1 + i * segmentSize);
+        }
+        Internals.set(sender, "next", (long) numOfSegInWindow);
+        Internals.set(sender, "recACKNext", 0L);
+        Internals.set(sender, "base", 0L);
+        Internals.set(sender, "dupACKCount", 0);
+        Internals.set(sender, "highestSACKedIndex", -1L);
+    }
+
+    @Benchmark
+    public void cumulativeAcks() throws Throwable {
+        for (int ack : acks) {
+            DEALING_WITH_ACK.invokeExact(sender, ack, 0, 0);
+        }
+    }
+
+    @Benchmark
+    public long fixAckGap() throws Throwable {
+        return (long) FIX_ACK_GAP.invokeExact(sender, 0L, acks[acks.length - 1]);
+    }
+
+    @TearDown
+    public void tearDown() throws Throwable {
+        CLOSE_SENDER.invoke(sender);
+        Files.deleteIfExists(file);
+    }
+}
@@ -0,0 +1,118 @@
+package reliableudp.bench;
+
+import java.lang.invoke.MethodHandle;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The STP header codec, paid for by every datagram on both sides:
+ * writing a header in place into a slot (SegmentRing.load), decoding the
+ * fields of a received one (the event loops), building a control segment
+ * with Utils.createSTPSegment, copying a payload out with Utils.getData,
+ * and the SACK blocks of an ACK.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+    private static final int HEADER_LENGTH = Internals.staticInt("Utils", "HEADER_LENGTH");
+    private static final int MAX_SACK_BLOCKS = Internals.staticInt("Utils", "MAX_SACK_BLOCKS");
+
+    private static final MethodHandle CREATE_SEGMENT = Internals.staticMethod("Utils", "createSTPSegment",
+            byte[].class, short.class, int.class, int.class, int.class, byte[].class);
+    private static final MethodHandle GET_DATA = Internals.staticMethod("Utils", "getData",
+            byte[].class, ByteBuffer.class, int.class);
+    private static final MethodHandle PUT_SACK_BLOCKS = Internals.staticMethod("Utils", "putSackBlocks",
+            void.class, ByteBuffer.class, int[].class, int.class);
+    private static final MethodHandle GET_SACK_BLOCKS = Internals.staticMethod("Utils", "getSackBlocks",
+            int.class, ByteBuffer.class, int.class, int[].class);
+    private static final MethodHandle NEW_HEADER = Internals.constructor("STPHeader");
+    private static final MethodHandle WRAP = Internals.method("STPHeader", "wrap",
+            Internals.type("STPHeader"), ByteBuffer.class);
+    private static final MethodHandle WRITE = Internals.method("STPHeader", "write",
+            void.class, short.class, int.class, int.class, int.class, int.class);
+    private static final MethodHandle GET_TYPE = Internals.method("STPHeader", "getType", short.class);
+    private static final MethodHandle GET_SEQ_NO = Internals.method("STPHeader", "getSeqNo", int.class);
+    private static final MethodHandle GET_ACK_NO = Internals.method("STPHeader", "getAckNo", int.class);
+    private static final MethodHandle GET_PAYLOAD_LENGTH = Internals.method("STPHeader", "getPayloadLength", int.class);
+    private static final MethodHandle IS_COMPLETE = Internals.method("STPHeader", "isComplete", boolean.class, int.class);
+
+    @Param({"1024", "8192", "65491"})
+    public int segmentSize;
+
+    private byte[] payload;
+    // a DATA segment as the receiver finds it in its receive buffer
+    private ByteBuffer datagram;
+    private Object header;
+    private ByteBuffer ack;
+    private final int[] sackBlocks = new int[2 * MAX_SACK_BLOCKS];
+    private int seqNo = -6;
+
+    @Setup
+    public void setUp() throws Throwable {
+        payload = new byte[segmentSize];
+        new Random(42).nextBytes(payload);
+        datagram = ByteBuffer.allocateDirect(HEADER_LENGTH + segmentSize);
+        datagram.put((byte[]) CREATE_SEGMENT.invokeExact((short) 0, 1, seqNo, 0, payload)).flip();
+        header = (Object) WRAP.invokeExact((Object) NEW_HEADER.invokeExact(), datagram);
+
+        ack = ByteBuffer.allocateDirect(HEADER_LENGTH + 8 * MAX_SACK_BLOCKS);
+        for (int i = 0; i < sackBlocks.length; i++) {
+            sackBlocks[i] = seqNo + (i + 1) * segmentSize;
+        }
+    }
+
+    // a control segment, e.g. SYN or FIN, allocates the array
+    @Benchmark
+    public byte[] createSegment() throws Throwable {
+        return (byte[]) CREATE_SEGMENT.invokeExact((short) 0, 1, seqNo, 0, payload);
+    }
+
+    // what SegmentRing.load does for every DATA segment
+    @Benchmark
+    public void writeHeaderInPlace() throws Throwable {
+        seqNo += segmentSize;
+        WRITE.invokeExact(header, (short) 0, 1, seqNo, 0, segmentSize);
+    }
+
+    // what the event loop of the receiver reads before it hands the payload to the session
+    @Benchmark
+    public void decodeHeader(Blackhole blackhole) throws Throwable {
+        blackhole.consume((boolean) IS_COMPLETE.invokeExact(header, HEADER_LENGTH + segmentSize));
+        blackhole.consume((short) GET_TYPE.invokeExact(header));
+        blackhole.consume((int) GET_SEQ_NO.invokeExact(header));
+        blackhole.consume((int) GET_ACK_NO.invokeExact(header));
+        blackhole.consume((int) GET_PAYLOAD_LENGTH.invokeExact(header));
+    }
+
+    // the copy the options of a SYN go through, the data path reads the payload in place
+    @Benchmark
+    public byte[] getData() throws Throwable {
+        return (byte[]) GET_DATA.invokeExact(datagram, HEADER_LENGTH + segmentSize);
+    }
+
+    // an ACK with every SACK block, written by the receiver and read back by the sender
+    @Benchmark
+    public int sackBlocks() throws Throwable {
+        ack.clear().position(HEADER_LENGTH);
+        PUT_SACK_BLOCKS.invokeExact(ack, sackBlocks, MAX_SACK_BLOCKS);
+        return (int) GET_SACK_BLOCKS.invokeExact(ack, ack.position(), sackBlocks);
+    }
+}
@@ -0,0 +1,121 @@
+package reliableudp.bench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+
+/**
+ * The sender and the receiver live in the default package, which a named
+ * package is not able to import, and JMH does not accept benchmarks in the
+ * default package. So the benchmarks reach them through method handles
+ * looked up here. A handle kept in a static final field and called with
+ * invokeExact is inlined by the JIT like a direct call, so it adds nothing
+ * to what is measured. Every handle is erased to Object for the classes of
+ * the default package, the benchmarks keep their instances as Object.
+ */
+final class Internals {
+    private Internals() {
+    }
+
+    static Class<?> type(String className) {
+        try {
+            return Class.forName(className);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException(className + " is not on the class path", e);
+        }
+    }
+
+    private static MethodHandles.Lookup lookupIn(Class<?> cls) throws IllegalAccessException {
+        return MethodHandles.privateLookupIn(cls, MethodHandles.lookup());
+    }
+
+    // a constructor, private or not, returning Object
+    static MethodHandle constructor(String className, Class<?>... parameterTypes) {
+        try {
+            Class<?> cls = type(className);
+            MethodHandle handle = lookupIn(cls).findConstructor(cls, MethodType.methodType(void.class, parameterTypes));
+            return handle.asType(handle.type().changeReturnType(Object.class));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("no constructor of " + className, e);
+        }
+    }
+
+    // an instance method, private or not, whose receiver is taken as Object
+    static MethodHandle method(String className, String name, Class<?> returnType, Class<?>... parameterTypes) {
+        try {
+            Class<?> cls = type(className);
+            MethodHandle handle = lookupIn(cls).findVirtual(cls, name, MethodType.methodType(returnType, parameterTypes));
+            return erase(handle);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("no method " + className + "." + name, e);
+        }
+    }
+
+    static MethodHandle staticMethod(String className, String name, Class<?> returnType, Class<?>... parameterTypes) {
+        try {
+            Class<?> cls = type(className);
+            return erase(lookupIn(cls).findStatic(cls, name, MethodType.methodType(returnType, parameterTypes)));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("no method " + className + "." + name, e);
+        }
+    }
+
+    // every parameter and return type of the default package becomes Object
+    private static MethodHandle erase(MethodHandle handle) {
+        MethodType type = handle.type();
+        for (int i = 0; i < type.parameterCount(); i++) {
+            if (isInDefaultPackage(type.parameterType(i))) {
+                type = type.changeParameterType(i, Object.class);
+            }
+        }
+        if (isInDefaultPackage(type.returnType())) {
+            type = type.changeReturnType(Object.class);
+        }
+        return handle.asType(type);
+    }
+
+    private static boolean isInDefaultPackage(Class<?> cls) {
+        return !cls.isPrimitive() && !cls.isArray() && cls.getPackageName().isEmpty();
+    }
+
+    // set a private field, only used to bring an object into the state a benchmark starts from
+    static void set(Object target, String name, Object value) {
+        try {
+            Field field = target.getClass().getDeclaredField(name);
+            field.setAccessible(true);
+            field.set(target, value);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("no field " + target.getClass().getName() + "." + name, e);
+        }
+    }
+
+    static Object get(Object target, String name) {
+        try {
+            Field field = target.getClass().getDeclaredField(name);
+            field.setAccessible(true);
+            return field.get(target);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("no field " + target.getClass().getName() + "." + name, e);
+        }
+    }
+
+    static int staticInt(String className, String name) {
+        try {
+            Field field = type(className).getDeclaredField(name);
+            field.setAccessible(true);
+            return field.getInt(null);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("no field " + className + "." + name, e);
+        }
+    }
+
+    static Object enumConstant(String className, String name) {
+        for (Object constant : type(className).getEnumConstants()) {
+            if (((Enum<?>) constant).name().equals(name)) {
+                return constant;
+            }
+        }
+        throw new IllegalStateException("no constant " + className + "." + name);
+    }
+}
@@ -0,0 +1,139 @@
+package reliableudp.bench;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.lang.invoke.MethodHandle;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The receive path of one DATA segment through ReceiverSession: the
+ * reorder buffer (indexOf, put, the in-order scan of countInOrder and
+ * releaseHead, which replaced updateLatestInOrderSeqNo), the file writes
+ * of writeDataIntoFile, and the ACK with its SACK blocks.
+ * The segments arrive in blocks of reorderDepth + 1, the first segment of
+ * a block comes last, so every block holds reorderDepth segments out of
+ * order until its hole is filled. The file is /dev/null, so the writes
+ * cost a system call but the disk is not measured. With ackDelay the
+ * in-order segments are ACKed in pairs, the other one returns no reply.
+ * The score is the time per segment.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReceivePathBenchmark {
+    private static final int SEGMENTS_PER_OP = 256;
+    private static final int HEADER_LENGTH = Internals.staticInt("Utils", "HEADER_LENGTH");
+    private static final int MAX_DATAGRAM_SIZE = Internals.staticInt("Utils", "MAX_DATAGRAM_SIZE");
+    private static final short DATA = 0;
+    private static final short SYN = 2;
+
+    private static final MethodHandle NEW_EVENT_LOG = Internals.constructor("EventLog",
+            File.class, Internals.type("EventLog$Level"), int.class, PrintStream.class);
+    private static final MethodHandle CLOSE_EVENT_LOG = Internals.method("EventLog", "close", void.class);
+    private static final MethodHandle FSYNC_POLICY_OF = Internals.staticMethod("ReceiveFileWriter$FsyncPolicy",
+            "valueOf", Internals.type("ReceiveFileWriter$FsyncPolicy"), String.class);
+    private static final MethodHandle NEW_SESSION = Internals.constructor("ReceiverSession",
+            int.class, InetSocketAddress.class, File.class, Internals.type("Stripe"), int.class,
+            Internals.type("ReceiveFileWriter$FsyncPolicy"), int.class, int.class, int.class, int.class,
+            int.class, int.class, Internals.type("EventLog"));
+    private static final MethodHandle RECEIVE = Internals.method("ReceiverSession", "recDataAndCreateReplySegment",
+            boolean.class, short.class, int.class, int.class, ByteBuffer.class, ByteBuffer.class);
+    private static final MethodHandle CLOSE_SESSION = Internals.method("ReceiverSession", "close", void.class);
+    private static final MethodHandle NEW_OPTIONS = Internals.constructor("STPOptions", int.class, int.class);
+    private static final MethodHandle SET_SACK_PERMITTED = Internals.method("STPOptions", "setSackPermitted",
+            void.class, boolean.class);
+    private static final MethodHandle SET_SEND_WINDOW = Internals.method("STPOptions", "setSendWindow",
+            void.class, int.class);
+    private static final MethodHandle ENCODE_OPTIONS = Internals.method("STPOptions", "encode", byte[].class);
+
+    @Param({"1024", "8192"})
+    public int segmentSize;
+
+    @Param({"65536", "1048576"})
+    public int windowSize;
+
+    // segments held out of order at most, capped below the window
+    @Param({"0", "1", "8", "64"})
+    public int reorderDepth;
+
+    // 0 ACKs every segment, otherwise every second full in-order segment
+    @Param({"0", "5"})
+    public int ackDelay;
+
+    private Object eventLog;
+    private Object session;
+    private ByteBuffer payload;
+    private ByteBuffer reply;
+    // the segment offsets of one operation, in the order they arrive
+    private int[] arrivalOrder;
+    private int nextSeqNo = -6;
+
+    @Setup
+    public void setUp() throws Throwable {
+        eventLog = NEW_EVENT_LOG.invoke(new File("/dev/null"),
+                Internals.enumConstant("EventLog$Level", "OFF"), 2, null);
+        session = NEW_SESSION.invoke(1, new InetSocketAddress(InetAddress.getLoopbackAddress(), 50000),
+                new File("/dev/null"), null, 1 << 20, FSYNC_POLICY_OF.invoke("NONE"), 0, 0,
+                MAX_DATAGRAM_SIZE - HEADER_LENGTH, windowSize, ackDelay, 2, eventLog);
+        reply = ByteBuffer.allocateDirect(HEADER_LENGTH + 64);
+
+        Object options = NEW_OPTIONS.invoke(segmentSize, windowSize);
+        SET_SACK_PERMITTED.invoke(options, true);
+        SET_SEND_WINDOW.invoke(options, windowSize);
+        byte[] syn = (byte[]) ENCODE_OPTIONS.invoke(options);
+        RECEIVE.invoke(session, SYN, nextSeqNo - 1, 0, ByteBuffer.wrap(syn), reply);
+
+        payload = ByteBuffer.allocateDirect(segmentSize);
+        int capacity = Math.max(1, windowSize / segmentSize);
+        int blockSize = Math.min(reorderDepth, capacity - 1) + 1;
+        arrivalOrder = new int[SEGMENTS_PER_OP];
+        for (int blockStart = 0; blockStart < SEGMENTS_PER_OP; blockStart += blockSize) {
+            int blockEnd = Math.min(blockStart + blockSize, SEGMENTS_PER_OP);
+            for (int i = blockStart + 1; i < blockEnd; i++) {
+                arrivalOrder[i - 1] = i;
+            }
+            arrivalOrder[blockEnd - 1] = blockStart;
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SEGMENTS_PER_OP)
+    public int receiveSegments() throws Throwable {
+        int numOfReplies = 0;
+        for (int i = 0; i < SEGMENTS_PER_OP; i++) {
+            payload.clear();
+            if ((boolean) RECEIVE.invokeExact(session, DATA, nextSeqNo + arrivalOrder[i] * segmentSize, 0,
+                    payload, reply)) {
+                numOfReplies += 1;
+            }
+        }
+        nextSeqNo += SEGMENTS_PER_OP * segmentSize;
+        return numOfReplies;
+    }
+
+    @TearDown
+    public void tearDown() throws Throwable {
+        CLOSE_SESSION.invoke(session);
+        CLOSE_EVENT_LOG.invoke(eventLog);
+    }
+}
@@ -0,0 +1,145 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.zip.Deflater;
+
+/**
+ * The compression of a transfer, agreed in the SYN exchange. The bytes
+ * to send are cut into blocks of blockSize bytes, much larger than a
+ * segment, every block is compressed with a Deflater of its own, and the
+ * connection sends the blocks one after another, each behind a header
+ *     method(1) rawLength(4) storedLength(4)
+ * followed by storedLength bytes. A block that does not shrink is stored
+ * as it is, so incompressible data costs 9 bytes per block.
+ * The blocks are read like a stream: the SegmentRing fills its segments
+ * from this channel, which compresses the next block of the file once the
+ * previous one has been read, so the data phase starts right away and
+ * only one block is held in memory. The length of the compressed stream
+ * is known once its last block has been read. See BlockInflater for the
+ * receiver.
+ */
+public class BlockDeflater implements ReadableByteChannel {
+    static final byte STORED = 0;
+    static final byte DEFLATE = 1;
+    static final int BLOCK_HEADER_LENGTH = 9;
+    // the receiver keeps one block in memory to inflate it, in buffers of BufferPool.BLOCKS
+    static final int MAX_BLOCK_SIZE = 1 << 20;
+
+    private final FileChannel source;
+    private final long offset;
+    private final long length;
+    // the bytes of the range that have been compressed
+    private long position = 0;
+    private final ByteBuffer raw;
+    // one byte more than the block, a deflated block that fills it does not shrink
+    private final ByteBuffer deflated;
+    private final ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER_LENGTH);
+    // the rest of the current block behind header, raw or deflated
+    private ByteBuffer stored;
+    private final Deflater deflater;
+    private boolean open = true;
+
+    private long numOfBlocks = 0;
+    private long numOfStoredBlocks = 0;
+    private long rawBytes = 0;
+    private long compressedBytes = 0;
+    private long compressNanos = 0;
+
+    // the length bytes at offset of source, source stays open when this channel is closed
+    public BlockDeflater(FileChannel source, long offset, long length, int blockSize, int level) {
+        if (blockSize <= 0 || blockSize > MAX_BLOCK_SIZE) {
+            throw new IllegalArgumentException("compressBlock must between 1 and " + MAX_BLOCK_SIZE);
+        }
+        this.source = source;
+        this.offset = offset;
+        this.length = length;
+        this.raw = ByteBuffer.allocateDirect(blockSize);
+        this.deflated = ByteBuffer.allocateDirect(blockSize + 1);
+        this.deflater = new Deflater(level, false);
+        header.limit(0);
+        this.stored = raw.limit(0);
+    }
+
+    // copy the compressed stream into dst, -1 once every block has been read
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+        int n = 0;
+        while (dst.hasRemaining()) {
+            if (!header.hasRemaining() && !stored.hasRemaining()) {
+                if (position >= length) {
+                    return n == 0 ? -1 : n;
+                }
+                compressNextBlock();
+            }
+            n += copy(header, dst) + copy(stored, dst);
+        }
+        return n;
+    }
+
+    private static int copy(ByteBuffer src, ByteBuffer dst) {
+        int n = Math.min(src.remaining(), dst.remaining());
+        int limit = src.limit();
+        src.limit(src.position() + n);
+        dst.put(src);
+        src.limit(limit);
+        return n;
+    }
+
+    private void compressNextBlock() throws IOException {
+        long startNanos = System.nanoTime();
+        raw.clear().limit((int) Math.min(raw.capacity(), length - position));
+        while (raw.hasRemaining()) {
+            if (source.read(raw, offset + position + raw.position()) < 0) {
+                throw new IOException("file is shorter than expected, it may "
+                        + "have been truncated during the transfer");
+            }
+        }
+        raw.flip();
+        int rawLength = raw.remaining();
+
+        deflater.reset();
+        deflater.setInput(raw);
+        deflater.finish();
+        deflated.clear();
+        while (!deflater.finished() && deflated.hasRemaining()) {
+            deflater.deflate(deflated);
+        }
+        deflated.flip();
+        boolean shrunk = deflater.finished() && deflated.remaining() < rawLength;
+        this.stored = shrunk ? deflated : raw.rewind();
+
+        header.clear();
+        header.put(shrunk ? DEFLATE : STORED).putInt(rawLength).putInt(stored.remaining()).flip();
+        compressedBytes += header.remaining() + stored.remaining();
+        numOfBlocks += 1;
+        numOfStoredBlocks += shrunk ? 0 : 1;
+        rawBytes += rawLength;
+        position += rawLength;
+        compressNanos += System.nanoTime() - startNanos;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public void close() {
+        if (open) {
+            open = false;
+            deflater.end();
+        }
+    }
+
+    public String getStats() {
+        return "compressed " + rawBytes + " bytes into " + compressedBytes + " in " + numOfBlocks
+                + " blocks, " + numOfStoredBlocks + " of them stored"
+                + String.format(", ratio %.2f", compressedBytes == 0 ? 1.0 : (double) rawBytes / compressedBytes)
+                + String.format(", %.1f ms compressing", compressNanos / 1e6);
+    }
+}
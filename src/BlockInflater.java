@@ -0,0 +1,151 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * The receiver side of BlockDeflater. The in-order bytes of a compressed
+ * connection are fed in as they leave the reorder buffer, a block is
+ * collected until it is whole and then inflated and written at the next
+ * raw offset of the file. A stored block needs no collecting, its bytes
+ * are written as they come.
+ */
+public class BlockInflater {
+    private final ReceiveFileWriter fileWriter;
+    private final int maxBlockSize;
+    private final Inflater inflater = new Inflater(false);
+    private final ByteBuffer header = ByteBuffer.allocate(BlockDeflater.BLOCK_HEADER_LENGTH);
+    // the deflated bytes of the current block, and the block inflated, both of BufferPool.BLOCKS
+    private ByteBuffer deflated;
+    private ByteBuffer raw;
+    private byte method;
+    private int rawLength;
+    // the bytes of the current block that are still to come, -1 while its header is incomplete
+    private int storedRemaining = -1;
+
+    private long numOfBlocks = 0;
+    private long rawBytes = 0;
+
+    private BlockInflater(ReceiveFileWriter fileWriter, int maxBlockSize, ByteBuffer deflated, ByteBuffer raw) {
+        this.fileWriter = fileWriter;
+        this.maxBlockSize = maxBlockSize;
+        this.deflated = deflated;
+        this.raw = raw;
+    }
+
+    /*
+     * an inflater for the block size the sender asks for in its SYN, or null
+     * if the size is beyond BlockDeflater.MAX_BLOCK_SIZE or BufferPool.BLOCKS
+     * has no room left for its buffers, the connection is not compressed then
+     */
+    public static BlockInflater create(ReceiveFileWriter fileWriter, int maxBlockSize) {
+        if (maxBlockSize <= 0 || maxBlockSize > BlockDeflater.MAX_BLOCK_SIZE) {
+            return null;
+        }
+        ByteBuffer deflated = BufferPool.BLOCKS.tryAcquire(maxBlockSize);
+        ByteBuffer raw = BufferPool.BLOCKS.tryAcquire(maxBlockSize);
+        if (deflated == null || raw == null) {
+            BufferPool.BLOCKS.release(deflated);
+            BufferPool.BLOCKS.release(raw);
+            return null;
+        }
+        return new BlockInflater(fileWriter, maxBlockSize, deflated, raw);
+    }
+
+    public long getRawBytes() {
+        return rawBytes;
+    }
+
+    // every block that has begun is whole
+    public boolean isAtBlockBoundary() {
+        return storedRemaining < 0 && header.position() == 0;
+    }
+
+    // take the remaining bytes of data, the next bytes of the compressed stream
+    public void feed(ByteBuffer data) throws IOException {
+        while (data.hasRemaining()) {
+            if (storedRemaining < 0) {
+                readHeader(data);
+                continue;
+            }
+            int n = Math.min(storedRemaining, data.remaining());
+            ByteBuffer part = data.duplicate();
+            part.limit(part.position() + n);
+            data.position(data.position() + n);
+            storedRemaining -= n;
+            if (method == BlockDeflater.STORED) {
+                fileWriter.writeInOrder(part);
+            } else {
+                deflated.put(part);
+            }
+            if (storedRemaining == 0) {
+                finishBlock();
+            }
+        }
+    }
+
+    private void readHeader(ByteBuffer data) throws IOException {
+        while (header.hasRemaining() && data.hasRemaining()) {
+            header.put(data.get());
+        }
+        if (header.hasRemaining()) {
+            return;
+        }
+        header.flip();
+        method = header.get();
+        rawLength = header.getInt();
+        int storedLength = header.getInt();
+        header.clear();
+        if ((method != BlockDeflater.STORED && method != BlockDeflater.DEFLATE)
+                || rawLength < 0 || rawLength > maxBlockSize || storedLength < 0 || storedLength > maxBlockSize
+                || (method == BlockDeflater.STORED && storedLength != rawLength)) {
+            throw new IOException("corrupt compressed block, method " + method + ", " + rawLength
+                    + " bytes stored in " + storedLength);
+        }
+        storedRemaining = storedLength;
+        deflated.clear();
+        if (storedRemaining == 0) {
+            finishBlock();
+        }
+    }
+
+    private void finishBlock() throws IOException {
+        if (method == BlockDeflater.DEFLATE) {
+            deflated.flip();
+            inflater.reset();
+            inflater.setInput(deflated);
+            raw.clear().limit(rawLength);
+            try {
+                while (!inflater.finished() && raw.hasRemaining()) {
+                    if (inflater.inflate(raw) == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        break;
+                    }
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("corrupt compressed block", e);
+            }
+            if (raw.hasRemaining()) {
+                throw new IOException("compressed block inflates to " + raw.position()
+                        + " bytes instead of " + rawLength);
+            }
+            raw.flip();
+            fileWriter.writeInOrder(raw);
+        }
+        numOfBlocks += 1;
+        rawBytes += rawLength;
+        storedRemaining = -1;
+    }
+
+    public String getStats() {
+        return "inflated " + numOfBlocks + " blocks into " + rawBytes + " bytes";
+    }
+
+    // give the buffers back, the inflater is not used afterwards
+    public void close() {
+        inflater.end();
+        BufferPool.BLOCKS.release(deflated);
+        BufferPool.BLOCKS.release(raw);
+        deflated = null;
+        raw = null;
+    }
+}
@@ -0,0 +1,96 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Direct ByteBuffers for the datagrams and payload slots of the senders and
+ * the receiver. A buffer is taken when a connection or an event loop starts
+ * and given back when it closes, so no buffer is allocated per packet, and a
+ * channel reads into and sends from a direct buffer without copying it into
+ * a temporary one first. Buffers are kept in power of two size classes, e.g.
+ * a request for 1488 bytes gets a 2048-byte buffer. The pool is shared by
+ * all threads, it is only locked when a buffer is taken or given back.
+ * A pool may also bound the bytes taken out of it, tryAcquire then gives
+ * no buffer instead of allocating more.
+ */
+public class BufferPool {
+    // large enough for one slot per segment of a few MB window in each of several connections
+    public static final BufferPool SHARED = new BufferPool(64 << 20);
+    // the blocks of compressed transfers the receiver inflates, 1 MB buffers at most, 64 MB in all
+    public static final BufferPool BLOCKS = new BufferPool(64 << 20, 20, 64 << 20);
+
+    private static final int MIN_SIZE_CLASS = 6;
+    // 128 KB, every datagram fits in the 64 KB class already
+    private static final int MAX_SIZE_CLASS = 17;
+
+    private final long maxPooledBytes;
+    private final int maxSizeClass;
+    // the bytes of the buffers taken and not given back yet, at most maxTakenBytes for tryAcquire
+    private final long maxTakenBytes;
+    private long takenBytes = 0;
+    private final ArrayDeque<ByteBuffer>[] freeBuffers;
+    private long pooledBytes = 0;
+
+    public BufferPool(long maxPooledBytes) {
+        this(maxPooledBytes, MAX_SIZE_CLASS, Long.MAX_VALUE);
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BufferPool(long maxPooledBytes, int maxSizeClass, long maxTakenBytes) {
+        this.maxPooledBytes = maxPooledBytes;
+        this.maxSizeClass = maxSizeClass;
+        this.maxTakenBytes = maxTakenBytes;
+        this.freeBuffers = new ArrayDeque[maxSizeClass + 1];
+        for (int i = MIN_SIZE_CLASS; i <= maxSizeClass; i++) {
+            freeBuffers[i] = new ArrayDeque<>();
+        }
+    }
+
+    // the smallest class whose buffers hold minCapacity bytes, e.g. 1488 -> 11
+    private static int sizeClassOf(int minCapacity) {
+        int sizeClass = 32 - Integer.numberOfLeadingZeros(Math.max(minCapacity, 1) - 1);
+        return Math.max(sizeClass, MIN_SIZE_CLASS);
+    }
+
+    // a cleared direct buffer of at least minCapacity bytes
+    public synchronized ByteBuffer acquire(int minCapacity) {
+        int sizeClass = sizeClassOf(minCapacity);
+        if (sizeClass > maxSizeClass) {
+            throw new IllegalArgumentException("buffer of " + minCapacity + " bytes is larger than the pool has");
+        }
+        takenBytes += 1 << sizeClass;
+        ByteBuffer buffer = freeBuffers[sizeClass].poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(1 << sizeClass);
+        }
+        pooledBytes -= buffer.capacity();
+        buffer.clear();
+        return buffer;
+    }
+
+    // like acquire, but null if the buffer would take the pool beyond maxTakenBytes
+    public synchronized ByteBuffer tryAcquire(int minCapacity) {
+        if (takenBytes + (1L << sizeClassOf(minCapacity)) > maxTakenBytes) {
+            return null;
+        }
+        return acquire(minCapacity);
+    }
+
+    // give a buffer of acquire back, the caller must not touch it afterwards
+    public synchronized void release(ByteBuffer buffer) {
+        if (buffer == null) {
+            return;
+        }
+        int sizeClass = sizeClassOf(buffer.capacity());
+        if (!buffer.isDirect() || buffer.capacity() != 1 << sizeClass || sizeClass > maxSizeClass) {
+            // not one of ours, the garbage collector frees it
+            return;
+        }
+        takenBytes -= buffer.capacity();
+        if (pooledBytes + buffer.capacity() > maxPooledBytes) {
+            // the pool is full, the garbage collector frees it
+            return;
+        }
+        pooledBytes += buffer.capacity();
+        freeBuffers[sizeClass].push(buffer);
+    }
+}
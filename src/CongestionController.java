@@ -0,0 +1,55 @@
+/**
+ * The congestion window of the sender. The sender never keeps more than
+ * min(getCongestionWindow(), receiver window) bytes in flight.
+ * All offsets are byte offsets in the file, so they do not wrap around
+ * like sequence numbers. The sender calls every method from its event loop.
+ */
+public interface CongestionController {
+    /*
+    ackedBytes of new data have been ACKed cumulatively,
+    everything before ackedOffset has arrived
+     */
+    void onAck(long ackedBytes, long ackedOffset, long srttNanos, long nowNanos);
+
+    /*
+    the dupACKCount-th duplicate ACK in a row, the third one starts a fast
+    retransmit. sentOffset is the end of the data sent so far, recovery
+    ends once it is ACKed
+     */
+    void onDuplicateAck(int dupACKCount, long bytesInFlight, long sentOffset, long nowNanos);
+
+    // the retransmission timer of the oldest segment expired
+    void onTimeout(long bytesInFlight, long nowNanos);
+
+    /*
+    in fast recovery, an ACK that does not end it is a partial ACK, the
+    sender resends the next hole right away (RFC 6582)
+     */
+    boolean isInRecovery();
+
+    long getCongestionWindow();
+
+    long getSlowStartThreshold();
+
+    String getName();
+
+    // the initial window of RFC 6928, min(10 * MSS, max(2 * MSS, 14600))
+    static long initialWindow(int maxSegmentSize) {
+        return Math.min(10L * maxSegmentSize, Math.max(2L * maxSegmentSize, 14600));
+    }
+
+    /*
+    name is newreno or cubic, the congestion window never grows beyond
+    maxWindowInByte, the window the receiver is able to take anyway
+     */
+    static CongestionController create(String name, int maxSegmentSize, long maxWindowInByte) {
+        switch (name) {
+            case "newreno":
+                return new NewRenoController(maxSegmentSize, maxWindowInByte);
+            case "cubic":
+                return new CubicController(maxSegmentSize, maxWindowInByte);
+            default:
+                throw new IllegalArgumentException("cc must be newreno or cubic");
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/**
+ * CUBIC (RFC 9438). After a loss the window follows
+ * W(t) = C * (t - K)^3 + Wmax, a cubic function of the time since the loss,
+ * so it grows fast while it is far from the window of the last loss,
+ * slowly around it, and probes fast again beyond it. The window is at
+ * least what Reno would reach in the same time (the Reno-friendly region).
+ * Windows are in bytes, C is defined for windows in MSS and time in seconds.
+ */
+public class CubicController implements CongestionController {
+    private static final double C = 0.4;
+    private static final double BETA = 0.7;
+    // the Reno-friendly additive increase for BETA, 3 * (1 - BETA) / (1 + BETA)
+    private static final double ALPHA = 3 * (1 - BETA) / (1 + BETA);
+
+    private final int maxSegmentSize;
+    private final long maxWindowInByte;
+    private double cwnd;
+    private long ssthresh = Long.MAX_VALUE;
+    // the window before the last reduction, in bytes
+    private double wMax = 0;
+    // the time to reach wMax again, in seconds
+    private double k = 0;
+    // System.nanoTime() of the start of the congestion avoidance epoch, 0 if none
+    private long epochStart = 0;
+    // the window Reno would have in the same epoch
+    private double wEst = 0;
+    private boolean inRecovery = false;
+    private long recoverOffset = 0;
+
+    public CubicController(int maxSegmentSize, long maxWindowInByte) {
+        this.maxSegmentSize = maxSegmentSize;
+        this.maxWindowInByte = Math.max(maxWindowInByte, maxSegmentSize);
+        this.cwnd = Math.min(CongestionController.initialWindow(maxSegmentSize), this.maxWindowInByte);
+    }
+
+    @Override
+    public void onAck(long ackedBytes, long ackedOffset, long srttNanos, long nowNanos) {
+        if (inRecovery) {
+            // the window has been reduced already, it grows again once the loss is repaired
+            if (ackedOffset >= recoverOffset) {
+                inRecovery = false;
+            }
+            return;
+        }
+
+        if (cwnd < ssthresh) {
+            // slow start, like Reno
+            cwnd = Math.min(cwnd + Math.min(ackedBytes, 2L * maxSegmentSize), maxWindowInByte);
+            return;
+        }
+
+        if (epochStart == 0) {
+            epochStart = nowNanos;
+            if (cwnd < wMax) {
+                k = Math.cbrt((wMax - cwnd) / maxSegmentSize / C);
+            } else {
+                k = 0;
+                wMax = cwnd;
+            }
+            wEst = cwnd;
+        }
+
+        // where the window should be one RTT from now
+        double t = (nowNanos - epochStart + srttNanos) / 1e9;
+        double target = wMax + C * Math.pow(t - k, 3) * maxSegmentSize;
+        // never grow more than half a window per RTT
+        target = Math.min(target, 1.5 * cwnd);
+
+        wEst += ALPHA * maxSegmentSize * ackedBytes / cwnd;
+        if (wEst > target) {
+            target = wEst;
+        }
+
+        if (target > cwnd) {
+            cwnd += (target - cwnd) * ackedBytes / cwnd;
+        } else {
+            // around wMax the window grows very slowly
+            cwnd += (double) maxSegmentSize * ackedBytes / (100 * cwnd);
+        }
+        cwnd = Math.min(cwnd, maxWindowInByte);
+    }
+
+    // shrink the window by BETA, and remember where the loss happened
+    private void reduce() {
+        epochStart = 0;
+        if (cwnd < wMax) {
+            // fast convergence, the window of the last loss was larger,
+            // so give the bandwidth up to newer flows a bit sooner
+            wMax = cwnd * (1 + BETA) / 2;
+        } else {
+            wMax = cwnd;
+        }
+        ssthresh = Math.max((long) (cwnd * BETA), 2L * maxSegmentSize);
+    }
+
+    @Override
+    public void onDuplicateAck(int dupACKCount, long bytesInFlight, long sentOffset, long nowNanos) {
+        if (inRecovery || dupACKCount != 3) {
+            return;
+        }
+        reduce();
+        cwnd = ssthresh;
+        inRecovery = true;
+        recoverOffset = sentOffset;
+    }
+
+    @Override
+    public void onTimeout(long bytesInFlight, long nowNanos) {
+        // a repeated timeout of the same segment finds the window at 1 MSS already,
+        // the loss has been remembered then
+        if (!inRecovery && cwnd > maxSegmentSize) {
+            reduce();
+        }
+        cwnd = maxSegmentSize;
+        inRecovery = false;
+    }
+
+    @Override
+    public boolean isInRecovery() {
+        return inRecovery;
+    }
+
+    @Override
+    public long getCongestionWindow() {
+        return (long) cwnd;
+    }
+
+    @Override
+    public long getSlowStartThreshold() {
+        return ssthresh;
+    }
+
+    @Override
+    public String getName() {
+        return "cubic";
+    }
+}
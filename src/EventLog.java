@@ -0,0 +1,289 @@
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The log of a sender or of the receiver, written off the packet path.
+ * A packet event is a fixed-size binary record, a type and a few numbers,
+ * put into a lock-free ring buffer by the event loop threads. A background
+ * writer takes the records out, formats them and writes them to the log
+ * file and to System.out. An event above the verbosity level returns
+ * right after one comparison, and a recorded event allocates nothing, so
+ * tracing every packet is cheap when it is disabled and does not block
+ * the sender when it is enabled. If the ring is full the event is dropped
+ * and counted, the writer reports how many were dropped.
+ */
+public class EventLog {
+    public enum Level {
+        OFF, INFO, DEBUG, TRACE;
+
+        // off, info, debug or trace
+        public static Level parse(String value) {
+            return valueOf(value.toUpperCase());
+        }
+    }
+
+    /*
+    the binary events, the template is filled in by the writer,
+    $0 is the connection ID, $1 $2 $3 are the three numbers of the event,
+    Long.MAX_VALUE is written as inf
+     */
+    public enum Event {
+        // sender
+        SEND_DATA(Level.TRACE, "sending pkt with seqNo $1, $2 bytes"),
+        RESEND_DATA(Level.DEBUG, "resending pkt with seqNo $1, rto $2 ms"),
+        SEND_PARITY(Level.TRACE, "sending parity of the group ending before seqNo $1, $2 bytes"),
+        RECEIVE_ACK(Level.TRACE, "receive ACK: $1"),
+        RECEIVE_SACK_BLOCK(Level.TRACE, "receive ACK: $1 SACK [$2, $3)"),
+        FAST_RETRANSMIT(Level.DEBUG, "detect 3 duplicate ACK $1, starting fast-retransmit"),
+        PARTIAL_ACK(Level.DEBUG, "partial ACK $1 in fast recovery, resending the next hole"),
+        WINDOW(Level.DEBUG, "window of $1 segments, cwnd $2, ssthresh $3"),
+        // receiver
+        RECEIVE_SEGMENT(Level.TRACE, "connection $0: receive pkt of type $1 with seqNo $2, $3 bytes"),
+        DROP_SEGMENT(Level.TRACE, "connection $0: drop packet with seqNo $1"),
+        DROP_UNKNOWN(Level.DEBUG, "drop pkt with seqNo $1 of unknown connection $0"),
+        SEND_ACK(Level.TRACE, "connection $0: sending ack $1"),
+        DROP_ACK(Level.TRACE, "connection $0: drop ACK $1"),
+        // a String built by the caller
+        MESSAGE(Level.INFO, "");
+
+        private final Level level;
+        private final String template;
+
+        Event(Level level, String template) {
+            this.level = level;
+            this.template = template;
+        }
+
+        public Level getLevel() {
+            return level;
+        }
+    }
+
+    private static final Event[] EVENTS = Event.values();
+    private static final long IDLE_PARK_NANOS = 1_000_000;
+
+    private final Level level;
+    private final long startNanos = System.nanoTime();
+    private final OutputStream fileStream;
+    private final PrintStream echo;
+
+    // the ring, slot i of every array belongs to the same record
+    private final int mask;
+    private final long[] timeArr;
+    private final int[] eventArr;
+    private final int[] connIdArr;
+    private final long[] arg1Arr;
+    private final long[] arg2Arr;
+    private final long[] arg3Arr;
+    private final String[] messageArr;
+    // sequence + 1 once the record with that sequence is in the slot, the writer waits for it
+    private final AtomicLongArray publishedArr;
+    // the next sequence a producer claims, and the next one the writer takes
+    private final AtomicLong claimed = new AtomicLong();
+    private final AtomicLong consumed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private long droppedReported = 0;
+
+    private final Thread writer;
+    private volatile boolean closed = false;
+    private final StringBuilder line = new StringBuilder();
+
+    /*
+    capacity is rounded up to a power of two, echo is null to write only
+    to the file. The file is not created if the level is OFF
+     */
+    public EventLog(File file, Level level, int capacity, PrintStream echo) throws IOException {
+        this.level = level;
+        this.echo = echo;
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        this.mask = size - 1;
+        this.timeArr = new long[size];
+        this.eventArr = new int[size];
+        this.connIdArr = new int[size];
+        this.arg1Arr = new long[size];
+        this.arg2Arr = new long[size];
+        this.arg3Arr = new long[size];
+        this.messageArr = new String[size];
+        this.publishedArr = new AtomicLongArray(size);
+        if (level == Level.OFF) {
+            this.fileStream = null;
+            this.writer = null;
+            return;
+        }
+        this.fileStream = new BufferedOutputStream(new FileOutputStream(file), 1 << 16);
+        this.writer = new Thread(this::drainUntilClosed, "event-log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public boolean isEnabled(Level level) {
+        return level.compareTo(this.level) <= 0 && level != Level.OFF;
+    }
+
+    public void event(Event event, int connId, long arg1, long arg2, long arg3) {
+        if (!isEnabled(event.level)) {
+            return;
+        }
+        record(event, connId, arg1, arg2, arg3, null);
+    }
+
+    public void event(Event event, int connId, long arg1) {
+        event(event, connId, arg1, 0, 0);
+    }
+
+    // a line of text, callers build the String only if isEnabled(level)
+    public void message(Level level, String message) {
+        if (!isEnabled(level)) {
+            return;
+        }
+        record(Event.MESSAGE, 0, 0, 0, 0, message);
+    }
+
+    private void record(Event event, int connId, long arg1, long arg2, long arg3, String message) {
+        long sequence;
+        do {
+            sequence = claimed.get();
+            if (sequence - consumed.get() > mask) {
+                // the writer is behind, losing a log line is better than stalling the sender
+                dropped.incrementAndGet();
+                return;
+            }
+        } while (!claimed.compareAndSet(sequence, sequence + 1));
+
+        int slot = (int) (sequence & mask);
+        timeArr[slot] = System.nanoTime();
+        eventArr[slot] = event.ordinal();
+        connIdArr[slot] = connId;
+        arg1Arr[slot] = arg1;
+        arg2Arr[slot] = arg2;
+        arg3Arr[slot] = arg3;
+        messageArr[slot] = message;
+        // the record is visible to the writer once it sees the new value
+        publishedArr.lazySet(slot, sequence + 1);
+    }
+
+    private void drainUntilClosed() {
+        try {
+            while (!closed) {
+                // a receiver in server mode is stopped by a signal, so every batch goes to the file at once
+                if (drain() > 0) {
+                    fileStream.flush();
+                } else {
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                }
+            }
+            drain();
+            fileStream.close();
+        } catch (IOException e) {
+            System.err.println("event log writer failed: " + e);
+        }
+    }
+
+    // format and write every published record, return how many there were
+    private int drain() throws IOException {
+        int count = 0;
+        long sequence = consumed.get();
+        while (true) {
+            int slot = (int) (sequence & mask);
+            if (publishedArr.get(slot) != sequence + 1) {
+                break;
+            }
+            line.setLength(0);
+            format(slot);
+            messageArr[slot] = null;
+            sequence += 1;
+            // the slot may be claimed again from now on
+            consumed.lazySet(sequence);
+            write(line);
+            count += 1;
+        }
+        long droppedNow = dropped.get();
+        if (droppedNow != droppedReported) {
+            line.setLength(0);
+            line.append(droppedNow - droppedReported).append(" events dropped, the log ring was full\n");
+            droppedReported = droppedNow;
+            write(line);
+        }
+        return count;
+    }
+
+    private void format(int slot) {
+        long micros = (timeArr[slot] - startNanos) / 1000;
+        line.append(micros / 1_000_000).append('.');
+        String fraction = Long.toString(1_000_000 + micros % 1_000_000);
+        line.append(fraction, 1, fraction.length()).append(' ');
+
+        Event event = EVENTS[eventArr[slot]];
+        if (event == Event.MESSAGE) {
+            line.append(messageArr[slot]);
+        } else {
+            String template = event.template;
+            for (int i = 0; i < template.length(); i++) {
+                char c = template.charAt(i);
+                if (c != '$' || i + 1 == template.length()) {
+                    line.append(c);
+                    continue;
+                }
+                i += 1;
+                switch (template.charAt(i)) {
+                    case '0':
+                        line.append(connIdArr[slot]);
+                        break;
+                    case '1':
+                        appendArg(arg1Arr[slot]);
+                        break;
+                    case '2':
+                        appendArg(arg2Arr[slot]);
+                        break;
+                    default:
+                        appendArg(arg3Arr[slot]);
+                        break;
+                }
+            }
+        }
+        if (line.charAt(line.length() - 1) != '\n') {
+            line.append('\n');
+        }
+    }
+
+    private void appendArg(long arg) {
+        if (arg == Long.MAX_VALUE) {
+            line.append("inf");
+        } else {
+            line.append(arg);
+        }
+    }
+
+    private void write(CharSequence text) throws IOException {
+        byte[] bytes = text.toString().getBytes(StandardCharsets.UTF_8);
+        fileStream.write(bytes);
+        if (echo != null) {
+            echo.write(bytes, 0, bytes.length);
+        }
+    }
+
+    // write what is left and stop the writer
+    public void close() {
+        if (writer == null || closed) {
+            return;
+        }
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (echo != null) {
+            echo.flush();
+        }
+    }
+}
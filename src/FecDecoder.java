@@ -0,0 +1,237 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * The receiver side of FecEncoder. A DATA segment names its group by the
+ * seqNo after the last byte of the group in ackNo, the XOR of the payloads
+ * of a group is collected as its segments arrive, so a payload is not kept
+ * once it has been written. When the parity has arrived and exactly one
+ * segment of the group is missing, the XOR of the collected payloads and
+ * the parity is the missing payload. The segments of a group are aligned
+ * to maxSegmentSize and only the last one may be short, so a segment is
+ * found by its distance from the end of the group.
+ * A group is dropped once the cumulative ACK has passed its end.
+ * The groups are found by their end in an open addressing table of int
+ * keys, and a dropped group is kept for the next one, so once the table
+ * has grown to the groups in the window a segment allocates nothing.
+ */
+public class FecDecoder {
+    private final int maxSegmentSize;
+    // linear probing over endSeqNo, the length is a power of two, at most half of it is used
+    private Group[] table = new Group[16];
+    private int numOfGroups = 0;
+    // the groups that have been dropped, ready to be opened again
+    private final ArrayDeque<Group> spareGroups = new ArrayDeque<>();
+    // the groups in the order they were opened, which is about the order of their ends
+    private final ArrayDeque<Group> openGroups = new ArrayDeque<>();
+    // the group whose onData or onParity returned true, until rebuild
+    private Group recoverable;
+
+    private static final class Group {
+        private int endSeqNo;
+        private ByteBuffer xor;
+        // bit i is set if the i-th segment counted from the end of the group has arrived
+        private long receivedMask;
+        // known once the parity has arrived
+        private boolean hasParity;
+        private int startSeqNo;
+        private boolean closed;
+
+        void open(int endSeqNo, ByteBuffer xor) {
+            this.endSeqNo = endSeqNo;
+            this.xor = xor;
+            this.receivedMask = 0;
+            this.hasParity = false;
+            this.startSeqNo = 0;
+            this.closed = false;
+        }
+    }
+
+    public FecDecoder(int maxSegmentSize) {
+        this.maxSegmentSize = maxSegmentSize;
+    }
+
+    private Group groupOf(int endSeqNo) {
+        Group group = find(endSeqNo);
+        if (group == null) {
+            // pooled buffers are not zeroed, a power of two of at least 64 bytes holds the rounded length
+            ByteBuffer xor = BufferPool.SHARED.acquire(maxSegmentSize);
+            for (int i = 0; i < maxSegmentSize; i += 8) {
+                xor.putLong(i, 0);
+            }
+            group = spareGroups.isEmpty() ? new Group() : spareGroups.poll();
+            group.open(endSeqNo, xor);
+            insert(group);
+            openGroups.add(group);
+        }
+        return group;
+    }
+
+    private int homeSlot(int endSeqNo) {
+        int hash = endSeqNo * 0x9E3779B9;
+        return (hash ^ (hash >>> 16)) & (table.length - 1);
+    }
+
+    private Group find(int endSeqNo) {
+        for (int i = homeSlot(endSeqNo); table[i] != null; i = (i + 1) & (table.length - 1)) {
+            if (table[i].endSeqNo == endSeqNo) {
+                return table[i];
+            }
+        }
+        return null;
+    }
+
+    private void insert(Group group) {
+        if (2 * (numOfGroups + 1) > table.length) {
+            Group[] old = table;
+            table = new Group[2 * old.length];
+            for (Group moved : old) {
+                if (moved != null) {
+                    place(moved);
+                }
+            }
+        }
+        place(group);
+        numOfGroups += 1;
+    }
+
+    private void place(Group group) {
+        int i = homeSlot(group.endSeqNo);
+        while (table[i] != null) {
+            i = (i + 1) & (table.length - 1);
+        }
+        table[i] = group;
+    }
+
+    // the groups after it in its run that may sit in its slot move back, so a probe never stops early
+    private void remove(Group group) {
+        int mask = table.length - 1;
+        int hole = homeSlot(group.endSeqNo);
+        while (table[hole] != group) {
+            hole = (hole + 1) & mask;
+        }
+        table[hole] = null;
+        numOfGroups -= 1;
+        for (int i = (hole + 1) & mask; table[i] != null; i = (i + 1) & mask) {
+            int home = homeSlot(table[i].endSeqNo);
+            // the distance from home to i is at least the distance from home to the hole
+            if (((i - home) & mask) >= ((i - hole) & mask)) {
+                table[hole] = table[i];
+                table[i] = null;
+                hole = i;
+            }
+        }
+    }
+
+    /*
+    a DATA segment the reorder buffer has taken, the payload is the
+    remaining bytes of payload and is only read. A segment whose ackNo is
+    its own seqNo is in no group. return true if the segment completes
+    a group that is missing one segment and has its parity, then rebuild
+    gets the missing one
+     */
+    public boolean onData(int seqNo, int groupEndSeqNo, ByteBuffer payload) {
+        int length = payload.remaining();
+        if (groupEndSeqNo == seqNo || Utils.seqLessThan(groupEndSeqNo, seqNo + length)
+                || groupEndSeqNo - seqNo > FecEncoder.MAX_GROUP_SIZE * maxSegmentSize) {
+            return false;
+        }
+        Group group = groupOf(groupEndSeqNo);
+        if (group.closed) {
+            return false;
+        }
+        Utils.xor(group.xor, 0, payload, payload.position(), length);
+        group.receivedMask |= 1L << ((groupEndSeqNo - 1 - seqNo) / maxSegmentSize);
+        return checkRecoverable(group);
+    }
+
+    /*
+    a FEC segment, seqNo and ackNo are the first seqNo of its group and the
+    seqNo after it, nextSeqNo is the cumulative ACK. return true if rebuild
+    has the missing segment of the group now
+     */
+    public boolean onParity(int startSeqNo, int endSeqNo, ByteBuffer payload, int nextSeqNo) {
+        int length = payload.remaining();
+        if (Utils.seqLessOrEqual(endSeqNo, nextSeqNo) || Utils.seqLessOrEqual(endSeqNo, startSeqNo)
+                || endSeqNo - startSeqNo > FecEncoder.MAX_GROUP_SIZE * maxSegmentSize
+                || length > maxSegmentSize) {
+            return false;
+        }
+        Group group = groupOf(endSeqNo);
+        if (group.closed || group.hasParity) {
+            return false;
+        }
+        Utils.xor(group.xor, 0, payload, payload.position(), length);
+        group.hasParity = true;
+        group.startSeqNo = startSeqNo;
+        return checkRecoverable(group);
+    }
+
+    private int numOfSegments(Group group) {
+        return (group.endSeqNo - group.startSeqNo + maxSegmentSize - 1) / maxSegmentSize;
+    }
+
+    private boolean checkRecoverable(Group group) {
+        if (group.hasParity && Long.bitCount(group.receivedMask) == numOfSegments(group) - 1) {
+            recoverable = group;
+            return true;
+        }
+        return false;
+    }
+
+    public boolean hasRecoverable() {
+        return recoverable != null;
+    }
+
+    /*
+    copy the rebuilt segment of the last group onData or onParity found
+    recoverable into target, from its position, return its seqNo. The group
+    is closed, the segments and the parity that still arrive are ignored
+     */
+    public int rebuild(ByteBuffer target) {
+        Group group = recoverable;
+        if (group == null || group.closed) {
+            throw new IllegalStateException("no group is missing exactly one segment");
+        }
+        recoverable = null;
+        int numOfSegments = numOfSegments(group);
+        int missing = Long.numberOfTrailingZeros(~group.receivedMask);
+        int seqNo = group.startSeqNo + (numOfSegments - 1 - missing) * maxSegmentSize;
+        int length = Math.min(maxSegmentSize, group.endSeqNo - seqNo);
+        ByteBuffer xor = group.xor.duplicate();
+        xor.limit(length).position(0);
+        target.put(xor);
+        closeGroup(group);
+        return seqNo;
+    }
+
+    private void closeGroup(Group group) {
+        group.closed = true;
+        BufferPool.SHARED.release(group.xor);
+    }
+
+    // drop the groups the cumulative ACK has passed, a group behind an open one waits for it
+    public void release(int nextSeqNo) {
+        while (!openGroups.isEmpty() && Utils.seqLessOrEqual(openGroups.peek().endSeqNo, nextSeqNo)) {
+            Group group = openGroups.poll();
+            remove(group);
+            if (!group.closed) {
+                closeGroup(group);
+            }
+            group.xor = null;
+            spareGroups.add(group);
+        }
+    }
+
+    public void close() {
+        for (Group group : openGroups) {
+            if (!group.closed) {
+                closeGroup(group);
+            }
+        }
+        openGroups.clear();
+        Arrays.fill(table, null);
+        numOfGroups = 0;
+    }
+}
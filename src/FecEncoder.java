@@ -0,0 +1,190 @@
+import java.nio.ByteBuffer;
+
+/**
+ * The forward error correction of the sender. The new DATA segments are
+ * cut into groups of consecutive segments, every segment of a group
+ * carries the seqNo after the last byte of its group in ackNo, and once
+ * the last segment of a group has been sent a FEC segment follows with
+ * the XOR of their payloads, each padded with zeros to maxSegmentSize.
+ * The receiver rebuilds one lost segment per group from the others and
+ * the parity, see FecDecoder, so the loss costs 1 / groupSize of extra
+ * bandwidth instead of a retransmission round trip. A segment outside of
+ * any group carries its own seqNo in ackNo.
+ * The group size is fixed, or follows the loss rate the sender observes:
+ * the more loss, the smaller the groups, and no parity at all while
+ * there is hardly any loss.
+ */
+public class FecEncoder {
+    public static final int MIN_GROUP_SIZE = 2;
+    // the receiver keeps a bit per segment of a group in a long
+    public static final int MAX_GROUP_SIZE = 32;
+    // the loss rate is sampled every SAMPLE_SEGMENTS segments, a new sample has a weight of LOSS_RATE_GAIN
+    private static final int SAMPLE_SEGMENTS = 64;
+    private static final double LOSS_RATE_GAIN = 0.25;
+    // an adaptive encoder sends no parity below this loss rate
+    private static final double MIN_LOSS_RATE = 0.005;
+
+    private final int connId;
+    private final int maxSegmentSize;
+    // the seqNo of the first data byte, and the number of bytes and segments to send
+    private final int firstSeqNo;
+    private final long fileSize;
+    private final long numOfSegments;
+    // 0 if the group size follows the loss rate
+    private final int fixedGroupSize;
+    // no group is larger than the window, its parity would wait for an ACK
+    private final int maxGroupSize;
+
+    // the parity datagram of the open group, header and maxSegmentSize bytes of payload
+    private final ByteBuffer parity;
+    private final STPHeader parityHeader = new STPHeader();
+    // the open group is [groupStart, groupEnd), groupEnd == groupStart if there is none
+    private long groupStart = 0;
+    private long groupEnd = 0;
+    private int groupEndSeqNo;
+    // the segment startSegment has been called for last, a send that did not get through starts it again
+    private long startedIndex = -1;
+    // every segment in the ring remembers its group, see isRecoverable
+    private final long[] groupStartArr;
+    private final long[] groupEndArr;
+    private final int capacity;
+
+    private double lossRate = 0;
+    private long numOfSentInSample = 0;
+    private long numOfLostInSample = 0;
+
+    /*
+    groupSize 0 for an adaptive group size, capacity is the number of
+    slots of the SegmentRing, the segments of a group are all in it.
+    fileSize is Long.MAX_VALUE for a stream, whose end is not known when
+    its last group starts, so the last group of a stream has no parity
+     */
+    public FecEncoder(int connId, int maxSegmentSize, int firstSeqNo, long fileSize,
+                      int groupSize, int capacity) {
+        if (groupSize != 0 && (groupSize < MIN_GROUP_SIZE || groupSize > MAX_GROUP_SIZE)) {
+            throw new IllegalArgumentException("fec group size must between " + MIN_GROUP_SIZE
+                    + " and " + MAX_GROUP_SIZE);
+        }
+        this.connId = connId;
+        this.maxSegmentSize = maxSegmentSize;
+        this.firstSeqNo = firstSeqNo;
+        this.fileSize = fileSize;
+        this.numOfSegments = fileSize / maxSegmentSize + (fileSize % maxSegmentSize == 0 ? 0 : 1);
+        this.fixedGroupSize = groupSize;
+        this.maxGroupSize = Math.min(MAX_GROUP_SIZE, capacity);
+        this.capacity = capacity;
+        this.groupStartArr = new long[capacity];
+        this.groupEndArr = new long[capacity];
+        this.parity = BufferPool.SHARED.acquire(Utils.HEADER_LENGTH + maxSegmentSize);
+        parityHeader.wrap(parity);
+    }
+
+    public double getLossRate() {
+        return lossRate;
+    }
+
+    // the segments the sender has found lost, a hole in the SACK blocks or a timeout
+    public void onLoss(int numOfSegments) {
+        numOfLostInSample += numOfSegments;
+    }
+
+    // the group size for the loss rate, about one loss in every four groups
+    private int groupSizeFor(double lossRate) {
+        if (fixedGroupSize != 0) {
+            return Math.min(fixedGroupSize, maxGroupSize);
+        }
+        if (lossRate < MIN_LOSS_RATE) {
+            return 0;
+        }
+        return (int) Math.max(MIN_GROUP_SIZE, Math.min(maxGroupSize, 0.25 / lossRate - 1));
+    }
+
+    private int seqNoOf(long segmentIndex) {
+        return (int) (firstSeqNo + Math.min(segmentIndex * maxSegmentSize, fileSize));
+    }
+
+    /*
+    called for every new segment in the order they are sent, before it is
+    loaded, return the ackNo of the segment, the seqNo after its group.
+    A segment whose send did not get through is started again, it is
+    counted once
+     */
+    public int startSegment(long segmentIndex) {
+        if (segmentIndex == startedIndex) {
+            return ackNoOf(segmentIndex);
+        }
+        startedIndex = segmentIndex;
+        numOfSentInSample += 1;
+        if (numOfSentInSample >= SAMPLE_SEGMENTS) {
+            double sample = Math.min(1, (double) numOfLostInSample / numOfSentInSample);
+            lossRate += LOSS_RATE_GAIN * (sample - lossRate);
+            numOfSentInSample = 0;
+            numOfLostInSample = 0;
+        }
+        if (segmentIndex >= groupEnd) {
+            int groupSize = groupSizeFor(lossRate);
+            groupStart = segmentIndex;
+            groupEnd = groupSize < MIN_GROUP_SIZE ? segmentIndex
+                    : Math.min(segmentIndex + groupSize, numOfSegments);
+            groupEndSeqNo = seqNoOf(groupEnd);
+            int parityEnd = Math.min(parity.capacity(), Utils.HEADER_LENGTH + ((maxSegmentSize + 7) & ~7));
+            for (int i = Utils.HEADER_LENGTH; i < parityEnd; i += 8) {
+                parity.putLong(i, 0);
+            }
+        }
+        int slot = (int) (segmentIndex % capacity);
+        groupStartArr[slot] = groupStart;
+        groupEndArr[slot] = groupEnd;
+        return ackNoOf(segmentIndex);
+    }
+
+    // the seqNo after the group of a started segment, its own seqNo if it is in no group
+    private int ackNoOf(long segmentIndex) {
+        long end = groupEndArr[(int) (segmentIndex % capacity)];
+        return end > segmentIndex ? seqNoOf(end) : seqNoOf(segmentIndex);
+    }
+
+    /*
+    add the loaded segment to the parity of its group, return the FEC
+    segment once the last segment of the group has been added, ready to
+    be sent, otherwise null
+     */
+    public ByteBuffer addSegment(long segmentIndex, ByteBuffer datagram, int dataLen) {
+        if (segmentIndex >= groupEnd) {
+            return null;
+        }
+        Utils.xor(parity, Utils.HEADER_LENGTH, datagram, Utils.HEADER_LENGTH, dataLen);
+        if (segmentIndex + 1 < groupEnd) {
+            return null;
+        }
+        int parityLength = (int) Math.min(maxSegmentSize, fileSize - groupStart * maxSegmentSize);
+        parityHeader.write(Utils.FEC, connId, seqNoOf(groupStart), groupEndSeqNo, parityLength);
+        parity.limit(Utils.HEADER_LENGTH + parityLength).position(0);
+        return parity;
+    }
+
+    /*
+    the receiver is able to rebuild the segment from the parity of its group:
+    the parity has been sent, and the segment is the only one of the group
+    that is neither ACKed nor SACKed. The segments below base are ACKed and
+    have left the ring
+     */
+    public boolean isRecoverable(long segmentIndex, SegmentRing segmentRing, long base, long next) {
+        int slot = (int) (segmentIndex % capacity);
+        long start = groupStartArr[slot];
+        long end = groupEndArr[slot];
+        if (end <= segmentIndex || end > next) {
+            return false;
+        }
+        for (long i = Math.max(start, base); i < end; i++) {
+            if (i != segmentIndex && !segmentRing.isACKed(i) && !segmentRing.isSACKed(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void close() {
+        BufferPool.SHARED.release(parity);
+    }
+}
@@ -0,0 +1,257 @@
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * A UDP relay between senders and the receiver on one machine that
+ * emulates a network path, see LinkImpairment for what a direction does.
+ * The senders send to the relay port instead of the receiver port, e.g.
+ *     java Receiver 60000 50000 FileReceived.txt 0 0
+ *     java ImpairmentRelay 55000 60000 delay=20 jitter=2 loss=0.01 rate=100000 seed=1
+ *     java Sender 50000 55000 FileToSend.txt 500000 100
+ * Every sender gets its own socket towards the receiver, so the receiver
+ * still tells the senders apart by their address, and the replies that
+ * come back on it are relayed to that sender. One thread runs the relay
+ * as an event loop, a datagram waits in a queue ordered by the time it
+ * leaves the link, and the loop wakes up for the first one.
+ */
+public class ImpairmentRelay {
+    private static final int BUFFERSIZE = Utils.MAX_DATAGRAM_SIZE;
+    // a sender that has not sent anything for this long is gone, its socket is closed
+    private static final long FLOW_IDLE_MILLIS = 60_000;
+    private static final int LOG_RING_SIZE = 1 << 10;
+
+    private final InetSocketAddress receiverAddress;
+    private final LinkImpairment forward;
+    private final LinkImpairment reverse;
+    private final EventLog eventLog;
+    private final int statsIntervalMillis;
+    private final DatagramChannel listenChannel;
+    private final Selector selector;
+    private final ByteBuffer receiveBuffer = BufferPool.SHARED.acquire(BUFFERSIZE);
+    private final Map<InetSocketAddress, Flow> flows = new HashMap<>();
+    private final PriorityQueue<Delivery> deliveries = new PriorityQueue<>();
+    // keeps datagrams with the same release time in the order they were scheduled
+    private long numOfScheduled = 0;
+
+    // the socket of one sender towards the receiver
+    private static final class Flow {
+        private final InetSocketAddress senderAddress;
+        private final DatagramChannel upstream;
+        private long lastActivity;
+
+        Flow(InetSocketAddress senderAddress, DatagramChannel upstream) {
+            this.senderAddress = senderAddress;
+            this.upstream = upstream;
+        }
+    }
+
+    // a datagram on the link, sent from channel to destination at releaseNanos
+    private static final class Delivery implements Comparable<Delivery> {
+        private final long releaseNanos;
+        private final long order;
+        private final ByteBuffer datagram;
+        private final DatagramChannel channel;
+        private final SocketAddress destination;
+
+        Delivery(long releaseNanos, long order, ByteBuffer datagram, DatagramChannel channel,
+                 SocketAddress destination) {
+            this.releaseNanos = releaseNanos;
+            this.order = order;
+            this.datagram = datagram;
+            this.channel = channel;
+            this.destination = destination;
+        }
+
+        @Override
+        public int compareTo(Delivery other) {
+            int byTime = Long.compare(releaseNanos, other.releaseNanos);
+            return byTime != 0 ? byTime : Long.compare(order, other.order);
+        }
+    }
+
+    /*
+    options, see LinkImpairment for the impairments, they are set for both
+    directions, or with the prefix fwd. for sender -> receiver and rev. for
+    receiver -> sender
+    seed=<n>        the seed of the random impairments, random by default, the
+                    reverse direction uses n + 1
+    stats=<ms>      log the counters of both directions every ms milliseconds,
+                    default 1000, 0 for none
+    log=off|info    what goes into relayLog.txt and to the console, default info
+     */
+    public ImpairmentRelay(int listenPort, int receiverPort, Map<String, String> options) throws IOException {
+        InetAddress address = InetAddress.getByName("127.0.0.1");
+        this.receiverAddress = new InetSocketAddress(address, receiverPort);
+        long seed = options.containsKey("seed")
+                ? Long.parseLong(options.get("seed")) : Utils.SECURE_RANDOM.nextLong();
+        this.forward = new LinkImpairment("fwd", options, seed);
+        this.reverse = new LinkImpairment("rev", options, seed + 1);
+        this.statsIntervalMillis = Utils.getIntOption(options, "stats", 1000);
+        File relayLogFile = new File(System.getProperty("user.dir")
+                + System.getProperty("file.separator") + "relayLog.txt");
+        this.eventLog = new EventLog(relayLogFile,
+                EventLog.Level.parse(options.getOrDefault("log", "info")), LOG_RING_SIZE, System.out);
+
+        this.listenChannel = DatagramChannel.open();
+        listenChannel.bind(new InetSocketAddress(address, listenPort));
+        listenChannel.configureBlocking(false);
+        this.selector = Selector.open();
+        listenChannel.register(selector, SelectionKey.OP_READ);
+
+        log("relaying port " + listenPort + " to receiver port " + receiverPort + ", seed " + seed + "\n"
+                + forward + "\n" + reverse);
+    }
+
+    private void log(String message) {
+        eventLog.message(EventLog.Level.INFO, message);
+    }
+
+    // relay until the process is killed
+    public void run() throws IOException {
+        long nextStatsMillis = System.currentTimeMillis() + statsIntervalMillis;
+        long nextIdleCheckMillis = System.currentTimeMillis() + FLOW_IDLE_MILLIS;
+        while (true) {
+            // select has millisecond resolution, a datagram leaves at most 1 ms late
+            long now = System.currentTimeMillis();
+            long timeoutMillis = nextIdleCheckMillis - now;
+            if (statsIntervalMillis > 0) {
+                timeoutMillis = Math.min(timeoutMillis, nextStatsMillis - now);
+            }
+            Delivery first = deliveries.peek();
+            if (first != null) {
+                timeoutMillis = Math.min(timeoutMillis, (first.releaseNanos - System.nanoTime() + 999_999) / 1_000_000);
+            }
+            if (timeoutMillis <= 0) {
+                selector.selectNow();
+            } else {
+                selector.select(timeoutMillis);
+            }
+
+            Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+            while (iterator.hasNext()) {
+                SelectionKey key = iterator.next();
+                iterator.remove();
+                if (key.attachment() == null) {
+                    receiveFromSenders();
+                } else {
+                    receiveFromReceiver((Flow) key.attachment());
+                }
+            }
+            sendDueDeliveries();
+
+            now = System.currentTimeMillis();
+            if (statsIntervalMillis > 0 && now >= nextStatsMillis) {
+                nextStatsMillis = now + statsIntervalMillis;
+                log(forward.getStats() + "\n" + reverse.getStats());
+            }
+            if (now >= nextIdleCheckMillis) {
+                nextIdleCheckMillis = now + FLOW_IDLE_MILLIS;
+                closeIdleFlows();
+            }
+        }
+    }
+
+    private void receiveFromSenders() throws IOException {
+        while (true) {
+            receiveBuffer.clear();
+            InetSocketAddress source = (InetSocketAddress) listenChannel.receive(receiveBuffer);
+            if (source == null) {
+                return;
+            }
+            Flow flow = flows.get(source);
+            if (flow == null) {
+                flow = openFlow(source);
+            }
+            flow.lastActivity = System.currentTimeMillis();
+            receiveBuffer.flip();
+            schedule(forward, receiveBuffer, flow.upstream, receiverAddress);
+        }
+    }
+
+    private void receiveFromReceiver(Flow flow) throws IOException {
+        while (true) {
+            receiveBuffer.clear();
+            if (flow.upstream.receive(receiveBuffer) == null) {
+                return;
+            }
+            receiveBuffer.flip();
+            schedule(reverse, receiveBuffer, listenChannel, flow.senderAddress);
+        }
+    }
+
+    private Flow openFlow(InetSocketAddress senderAddress) throws IOException {
+        DatagramChannel upstream = DatagramChannel.open();
+        upstream.bind(new InetSocketAddress(receiverAddress.getAddress(), 0));
+        upstream.configureBlocking(false);
+        Flow flow = new Flow(senderAddress, upstream);
+        upstream.register(selector, SelectionKey.OP_READ, flow);
+        flows.put(senderAddress, flow);
+        log("new sender " + senderAddress + ", relayed from " + upstream.getLocalAddress());
+        return flow;
+    }
+
+    // put the datagram, and maybe a copy of it, on the link, unless it is lost
+    private void schedule(LinkImpairment link, ByteBuffer datagram, DatagramChannel channel,
+                          SocketAddress destination) {
+        if (link.isLost()) {
+            return;
+        }
+        int copies = link.isDuplicated() ? 2 : 1;
+        for (int i = 0; i < copies; i++) {
+            long release = link.releaseTime(datagram.remaining(), System.nanoTime());
+            if (release < 0) {
+                continue;
+            }
+            ByteBuffer copy = BufferPool.SHARED.acquire(Math.max(1, datagram.remaining()));
+            copy.put(datagram.duplicate()).flip();
+            deliveries.add(new Delivery(release, numOfScheduled++, copy, channel, destination));
+        }
+    }
+
+    private void sendDueDeliveries() throws IOException {
+        long now = System.nanoTime();
+        while (!deliveries.isEmpty() && deliveries.peek().releaseNanos <= now) {
+            Delivery delivery = deliveries.poll();
+            // a full socket buffer loses the datagram, like a full router queue
+            if (delivery.channel.isOpen()) {
+                delivery.channel.send(delivery.datagram, delivery.destination);
+            }
+            BufferPool.SHARED.release(delivery.datagram);
+        }
+    }
+
+    // the datagrams of a closed flow still on the link are dropped when they are due
+    private void closeIdleFlows() throws IOException {
+        long now = System.currentTimeMillis();
+        Iterator<Flow> iterator = flows.values().iterator();
+        while (iterator.hasNext()) {
+            Flow flow = iterator.next();
+            if (now - flow.lastActivity < FLOW_IDLE_MILLIS) {
+                continue;
+            }
+            log("sender " + flow.senderAddress + " idle for " + FLOW_IDLE_MILLIS + " ms, closing its socket");
+            flow.upstream.close();
+            iterator.remove();
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("\n===== Error usage, java ImpairmentRelay <listen_port> <receiver_port> [seed=<n>] [stats=<ms>] [log=off|info] [[fwd.|rev.]delay=<ms>] [[fwd.|rev.]jitter=<ms>] [[fwd.|rev.]dist=constant|uniform|normal|exponential|pareto] [[fwd.|rev.]loss=<p>] [[fwd.|rev.]burstP=<p>] [[fwd.|rev.]burstR=<p>] [[fwd.|rev.]burstLoss=<p>] [[fwd.|rev.]reorder=<p>] [[fwd.|rev.]reorderDelay=<ms>] [[fwd.|rev.]duplicate=<p>] [[fwd.|rev.]rate=<kbit/s>] [[fwd.|rev.]bucket=<bytes>] [[fwd.|rev.]queue=<bytes>] =====\n");
+            return;
+        }
+        new ImpairmentRelay(Integer.parseInt(args[0]), Integer.parseInt(args[1]),
+                Utils.parseOptionArgs(args, 2)).run();
+    }
+}
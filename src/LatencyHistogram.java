@@ -0,0 +1,103 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies in microseconds with a bounded relative error,
+ * laid out like HdrHistogram. Values below 128 have a bucket each, above
+ * that every power of two is split into 64 linear sub-buckets, so a value
+ * is recorded with about 2 significant digits (at most 1/64 off) from
+ * 1 us up to MAX_VALUE_MICROS in a few thousand counters.
+ * One thread records, any thread may read, e.g. a JMX client.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int SUB_BUCKET_HALF = SUB_BUCKET_COUNT / 2;
+    // about 76 hours, anything above is recorded as this
+    static final long MAX_VALUE_MICROS = (1L << 38) - 1;
+
+    private final AtomicLongArray counts;
+    private volatile long totalCount = 0;
+    private volatile long sum = 0;
+    private volatile long min = Long.MAX_VALUE;
+    private volatile long max = 0;
+
+    public LatencyHistogram() {
+        this.counts = new AtomicLongArray(indexOf(MAX_VALUE_MICROS) + 1);
+    }
+
+    /*
+    e.g. 100 -> 100, 1000 (binary 1111101000, 10 bits) -> bucket 3,
+    sub-bucket 1000 >> 3 = 125, index 3 * 64 + 125 = 317
+     */
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        int bucket = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> bucket);
+        return bucket * SUB_BUCKET_HALF + subBucket;
+    }
+
+    // the largest value that is recorded at index, the value a percentile reports
+    private static long highestValueAt(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int bucket = index / SUB_BUCKET_HALF - 1;
+        long subBucket = index - (long) bucket * SUB_BUCKET_HALF;
+        return ((subBucket + 1) << bucket) - 1;
+    }
+
+    public void recordNanos(long nanos) {
+        record(Math.max(0, nanos / 1000));
+    }
+
+    // called by one thread only, the counters are single-writer
+    public void record(long micros) {
+        long value = Math.min(Math.max(micros, 0), MAX_VALUE_MICROS);
+        int index = indexOf(value);
+        counts.lazySet(index, counts.get(index) + 1);
+        sum += value;
+        if (value < min) {
+            min = value;
+        }
+        if (value > max) {
+            max = value;
+        }
+        totalCount += 1;
+    }
+
+    public long getTotalCount() {
+        return totalCount;
+    }
+
+    public long getMinMicros() {
+        return totalCount == 0 ? 0 : min;
+    }
+
+    public long getMaxMicros() {
+        return max;
+    }
+
+    public double getMeanMicros() {
+        long count = totalCount;
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    // the value below which percentile % of the samples are, e.g. 99.9, 0 if there is none
+    public long getValueAtPercentile(double percentile) {
+        long count = totalCount;
+        if (count == 0) {
+            return 0;
+        }
+        long countAtPercentile = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long cumulative = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            cumulative += counts.get(i);
+            if (cumulative >= countAtPercentile) {
+                return Math.min(highestValueAt(i), max);
+            }
+        }
+        return max;
+    }
+}
@@ -0,0 +1,225 @@
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * What one direction of an emulated network link does to the datagrams
+ * that cross it, used by ImpairmentRelay. A datagram is first lost or not
+ * by a Gilbert-Elliott model, a Good and a Bad state with their own loss
+ * probabilities, so losses come in bursts like on a congested or a radio
+ * link, with burstP = 0 it is the uniform loss of the Receiver's flp/rlp.
+ * Then it waits in a token bucket for its turn on a link of the given rate,
+ * and is delayed by the propagation delay drawn from the delay distribution.
+ * A datagram may also be duplicated, and held back to arrive out of order.
+ * Every random decision comes from one seeded Random per direction, so a
+ * run with the same seed and the same traffic sees the same impairments.
+ */
+public class LinkImpairment {
+    public enum DelayDistribution {
+        // always delay
+        CONSTANT,
+        // delay +- jitter
+        UNIFORM,
+        // mean delay, standard deviation jitter
+        NORMAL,
+        // at least delay, the extra delay has mean jitter
+        EXPONENTIAL,
+        // at least delay, a heavy tailed extra delay of mean jitter
+        PARETO;
+
+        public static DelayDistribution parse(String value) {
+            return valueOf(value.toUpperCase());
+        }
+    }
+
+    // the shape of the Pareto distribution, a finite mean and a long tail
+    private static final double PARETO_SHAPE = 3;
+
+    private final String name;
+    private final Random random;
+    private final long delayNanos;
+    private final long jitterNanos;
+    private final DelayDistribution delayDistribution;
+    // Gilbert-Elliott, the probabilities of Good -> Bad and Bad -> Good, and the loss in each state
+    private final double burstP;
+    private final double burstR;
+    private final double lossGood;
+    private final double lossBad;
+    private boolean inBadState = false;
+    private final double reorder;
+    private final long reorderDelayNanos;
+    private final double duplicate;
+    // the token bucket, bytes per second, 0 for no limit
+    private final long rateBytesPerSecond;
+    private final long bucketBytes;
+    private final long queueLimitBytes;
+    // may be negative, then the datagrams before this one are still waiting for the link
+    private double tokens;
+    private long lastRefillNanos;
+
+    private long numOfDatagrams = 0;
+    private long numOfLost = 0;
+    private long numOfQueueDrops = 0;
+    private long numOfDuplicated = 0;
+    private long numOfReordered = 0;
+
+    /*
+    the options of one direction, prefix.key is taken before key, e.g. with
+    fwd.delay=20 delay=5 the forward direction has 20 ms and the reverse 5 ms
+    delay=<ms>          propagation delay, default 0
+    jitter=<ms>         spread of the delay, see DelayDistribution, default 0
+    dist=constant|uniform|normal|exponential|pareto
+                        the delay distribution, default uniform
+    loss=<p>            loss probability in the Good state, default 0
+    burstP=<p>          probability to go from Good to Bad per datagram, default 0
+    burstR=<p>          probability to go from Bad to Good per datagram, default 1
+    burstLoss=<p>       loss probability in the Bad state, default 1
+    reorder=<p>         probability to hold a datagram back by reorderDelay, default 0
+    reorderDelay=<ms>   default 5, the datagrams behind it overtake it
+    duplicate=<p>       probability to send a datagram twice, default 0
+    rate=<kbit/s>       link rate, default 0 for unlimited
+    bucket=<bytes>      burst the link sends at once, default 2 datagrams of 1500 bytes
+    queue=<bytes>       bytes waiting for the link before the tail is dropped, default 1 MB
+     */
+    public LinkImpairment(String name, Map<String, String> options, long seed) {
+        this.name = name;
+        this.random = new Random(seed);
+        this.delayNanos = millisToNanos(getDouble(options, name, "delay", 0));
+        this.jitterNanos = millisToNanos(getDouble(options, name, "jitter", 0));
+        this.delayDistribution = DelayDistribution.parse(getString(options, name, "dist", "uniform"));
+        this.lossGood = getProbability(options, name, "loss", 0);
+        this.burstP = getProbability(options, name, "burstP", 0);
+        this.burstR = getProbability(options, name, "burstR", 1);
+        this.lossBad = getProbability(options, name, "burstLoss", 1);
+        this.reorder = getProbability(options, name, "reorder", 0);
+        this.reorderDelayNanos = millisToNanos(getDouble(options, name, "reorderDelay", 5));
+        this.duplicate = getProbability(options, name, "duplicate", 0);
+        this.rateBytesPerSecond = (long) (getDouble(options, name, "rate", 0) * 1000 / 8);
+        this.bucketBytes = (long) getDouble(options, name, "bucket", 3000);
+        this.queueLimitBytes = (long) getDouble(options, name, "queue", 1 << 20);
+        this.tokens = bucketBytes;
+        this.lastRefillNanos = System.nanoTime();
+        if (delayNanos < 0 || jitterNanos < 0 || rateBytesPerSecond < 0) {
+            throw new IllegalArgumentException(name + ": delay, jitter and rate must not be negative");
+        }
+    }
+
+    private static String getString(Map<String, String> options, String prefix, String key, String defaultValue) {
+        String value = options.get(prefix + "." + key);
+        if (value == null) {
+            value = options.get(key);
+        }
+        return value == null ? defaultValue : value;
+    }
+
+    private static double getDouble(Map<String, String> options, String prefix, String key, double defaultValue) {
+        String value = getString(options, prefix, key, null);
+        return value == null ? defaultValue : Double.parseDouble(value);
+    }
+
+    private static double getProbability(Map<String, String> options, String prefix, String key, double defaultValue) {
+        double value = getDouble(options, prefix, key, defaultValue);
+        if (value < 0 || value > 1) {
+            throw new IllegalArgumentException(prefix + "." + key + " must between 0 and 1");
+        }
+        return value;
+    }
+
+    private static long millisToNanos(double millis) {
+        return (long) (millis * 1_000_000);
+    }
+
+    // the Gilbert-Elliott chain moves once per datagram, then the datagram is lost with the loss of the new state
+    public boolean isLost() {
+        numOfDatagrams += 1;
+        if (inBadState) {
+            inBadState = random.nextDouble() >= burstR;
+        } else {
+            inBadState = random.nextDouble() < burstP;
+        }
+        boolean lost = random.nextDouble() < (inBadState ? lossBad : lossGood);
+        if (lost) {
+            numOfLost += 1;
+        }
+        return lost;
+    }
+
+    public boolean isDuplicated() {
+        boolean duplicated = duplicate > 0 && random.nextDouble() < duplicate;
+        if (duplicated) {
+            numOfDuplicated += 1;
+        }
+        return duplicated;
+    }
+
+    /*
+    the System.nanoTime() at which a datagram of length bytes that arrives
+    now leaves the far end of the link, or -1 if the queue of the link is
+    full and it is dropped. Datagrams wait for the link in the order they
+    arrive, the delay after it may reorder them if the jitter is large
+     */
+    public long releaseTime(int length, long nowNanos) {
+        long departure = nowNanos;
+        if (rateBytesPerSecond > 0) {
+            tokens = Math.min(bucketBytes, tokens + (nowNanos - lastRefillNanos) * rateBytesPerSecond / 1e9);
+            lastRefillNanos = nowNanos;
+            if (tokens - length < -queueLimitBytes) {
+                numOfQueueDrops += 1;
+                return -1;
+            }
+            tokens -= length;
+            if (tokens < 0) {
+                departure += (long) (-tokens * 1e9 / rateBytesPerSecond);
+            }
+        }
+        long release = departure + nextDelay();
+        if (reorder > 0 && random.nextDouble() < reorder) {
+            numOfReordered += 1;
+            release += reorderDelayNanos;
+        }
+        return release;
+    }
+
+    private long nextDelay() {
+        if (jitterNanos == 0) {
+            return delayNanos;
+        }
+        double delay;
+        switch (delayDistribution) {
+            case UNIFORM:
+                delay = delayNanos + jitterNanos * (2 * random.nextDouble() - 1);
+                break;
+            case NORMAL:
+                delay = delayNanos + jitterNanos * random.nextGaussian();
+                break;
+            case EXPONENTIAL:
+                delay = delayNanos - jitterNanos * Math.log(1 - random.nextDouble());
+                break;
+            case PARETO:
+                // x_m / U^(1/a) has mean x_m * a / (a - 1), so the extra delay has mean jitter
+                double scale = jitterNanos * (PARETO_SHAPE - 1) / PARETO_SHAPE;
+                delay = delayNanos + scale / Math.pow(1 - random.nextDouble(), 1 / PARETO_SHAPE);
+                break;
+            default:
+                delay = delayNanos;
+                break;
+        }
+        return Math.max(0, (long) delay);
+    }
+
+    public String getStats() {
+        return name + ": " + numOfDatagrams + " datagrams, " + numOfLost + " lost, "
+                + numOfQueueDrops + " queue drops, " + numOfDuplicated + " duplicated, "
+                + numOfReordered + " reordered";
+    }
+
+    @Override
+    public String toString() {
+        return name + ": delay " + delayNanos / 1e6 + " ms, jitter " + jitterNanos / 1e6 + " ms "
+                + delayDistribution.name().toLowerCase()
+                + ", loss " + lossGood + ", burst " + burstP + "/" + burstR + " loss " + lossBad
+                + ", reorder " + reorder + " by " + reorderDelayNanos / 1e6 + " ms"
+                + ", duplicate " + duplicate
+                + ", rate " + (rateBytesPerSecond == 0 ? "unlimited" : rateBytesPerSecond * 8 / 1000 + " kbit/s"
+                + ", bucket " + bucketBytes + " bytes, queue " + queueLimitBytes + " bytes");
+    }
+}
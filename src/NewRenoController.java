@@ -0,0 +1,95 @@
+/**
+ * Slow start, congestion avoidance and fast recovery of RFC 5681,
+ * with the partial ACK handling of NewReno (RFC 6582).
+ * The window grows by the bytes ACKed (RFC 3465), so it does not depend
+ * on how many ACKs the receiver sends or loses.
+ */
+public class NewRenoController implements CongestionController {
+    private final int maxSegmentSize;
+    private final long maxWindowInByte;
+    private long cwnd;
+    private long ssthresh = Long.MAX_VALUE;
+    // bytes ACKed in congestion avoidance since the window last grew
+    private long bytesAcked = 0;
+    private boolean inRecovery = false;
+    // recovery ends when everything sent before the loss is ACKed
+    private long recoverOffset = 0;
+
+    public NewRenoController(int maxSegmentSize, long maxWindowInByte) {
+        this.maxSegmentSize = maxSegmentSize;
+        this.maxWindowInByte = Math.max(maxWindowInByte, maxSegmentSize);
+        this.cwnd = Math.min(CongestionController.initialWindow(maxSegmentSize), this.maxWindowInByte);
+    }
+
+    @Override
+    public void onAck(long ackedBytes, long ackedOffset, long srttNanos, long nowNanos) {
+        if (inRecovery) {
+            if (ackedOffset >= recoverOffset) {
+                // full ACK, deflate the window
+                inRecovery = false;
+                cwnd = ssthresh;
+            } else {
+                // partial ACK, the sender resends the next hole, take back what left the network
+                cwnd = Math.max(cwnd - ackedBytes + maxSegmentSize, maxSegmentSize);
+            }
+            return;
+        }
+
+        if (cwnd < ssthresh) {
+            // slow start, at most 2 MSS per ACK, RFC 3465 L = 2
+            cwnd += Math.min(ackedBytes, 2L * maxSegmentSize);
+        } else {
+            // congestion avoidance, one MSS per window of ACKed bytes
+            bytesAcked += ackedBytes;
+            if (bytesAcked >= cwnd) {
+                bytesAcked -= cwnd;
+                cwnd += maxSegmentSize;
+            }
+        }
+        cwnd = Math.min(cwnd, maxWindowInByte);
+    }
+
+    @Override
+    public void onDuplicateAck(int dupACKCount, long bytesInFlight, long sentOffset, long nowNanos) {
+        if (inRecovery) {
+            // every duplicate ACK means a segment has left the network
+            cwnd = Math.min(cwnd + maxSegmentSize, maxWindowInByte + 3L * maxSegmentSize);
+            return;
+        }
+        if (dupACKCount == 3) {
+            ssthresh = Math.max(bytesInFlight / 2, 2L * maxSegmentSize);
+            cwnd = ssthresh + 3L * maxSegmentSize;
+            bytesAcked = 0;
+            inRecovery = true;
+            recoverOffset = sentOffset;
+        }
+    }
+
+    @Override
+    public void onTimeout(long bytesInFlight, long nowNanos) {
+        ssthresh = Math.max(bytesInFlight / 2, 2L * maxSegmentSize);
+        cwnd = maxSegmentSize;
+        bytesAcked = 0;
+        inRecovery = false;
+    }
+
+    @Override
+    public boolean isInRecovery() {
+        return inRecovery;
+    }
+
+    @Override
+    public long getCongestionWindow() {
+        return cwnd;
+    }
+
+    @Override
+    public long getSlowStartThreshold() {
+        return ssthresh;
+    }
+
+    @Override
+    public String getName() {
+        return "newreno";
+    }
+}
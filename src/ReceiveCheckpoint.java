@@ -0,0 +1,221 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32C;
+
+/**
+ * The progress of a transfer into a file, kept next to it as <file>.ckpt,
+ * so a transfer that dies is resumed where it stopped instead of at byte 0.
+ * It records the prefix of the file that has been received, with a hash
+ * of its content, and a bitmap of the segments received beyond the
+ * in-order data, which were written at their offsets out of order.
+ * A checkpoint is only written after the file has been forced to disk,
+ * and it replaces the old one atomically, so it never claims bytes a
+ * crash has lost. The segments of the bitmap that continue the prefix
+ * are added to it when the checkpoint is loaded.
+ * The hash folds the CRC32C of every HASH_BLOCK_SIZE block of the prefix,
+ * so the prefix always ends at a block boundary or at the end of the
+ * file, and the sender hashes its own file the same way to check that
+ * the receiver has what it would send.
+ */
+public class ReceiveCheckpoint {
+    static final int HASH_BLOCK_SIZE = 1 << 20;
+    private static final int MAGIC = 0x5354504B;
+    private static final int VERSION = 1;
+    // magic, version, the source, the prefix, the in-order offset, the attempt, the bitmap length
+    private static final int HEADER_LENGTH = 64;
+
+    private final Path path;
+    // the received file, read to hash what is added to the prefix
+    private final FileChannel fileChannel;
+    // the file the sender sends, a checkpoint of another one is not resumed
+    private final long sourceSize;
+    private final long sourceId;
+    // [0, committedOffset) is on disk and hashed into prefixHash
+    private long committedOffset = 0;
+    private long prefixHash = 0;
+    // [0, inOrderOffset) is on disk, the part after the prefix is hashed once it fills a block
+    private long inOrderOffset = 0;
+    // the segments of the current attempt, segment i starts at attemptOffset + i * segmentSize
+    private long attemptOffset = 0;
+    private int segmentSize = 1;
+    private long[] bitmap = new long[0];
+    private ByteBuffer blockBuffer;
+
+    // a checkpoint with nothing received yet
+    public ReceiveCheckpoint(File fileReceived, FileChannel fileChannel, long sourceSize, long sourceId) {
+        this.path = pathOf(fileReceived);
+        this.fileChannel = fileChannel;
+        this.sourceSize = sourceSize;
+        this.sourceId = sourceId;
+    }
+
+    public static Path pathOf(File fileReceived) {
+        return fileReceived.toPath().resolveSibling(fileReceived.getName() + ".ckpt");
+    }
+
+    /*
+    the checkpoint of fileReceived, if there is one of the same source
+    and the file still holds its prefix, null otherwise
+     */
+    public static ReceiveCheckpoint load(File fileReceived, FileChannel fileChannel,
+                                         long sourceSize, long sourceId) throws IOException {
+        Path path = pathOf(fileReceived);
+        if (!Files.exists(path)) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+        if (buffer.remaining() < HEADER_LENGTH || buffer.getInt() != MAGIC || buffer.getInt() != VERSION
+                || buffer.getLong() != sourceSize || buffer.getLong() != sourceId) {
+            return null;
+        }
+        ReceiveCheckpoint checkpoint = new ReceiveCheckpoint(fileReceived, fileChannel, sourceSize, sourceId);
+        checkpoint.committedOffset = buffer.getLong();
+        checkpoint.prefixHash = buffer.getLong();
+        checkpoint.inOrderOffset = buffer.getLong();
+        checkpoint.attemptOffset = buffer.getLong();
+        checkpoint.segmentSize = buffer.getInt();
+        int numOfWords = buffer.getInt();
+        if (checkpoint.segmentSize <= 0 || numOfWords < 0 || buffer.remaining() != 8 * numOfWords
+                || fileChannel.size() < Math.max(checkpoint.committedOffset, checkpoint.inOrderOffset)) {
+            return null;
+        }
+        checkpoint.bitmap = new long[numOfWords];
+        buffer.asLongBuffer().get(checkpoint.bitmap);
+        checkpoint.extendPrefix();
+        return checkpoint;
+    }
+
+    public long getCommittedOffset() {
+        return committedOffset;
+    }
+
+    public long getPrefixHash() {
+        return prefixHash;
+    }
+
+    // a new SYN, its data starts at offset, segmentSize is its maxSegmentSize
+    public void startAttempt(long offset, int segmentSize) {
+        this.attemptOffset = offset;
+        this.inOrderOffset = offset;
+        this.segmentSize = segmentSize;
+        long numOfSegments = (sourceSize - offset + segmentSize - 1) / segmentSize;
+        this.bitmap = new long[(int) ((numOfSegments + 63) / 64)];
+    }
+
+    // the segment at attemptRelativeOffset has been written at its offset out of order
+    public void markSegment(long attemptRelativeOffset) {
+        long index = attemptRelativeOffset / segmentSize;
+        if (index < 64L * bitmap.length) {
+            bitmap[(int) (index >>> 6)] |= 1L << index;
+        }
+    }
+
+    /*
+    persist the progress, [0, inOrderOffset) has been written, what is
+    batched has been flushed. The file is forced to disk first
+     */
+    public void save(long inOrderOffset) throws IOException {
+        this.inOrderOffset = Math.max(this.inOrderOffset, inOrderOffset);
+        extendPrefix();
+        fileChannel.force(false);
+
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH + 8 * bitmap.length);
+        buffer.putInt(MAGIC).putInt(VERSION).putLong(sourceSize).putLong(sourceId)
+                .putLong(committedOffset).putLong(prefixHash).putLong(this.inOrderOffset)
+                .putLong(attemptOffset).putInt(segmentSize).putInt(bitmap.length);
+        buffer.asLongBuffer().put(bitmap);
+        buffer.position(buffer.capacity()).flip();
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+            out.force(false);
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // the transfer is complete, or starts over
+    public void delete() throws IOException {
+        Files.deleteIfExists(path);
+    }
+
+    // the byte at offset is on disk, in order or in a segment written out of order
+    private boolean isWritten(long offset) {
+        if (offset < inOrderOffset) {
+            return true;
+        }
+        if (offset < attemptOffset) {
+            return false;
+        }
+        long index = (offset - attemptOffset) / segmentSize;
+        return index < 64L * bitmap.length && (bitmap[(int) (index >>> 6)] & (1L << index)) != 0;
+    }
+
+    // the first byte after offset that isWritten has to look at again, the next segment boundary
+    private long nextBoundary(long offset) {
+        if (offset < inOrderOffset) {
+            return inOrderOffset;
+        }
+        return offset + segmentSize - (offset - attemptOffset) % segmentSize;
+    }
+
+    // add every whole block after the prefix that has been written, and the short last one
+    private void extendPrefix() throws IOException {
+        while (committedOffset < sourceSize) {
+            long end = Math.min(committedOffset + HASH_BLOCK_SIZE, sourceSize);
+            long offset = committedOffset;
+            while (offset < end && isWritten(offset)) {
+                offset = nextBoundary(offset);
+            }
+            if (offset < end) {
+                return;
+            }
+            if (blockBuffer == null) {
+                blockBuffer = ByteBuffer.allocate(HASH_BLOCK_SIZE);
+            }
+            prefixHash = fold(prefixHash, hashBlock(fileChannel, committedOffset, (int) (end - committedOffset),
+                    blockBuffer));
+            committedOffset = end;
+        }
+    }
+
+    /*
+    the hash of [fileOffset, fileOffset + length) of channel, as the
+    receiver computes it for its prefix, for the sender to compare
+     */
+    public static long prefixHash(FileChannel channel, long fileOffset, long length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(HASH_BLOCK_SIZE);
+        long hash = 0;
+        for (long position = 0; position < length; position += HASH_BLOCK_SIZE) {
+            int blockLength = (int) Math.min(HASH_BLOCK_SIZE, length - position);
+            hash = fold(hash, hashBlock(channel, fileOffset + position, blockLength, buffer));
+        }
+        return hash;
+    }
+
+    private static long fold(long hash, long blockCrc) {
+        return (hash ^ blockCrc) * 0x100000001B3L;
+    }
+
+    private static long hashBlock(FileChannel channel, long fileOffset, int length, ByteBuffer buffer)
+            throws IOException {
+        buffer.clear().limit(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, fileOffset + buffer.position()) < 0) {
+                throw new IOException("the file ends before " + (fileOffset + length));
+            }
+        }
+        buffer.flip();
+        CRC32C crc = new CRC32C();
+        crc.update(buffer);
+        return crc.getValue();
+    }
+}
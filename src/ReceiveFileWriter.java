@@ -0,0 +1,192 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.function.Consumer;
+
+/**
+ * The write path of the receiver.
+ * Out-of-order segments are written straight to their file offset with
+ * positional writes, so the reorder buffer does not need to hold them.
+ * In-order segments are collected and written with one gathering write
+ * once batchSizeInByte bytes have been collected.
+ */
+public class ReceiveFileWriter {
+    public enum FsyncPolicy {
+        NONE, ON_FIN, EVERY_N_MB
+    }
+
+    // the fsync option, the policy and, for EVERY_N_MB, the number of MB between two fsyncs
+    public static final class Fsync {
+        private final FsyncPolicy policy;
+        private final int intervalInMB;
+
+        private Fsync(FsyncPolicy policy, int intervalInMB) {
+            this.policy = policy;
+            this.intervalInMB = intervalInMB;
+        }
+
+        // none, fin, or the number of MB between two fsyncs
+        public static Fsync parse(String value) {
+            if (value.equals("none")) {
+                return new Fsync(FsyncPolicy.NONE, 0);
+            } else if (value.equals("fin")) {
+                return new Fsync(FsyncPolicy.ON_FIN, 0);
+            }
+            try {
+                int intervalInMB = Integer.parseInt(value);
+                if (intervalInMB > 0) {
+                    return new Fsync(FsyncPolicy.EVERY_N_MB, intervalInMB);
+                }
+            } catch (NumberFormatException e) {
+                // reported below
+            }
+            throw new IllegalArgumentException("fsync must be none, fin or a positive number of MB, got " + value);
+        }
+
+        public FsyncPolicy getPolicy() {
+            return policy;
+        }
+
+        // 0 unless the policy is EVERY_N_MB
+        public int getIntervalInMB() {
+            return intervalInMB;
+        }
+    }
+
+    // a gathering write takes at most IOV_MAX (1024 on Linux) buffers
+    private static final int MAX_BUFFERS_PER_WRITE = 1024;
+
+    private final FileChannel fileChannel;
+    private final int batchSizeInByte;
+    private final FsyncPolicy fsyncPolicy;
+    private final long fsyncIntervalInByte;
+    // the buffers of a batch go back to the reorder buffer once they are written
+    private final Consumer<ByteBuffer> recycler;
+
+    private final ByteBuffer[] batch = new ByteBuffer[MAX_BUFFERS_PER_WRITE];
+    private int batchCount = 0;
+    private int batchBytes = 0;
+    // the file offset of the next in-order byte, the batch starts here
+    private long appendOffset;
+    private long bytesSinceLastFsync = 0;
+
+    public ReceiveFileWriter(FileChannel fileChannel, int batchSizeInByte, FsyncPolicy fsyncPolicy,
+                             int fsyncIntervalInMB, Consumer<ByteBuffer> recycler) {
+        this(fileChannel, 0, batchSizeInByte, fsyncPolicy, fsyncIntervalInMB, recycler);
+    }
+
+    // the in-order data starts at appendOffset, the start of a stripe
+    public ReceiveFileWriter(FileChannel fileChannel, long appendOffset, int batchSizeInByte,
+                             FsyncPolicy fsyncPolicy, int fsyncIntervalInMB, Consumer<ByteBuffer> recycler) {
+        this.fileChannel = fileChannel;
+        this.appendOffset = appendOffset;
+        this.batchSizeInByte = batchSizeInByte;
+        this.fsyncPolicy = fsyncPolicy;
+        this.fsyncIntervalInByte = (long) fsyncIntervalInMB << 20;
+        this.recycler = recycler;
+    }
+
+    public long getAppendOffset() {
+        return appendOffset;
+    }
+
+    /*
+    write the remaining bytes of an out-of-order segment at its own offset,
+    the batch is not touched. The payload is written from where it was
+    received, so it is not copied
+     */
+    public void writeAt(long fileOffset, ByteBuffer payload) throws IOException {
+        int start = payload.position();
+        int length = payload.remaining();
+        while (payload.hasRemaining()) {
+            fileChannel.write(payload, fileOffset + payload.position() - start);
+        }
+        afterWrite(length);
+    }
+
+    // take over the remaining bytes of an in-order payload, the buffer is handed to the recycler after it is written
+    public void append(ByteBuffer payload) throws IOException {
+        batch[batchCount] = payload;
+        batchCount += 1;
+        batchBytes += payload.remaining();
+        if (batchBytes >= batchSizeInByte || batchCount == MAX_BUFFERS_PER_WRITE) {
+            flush();
+        }
+    }
+
+    /*
+    write the remaining bytes of data at the append offset right away, behind
+    the batch, the caller keeps the buffer. For data that is not a segment,
+    e.g. an inflated block
+     */
+    public void writeInOrder(ByteBuffer data) throws IOException {
+        flush();
+        int length = data.remaining();
+        while (data.hasRemaining()) {
+            fileChannel.write(data, appendOffset + length - data.remaining());
+        }
+        appendOffset += length;
+        afterWrite(length);
+    }
+
+    // the in-order data starts over at appendOffset, a new SYN, nothing may be batched
+    public void restartAt(long appendOffset) throws IOException {
+        flush();
+        this.appendOffset = appendOffset;
+    }
+
+    // the next length in-order bytes are already on disk, they were written by writeAt
+    public void skip(int length) throws IOException {
+        flush();
+        appendOffset += length;
+    }
+
+    public void flush() throws IOException {
+        if (batchCount == 0) {
+            return;
+        }
+        fileChannel.position(appendOffset);
+        long remaining = batchBytes;
+        int first = 0;
+        while (remaining > 0) {
+            remaining -= fileChannel.write(batch, first, batchCount - first);
+            while (first < batchCount && !batch[first].hasRemaining()) {
+                first += 1;
+            }
+        }
+        appendOffset += batchBytes;
+        afterWrite(batchBytes);
+
+        for (int i = 0; i < batchCount; i++) {
+            recycler.accept(batch[i]);
+            batch[i] = null;
+        }
+        batchCount = 0;
+        batchBytes = 0;
+    }
+
+    private void afterWrite(long length) throws IOException {
+        if (fsyncPolicy != FsyncPolicy.EVERY_N_MB) {
+            return;
+        }
+        bytesSinceLastFsync += length;
+        if (bytesSinceLastFsync >= fsyncIntervalInByte) {
+            fileChannel.force(false);
+            bytesSinceLastFsync = 0;
+        }
+    }
+
+    // called when the FIN arrives, every byte of the file has been received
+    public void finish() throws IOException {
+        flush();
+        if (fsyncPolicy != FsyncPolicy.NONE) {
+            fileChannel.force(false);
+            bytesSinceLastFsync = 0;
+        }
+    }
+
+    public void close() throws IOException {
+        flush();
+        fileChannel.close();
+    }
+}
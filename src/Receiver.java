@@ -1,12 +1,32 @@
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
-import java.util.Arrays;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.Pipe;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -26,65 +46,158 @@ public class Receiver {
      * :param filename: the receiver will put received message into this file
      */
 
-    private static final int BUFFERSIZE = 1024;
-    private final String address = "127.0.0.1"; // change it to 0.0.0.0 or public ipv4 address if want to test it between different computers
+    // large enough for any datagram, the maxSegmentSize is negotiated in the SYN exchange
+    private static final int BUFFERSIZE = Utils.MAX_DATAGRAM_SIZE;
+    // a session that has not received a segment for this long is closed, its sender is gone
+    private static final long SESSION_IDLE_MILLIS = 60_000;
+    // with threads=session, the datagrams a session thread has not handled yet, more are dropped
+    private static final int SESSION_QUEUE_LENGTH = 1024;
+    // queued to wake up the thread of a session that has been taken over, see SessionDispatcher
+    private static final ByteBuffer TAKE_OVER = ByteBuffer.allocate(0);
+    private static final String address = "127.0.0.1"; // change it to 0.0.0.0 or public ipv4 address if want to test it between different computers
     private final int receiverPort;
     private final int senderPort;
     private final String filename;
     private final float flp;
     private final float rlp;
     private final InetAddress serverAddress;
-    private final File receiverLogFile;
-    private FileOutputStream logFOS;
-    private InetAddress clientAddress;
-
-    private final DatagramSocket receiverSocket;
-
-    private HashMap<Short, byte[]> dataBuffer;
-    private short latestInOrderSeqNo;
+    // every new session is a stream handed to the acceptor of a ReliableUdpServerSocket, null for files
+    private final Consumer<ReliableUdpSocket> acceptor;
+    // receiverLog.txt, shared by the event loops and written by a background thread
+    private final EventLog eventLog;
+    private static final int LOG_RING_SIZE = 1 << 16;
     private Random random = new Random();
-    private short writeNext = -111;
-    private File fileReceived;
-    private FileOutputStream recFileFOS;
-    private short debug_replyACK = -111;
-    private boolean connectionIsEstablished = false;
-    private boolean receiveFIN = false;
-
-    private String debugMessage;
-    private boolean writeNextHasBeenInit = false;
-    private short seqNoOfSYN;
-    private short seqNoOfFIN;
+
+    // after the ACK of FIN a session stays this long, to ACK a FIN again whose ACK was lost
+    private final int lingerMillis;
+    private final int writeBatch;
+    private final ReceiveFileWriter.FsyncPolicy fsyncPolicy;
+    private final int fsyncIntervalInMB;
+    private final int checkpointIntervalInMB;
+    private final int statsIntervalMillis;
+    private final int ackDelayMillis;
+    private final int ackEvery;
+    // serve transfers until killed, every one into its own file, instead of returning after one
+    private final boolean serverMode;
+    private final int numOfWorkers;
+    private final List<EventLoop> eventLoops = new ArrayList<>();
+    // threads=session, a thread per session instead of the event loops, null otherwise
+    private final SessionDispatcher sessionDispatcher;
+    // set by stop, every event loop closes its sessions and returns
+    private volatile boolean stopped = false;
 
     public Receiver(int receiverPort, int senderPort, String filename, float flp, float rlp) throws IOException {
-        this.receiverPort = receiverPort;
+        this(receiverPort, senderPort, filename, flp, rlp, new HashMap<>());
+    }
+
+    /*
+    options:
+    writeBatch=<bytes>      in-order data is written with one gathering write
+                            once this many bytes are collected, default 1 MB
+    fsync=none|fin|<N>      never fsync the received file, fsync it when the FIN
+                            arrives (default), or fsync it after every N MB
+    linger=<ms>             how long to stay after the ACK of FIN, in case the
+                            ACK is lost and the FIN comes again, default 1000
+    server=true             keep receiving transfers from any number of senders,
+                            the transfer with connection ID n goes to <filename>.n,
+                            a striped transfer with transfer ID n goes there too
+    workers=<n>             in server mode, n event loops share the receiver port
+                            with SO_REUSEPORT, the kernel spreads the senders over
+                            them by address and port, default 1
+    log=off|info|debug|trace
+                            what goes into receiverLog.txt and to the console, default
+                            info, debug adds dropped packets, trace every packet
+    stats=<ms>              log a line of the counters of every session every ms
+                            milliseconds, default 1000, 0 only logs it when the session
+                            closes. The same counters are the ReliableUDP:type=ReceiverSession
+                            MBean of the session
+    ackDelay=<ms>           delay the ACK of an in-order full segment by up to ms
+                            milliseconds, it is sent with the ACK of the next one,
+                            default 5, keep it well below the minRto of the sender,
+                            0 ACKs every segment at once
+    ackEvery=<n>            with ackDelay, ACK at least every n full segments, default 2
+    checkpoint=<MB>         if the sender asks to resume (resume=true), keep the progress
+                            in <file>.ckpt, saved every MB of in-order data and when the
+                            session closes before the FIN, default 64, 0 never resumes.
+                            A saved checkpoint fsyncs the file
+    threads=loop|session    in server mode, loop serves the sessions from the event loops
+                            (default), session runs every session on a thread of its own,
+                            a virtual thread on Java 21 and later, and one thread receives
+                            for all of them. workers is ignored then
+     */
+    public Receiver(int receiverPort, int senderPort, String filename, float flp, float rlp,
+                    Map<String, String> options) throws IOException {
+        this(new InetSocketAddress(InetAddress.getByName(address), receiverPort), senderPort, filename,
+                flp, rlp, options, null);
+    }
+
+    /*
+    receive streams on localAddress instead of files, every session is
+    handed to acceptor as a ReliableUdpSocket when its SYN arrives, see
+    ReliableUdpServerSocket. The receiver runs until stop, as with server=true
+     */
+    Receiver(InetSocketAddress localAddress, Map<String, String> options,
+             Consumer<ReliableUdpSocket> acceptor) throws IOException {
+        this(localAddress, 0, null, 0, 0, options, acceptor);
+    }
+
+    private Receiver(InetSocketAddress localAddress, int senderPort, String filename, float flp, float rlp,
+                     Map<String, String> options, Consumer<ReliableUdpSocket> acceptor) throws IOException {
         this.senderPort = senderPort;
         this.filename = filename;
         this.flp = flp;
         this.rlp = rlp;
-        this.serverAddress = InetAddress.getByName(address);
-        this.dataBuffer = new HashMap<>();
-        this.fileReceived = new File(System.getProperty("user.dir")
-                + System.getProperty("file.separator") + filename);
-        if (!fileReceived.exists()) {
-            fileReceived.createNewFile();
-        }
-        this.recFileFOS = new FileOutputStream(fileReceived);
-        this.receiverLogFile = new File(System.getProperty("user.dir")
+        this.serverAddress = localAddress.getAddress();
+        this.acceptor = acceptor;
+        ReceiveFileWriter.Fsync fsync = ReceiveFileWriter.Fsync.parse(options.getOrDefault("fsync", "fin"));
+        this.fsyncPolicy = fsync.getPolicy();
+        this.fsyncIntervalInMB = fsync.getIntervalInMB();
+        this.writeBatch = Utils.getIntOption(options, "writeBatch", 1 << 20);
+        this.checkpointIntervalInMB = Utils.getIntOption(options, "checkpoint", 64);
+        this.lingerMillis = Utils.getIntOption(options, "linger", 1000);
+        this.statsIntervalMillis = Utils.getIntOption(options, "stats", 1000);
+        this.ackDelayMillis = Utils.getIntOption(options, "ackDelay", 5);
+        this.ackEvery = Utils.getIntOption(options, "ackEvery", 2);
+        this.serverMode = acceptor != null || Utils.getBooleanOption(options, "server", false);
+        String threads = options.getOrDefault("threads", "loop");
+        if (!threads.equals("loop") && !threads.equals("session")) {
+            throw new IllegalArgumentException("threads must be loop or session");
+        }
+        if (threads.equals("session") && (!serverMode || acceptor != null)) {
+            throw new IllegalArgumentException("threads=session needs server=true and receives files");
+        }
+        // a single transfer only ever reaches one of the sockets
+        this.numOfWorkers = serverMode ? Math.max(1, Utils.getIntOption(options, "workers", 1)) : 1;
+        File receiverLogFile = new File(System.getProperty("user.dir")
                 + System.getProperty("file.separator") + "receiverLog.txt");
-        receiverLogFile.createNewFile();
-        this.logFOS = new FileOutputStream(receiverLogFile);
+        this.eventLog = new EventLog(receiverLogFile,
+                EventLog.Level.parse(options.getOrDefault("log", "info")), LOG_RING_SIZE, System.out);
+
+        if (threads.equals("session")) {
+            this.sessionDispatcher = new SessionDispatcher(localAddress);
+            this.receiverPort = sessionDispatcher.getLocalPort();
+        } else {
+            this.sessionDispatcher = null;
+            // init the UDP sockets, one per event loop, all bound to the receiver port,
+            // with port 0 the others share the port the first one has been given
+            eventLoops.add(new EventLoop(0, localAddress));
+            this.receiverPort = eventLoops.get(0).getLocalPort();
+            for (int i = 1; i < numOfWorkers; i++) {
+                eventLoops.add(new EventLoop(i, new InetSocketAddress(serverAddress, receiverPort)));
+            }
+        }
 
-        String temp = "received message are stored in " + filename + "\n"
+        log((acceptor != null ? "received streams are handed to the application"
+                : "received message are stored in " + filename
+                + (serverMode ? ".<connection ID>, or .<size>.<source id> of a resumable file" : "")) + "\n"
                 + "receiver port: " + receiverPort
                 + ", sender port: " + senderPort + "\n"
                 + "incoming packets loss probability is set to " + flp + "\n"
-                + "outgoing packets loss probability is set to " + rlp + "\n\n";
-        System.out.print(temp);
-        logFOS.write(temp.getBytes());
+                + "outgoing packets loss probability is set to " + rlp);
+    }
 
-        // init the UDP socket
-        // define socket for the server side and bind address
-        this.receiverSocket = new DatagramSocket(receiverPort, serverAddress);
+    public InetSocketAddress getLocalAddress() {
+        return new InetSocketAddress(serverAddress, receiverPort);
     }
 
     private boolean randomDropIncomingData() {
@@ -95,31 +208,432 @@ public class Receiver {
         return random.nextFloat() < this.rlp;
     }
 
-    private void writeDataIntoFile() throws IOException {
-        if (!dataBuffer.containsKey(writeNext)) {
+    private void log(String message) {
+        eventLog.message(EventLog.Level.INFO, message);
+    }
+
+    /*
+    run every event loop, the first one on the calling thread.
+    Without server=true it returns once the first transfer is done
+     */
+    public void run() throws IOException {
+        if (sessionDispatcher != null) {
+            sessionDispatcher.run();
+            eventLog.close();
+            return;
+        }
+        List<Thread> workerThreads = new ArrayList<>();
+        for (int i = 1; i < eventLoops.size(); i++) {
+            EventLoop eventLoop = eventLoops.get(i);
+            Thread thread = new Thread(() -> {
+                try {
+                    eventLoop.run();
+                } catch (IOException e) {
+                    Logger.getLogger(Receiver.class.getName()).log(Level.SEVERE, "event loop failed", e);
+                }
+            }, "receiver-worker-" + i);
+            thread.start();
+            workerThreads.add(thread);
+        }
+        eventLoops.get(0).run();
+        for (Thread thread : workerThreads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        eventLog.close();
+    }
+
+    // make run return soon, from any thread, the sessions that are still open are closed
+    public void stop() {
+        stopped = true;
+        for (EventLoop eventLoop : eventLoops) {
+            eventLoop.selector.wakeup();
+        }
+        if (sessionDispatcher != null) {
+            sessionDispatcher.stop();
+        }
+    }
+
+    /*
+    the checks of a datagram of length bytes received into the buffer of
+    header before it is handed to a session, false if it is dropped
+     */
+    private boolean isValidSegment(STPHeader header, int length) {
+        if (!header.isSupportedVersion(length)) {
+            if (eventLog.isEnabled(EventLog.Level.DEBUG)) {
+                eventLog.message(EventLog.Level.DEBUG, "drop pkt with unsupported header version "
+                        + header.getVersion());
+            }
+            return false;
+        }
+        if (!header.isComplete(length)) {
+            if (eventLog.isEnabled(EventLog.Level.DEBUG)) {
+                eventLog.message(EventLog.Level.DEBUG, "drop truncated pkt of " + length
+                        + " bytes, the header announces " + header.getSegmentLength());
+            }
+            return false;
+        }
+        return true;
+    }
+
+    /*
+    a finished session waits lingerMillis for a FIN whose ACK was lost,
+    every FIN that comes again starts the linger over
+     */
+    private long deadlineOf(ReceiverSession session) {
+        if (session.isReset()) {
+            return 0;
+        }
+        return session.getLastActivity() + (session.isFinished() ? lingerMillis : SESSION_IDLE_MILLIS);
+    }
+
+    // log why a session whose deadline has passed is closed, and its counters
+    private void logExpired(ReceiverSession session) {
+        String reason = session.isStreamClosed() ? "the stream has been closed by the application"
+                : session.isReset() ? "RESET"
+                : session.isFinished() ? "no FIN for " + lingerMillis + " ms after the ACK of FIN"
+                : "idle for " + SESSION_IDLE_MILLIS + " ms";
+        log("connection " + session.getConnId() + ": " + reason + ", closing "
+                + session.getOutputName() + "...");
+        log(session.getMetrics().toStatsLine());
+    }
+
+    /*
+    the file a transfer is stored in, the stripes of a transfer share one.
+    In server mode a transfer that asks to resume is named after the size
+    and the id of the file it sends, so a sender that has been restarted
+    with another connId finds the file and its checkpoint again
+     */
+    private String outputNameOf(int connId, STPOptions optionsOfSYN) {
+        if (!serverMode) {
+            return filename;
+        }
+        Stripe stripe = optionsOfSYN.getStripe();
+        if (stripe != null) {
+            return filename + "." + Integer.toUnsignedString(stripe.getTransferId());
+        }
+        if (optionsOfSYN.getResumeSourceSize() >= 0) {
+            return filename + "." + optionsOfSYN.getResumeSourceSize()
+                    + "." + Long.toUnsignedString(optionsOfSYN.getResumeSourceId());
+        }
+        return filename + "." + Integer.toUnsignedString(connId);
+    }
+
+    // the stripes of a transfer share one file, the receiver writes each one at its offset
+    private ReceiverSession createFileSession(SessionKey key, STPOptions optionsOfSYN, int receiveBufferSize,
+                                              String servedBy) throws IOException {
+        Stripe stripe = optionsOfSYN.getStripe();
+        String name = outputNameOf(key.connId, optionsOfSYN);
+        File fileReceived = new File(System.getProperty("user.dir")
+                + System.getProperty("file.separator") + name);
+        ReceiverSession session = new ReceiverSession(key.connId, key.senderAddress, fileReceived, stripe,
+                writeBatch, fsyncPolicy, fsyncIntervalInMB, checkpointIntervalInMB, BUFFERSIZE - Utils.HEADER_LENGTH,
+                receiveBufferSize, ackDelayMillis, ackEvery, eventLog);
+        log("connection " + key.connId + " from " + key.senderAddress
+                + " " + servedBy + ", storing " + (stripe == null ? "" : stripe + " ")
+                + "into " + name);
+        return session;
+    }
+
+    // send the reply in reply through channel, session is null for a reply outside of a session
+    private void sendReply(DatagramChannel channel, ByteBuffer reply, ReceiverSession session, int connId,
+                           int replyACK, SocketAddress destination) throws IOException {
+        if (randomDropACK()) {
+            if (session != null) {
+                session.getMetrics().onAckDropped();
+            }
+            eventLog.event(EventLog.Event.DROP_ACK, connId, replyACK);
             return;
         }
+        if (session != null) {
+            session.getMetrics().onAckSent();
+        }
+
+        eventLog.event(EventLog.Event.SEND_ACK, connId, replyACK);
+        // ACKs are cumulative, if the socket buffer is full the next one makes up for this one
+        channel.send(reply, destination);
+    }
+
+    /*
+    a session is identified by the address and port of its sender and the connection ID.
+    The event loop looks sessions up with one reused key, a key in the map is never changed
+     */
+    private static final class SessionKey {
+        private InetSocketAddress senderAddress;
+        private int connId;
+
+        SessionKey(InetSocketAddress senderAddress, int connId) {
+            set(senderAddress, connId);
+        }
+
+        SessionKey set(InetSocketAddress senderAddress, int connId) {
+            this.senderAddress = senderAddress;
+            this.connId = connId;
+            return this;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof SessionKey)) {
+                return false;
+            }
+            SessionKey other = (SessionKey) o;
+            return connId == other.connId && senderAddress.equals(other.senderAddress);
+        }
 
-        while (this.writeNext <= this.latestInOrderSeqNo) {
-            byte[] data = dataBuffer.get(this.writeNext);
-            recFileFOS.write(data);
-            recFileFOS.flush();
-            debugMessage = "write content: " + Arrays.toString(data) + "\n";
-            System.out.print(debugMessage);
-            logFOS.write(debugMessage.getBytes());
-            writeNext += data.length;
+        @Override
+        public int hashCode() {
+            return 31 * senderAddress.hashCode() + connId;
         }
     }
 
-    public void run() throws IOException{
+    /*
+    one thread, one selector, one socket: wait until datagrams arrive, then
+    handle all of them before waiting again. The sessions of the socket are
+    only touched by this thread, so they need no locks. Every datagram is
+    received into the same pooled buffer, decoded in place, and answered
+    from the same reply buffer
+     */
+    private class EventLoop {
+        private final int id;
+        private final DatagramChannel channel;
+        private final Selector selector;
+        private final Map<SessionKey, ReceiverSession> sessions = new HashMap<>();
+        private final ByteBuffer receiveBuffer = BufferPool.SHARED.acquire(BUFFERSIZE);
+        private final STPHeader header = new STPHeader().wrap(receiveBuffer);
+        // large enough for the SACK blocks of an ACK and the options of the ACK of SYN
+        private final ByteBuffer replyBuffer = BufferPool.SHARED.acquire(Utils.HEADER_LENGTH + 64);
+        private final STPHeader replyHeader = new STPHeader().wrap(replyBuffer);
+        private final SessionKey lookupKey = new SessionKey(null, 0);
+        // without server mode the loop ends once the sessions of its first transfer have closed
+        private boolean hadSession = false;
+        private int singleTransferId;
+        // the file the single transfer sends, -1 unless it may be resumed
+        private long singleSourceSize = -1;
+        private long singleSourceId;
+        // the stripes of the single transfer whose SYN has not arrived yet
+        private final Set<Integer> missingStripes = new HashSet<>();
+        private long nextStatsMillis = System.currentTimeMillis() + statsIntervalMillis;
+        // the streams whose application has closed its socket, added by the thread of the application
+        private final Queue<SessionKey> closedStreams = new ConcurrentLinkedQueue<>();
+
+        EventLoop(int id, InetSocketAddress localAddress) throws IOException {
+            this.id = id;
+            this.channel = DatagramChannel.open();
+            if (numOfWorkers > 1) {
+                if (!channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                    throw new IllegalArgumentException("workers > 1 needs SO_REUSEPORT");
+                }
+                channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            channel.bind(localAddress);
+            channel.configureBlocking(false);
+            this.selector = Selector.open();
+            channel.register(selector, SelectionKey.OP_READ);
+        }
+
+        int getLocalPort() throws IOException {
+            return ((InetSocketAddress) channel.getLocalAddress()).getPort();
+        }
+
+        void run() throws IOException {
+            while (!stopped && (serverMode || !hadSession || !missingStripes.isEmpty() || !sessions.isEmpty())) {
+                // wake up for the earliest session deadline, a timeout of 0 waits for a datagram
+                long timeout = 0;
+                long now = System.currentTimeMillis();
+                for (ReceiverSession session : sessions.values()) {
+                    long untilDeadline = Math.max(1, deadlineOf(session) - now);
+                    if (session.getAckDeadline() != 0) {
+                        untilDeadline = Math.min(untilDeadline, Math.max(1, session.getAckDeadline() - now));
+                    }
+                    timeout = timeout == 0 ? untilDeadline : Math.min(timeout, untilDeadline);
+                }
+                if (statsIntervalMillis > 0 && !sessions.isEmpty()) {
+                    timeout = Math.min(timeout, Math.max(1, nextStatsMillis - now));
+                }
+                selector.select(timeout);
+                selector.selectedKeys().clear();
+
+                while (true) {
+                    receiveBuffer.clear();
+                    SocketAddress source = channel.receive(receiveBuffer);
+                    if (source == null) {
+                        break;
+                    }
+                    onDatagram((InetSocketAddress) source, receiveBuffer.position());
+                }
+                sendDelayedAcks();
+                resumeStreams();
+                closeStreams();
+                closeExpiredSessions();
+                logStatsIfDue();
+            }
+            for (ReceiverSession session : sessions.values()) {
+                log("connection " + session.getConnId() + ": receiver stopped, closing "
+                        + session.getOutputName() + "...");
+                sendReset(session);
+                session.close();
+            }
+            sessions.clear();
+            selector.close();
+            channel.close();
+            BufferPool.SHARED.release(receiveBuffer);
+            BufferPool.SHARED.release(replyBuffer);
+        }
+
+        private void closeExpiredSessions() throws IOException {
+            long now = System.currentTimeMillis();
+            Iterator<ReceiverSession> iterator = sessions.values().iterator();
+            while (iterator.hasNext()) {
+                ReceiverSession session = iterator.next();
+                if (deadlineOf(session) > now) {
+                    continue;
+                }
+                logExpired(session);
+                sendReset(session);
+                session.close();
+                iterator.remove();
+            }
+        }
+
+        // a stream that closes before its FIN tells the sender, which would resend until it gives up otherwise
+        private void sendReset(ReceiverSession session) throws IOException {
+            if (session.createReset(replyBuffer)) {
+                log("connection " + session.getConnId() + ": sending RESET");
+                channel.send(replyBuffer, session.getSenderAddress());
+            }
+        }
+
+        // the sessions of the sockets the application has closed are reset by closeExpiredSessions
+        private void closeStreams() {
+            SessionKey key;
+            while ((key = closedStreams.poll()) != null) {
+                ReceiverSession session = sessions.get(key);
+                if (session != null) {
+                    session.closeStream();
+                }
+            }
+        }
+
+        // the delayed ACKs whose time has come, the next segment did not arrive in time
+        private void sendDelayedAcks() throws IOException {
+            long now = System.currentTimeMillis();
+            for (ReceiverSession session : sessions.values()) {
+                long ackDeadline = session.getAckDeadline();
+                if (ackDeadline == 0 || ackDeadline > now) {
+                    continue;
+                }
+                if (session.createDelayedAck(replyBuffer)) {
+                    sendReply(session, session.getConnId(), session.getLastReplyACK(), session.getSenderAddress());
+                }
+            }
+        }
+
+        // the streams whose application has read, what waited for room in the pipe is written now
+        private void resumeStreams() throws IOException {
+            for (ReceiverSession session : sessions.values()) {
+                if (session.isStreamBlocked() && session.resumeStream(replyBuffer)) {
+                    sendReply(session, session.getConnId(), session.getLastReplyACK(), session.getSenderAddress());
+                }
+            }
+        }
+
+        private void logStatsIfDue() {
+            if (statsIntervalMillis <= 0) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            if (now < nextStatsMillis) {
+                return;
+            }
+            nextStatsMillis = now + statsIntervalMillis;
+            if (!eventLog.isEnabled(EventLog.Level.INFO)) {
+                return;
+            }
+            for (ReceiverSession session : sessions.values()) {
+                log(session.getMetrics().toStatsLine());
+            }
+        }
+
+        /*
+        without server mode only the first transfer is received, all of its
+        stripes if it is striped, every stripe once. A sender that has been
+        restarted to resume the transfer may have another connId, it is
+        told by the size and the id of the file it sends
+         */
+        private boolean isPartOfSingleTransfer(int transferId, STPOptions optionsOfSYN) {
+            Stripe stripe = optionsOfSYN.getStripe();
+            if (!hadSession) {
+                singleTransferId = transferId;
+                singleSourceSize = optionsOfSYN.getResumeSourceSize();
+                singleSourceId = optionsOfSYN.getResumeSourceId();
+                for (int i = 0; stripe != null && i < stripe.getCount(); i++) {
+                    missingStripes.add(i);
+                }
+            } else if (stripe == null && singleSourceSize >= 0
+                    && optionsOfSYN.getResumeSourceSize() == singleSourceSize
+                    && optionsOfSYN.getResumeSourceId() == singleSourceId) {
+                singleTransferId = transferId;
+                return true;
+            } else if (transferId != singleTransferId || stripe == null) {
+                return false;
+            }
+            return stripe == null || missingStripes.remove(stripe.getIndex());
+        }
+
+        private ReceiverSession createSession(SessionKey key, STPOptions optionsOfSYN) throws IOException {
+            if (acceptor != null) {
+                return createStreamSession(key);
+            }
+            if (optionsOfSYN.getStripe() == null) {
+                takeOver(outputNameOf(key.connId, optionsOfSYN));
+            }
+            return createFileSession(key, optionsOfSYN, channel.getOption(StandardSocketOptions.SO_RCVBUF),
+                    "on worker " + id);
+        }
 
-        while (true) {
-            // try to receive any incoming message from the sender
-            byte[] buffer = new byte[BUFFERSIZE];
-            DatagramPacket incomingPacket =
-                    new DatagramPacket(buffer, buffer.length);
-            receiverSocket.receive(incomingPacket);
+        /*
+        a sender that has been restarted, from another port or with another
+        connId, goes on with the file of the session before it. That session
+        is closed first, so its checkpoint is on disk when the new one looks
+        for it. With workers > 1 only a session of this worker is found
+         */
+        private void takeOver(String name) throws IOException {
+            Iterator<ReceiverSession> iterator = sessions.values().iterator();
+            while (iterator.hasNext()) {
+                ReceiverSession session = iterator.next();
+                if (session.getStripe() == null && session.getOutputName().equals(name)) {
+                    log("connection " + session.getConnId() + ": taken over by a new connection, closing "
+                            + name + "...");
+                    log(session.getMetrics().toStatsLine());
+                    session.close();
+                    iterator.remove();
+                }
+            }
+        }
+
+        // the pipe of the stream is read by the application through the ReliableUdpSocket
+        private ReceiverSession createStreamSession(SessionKey key) throws IOException {
+            Pipe pipe = Pipe.open();
+            ReliableUdpSocket socket = new ReliableUdpSocket(key.connId, key.senderAddress, pipe.source(), () -> {
+                closedStreams.add(key);
+                selector.wakeup();
+            });
+            ReceiverSession session = new ReceiverSession(key.connId, key.senderAddress, pipe.sink(),
+                    socket::abort, BUFFERSIZE - Utils.HEADER_LENGTH,
+                    channel.getOption(StandardSocketOptions.SO_RCVBUF), ackDelayMillis, ackEvery, eventLog);
+            session.watchStream(selector);
+            log("connection " + key.connId + " from " + key.senderAddress
+                    + " on worker " + id + ", handing the stream to the application");
+            acceptor.accept(socket);
+            return session;
+        }
 
+        private void onDatagram(InetSocketAddress source, int length) throws IOException {
             /*
             //todo: comment this
             //@ manual control packet lost, for debug usage
@@ -130,161 +644,354 @@ public class Receiver {
 
             //@random control packet lost
             boolean dropIncomingData = randomDropIncomingData();
-            boolean dropACK = randomDropACK();
 
-            byte[] stpSegment = incomingPacket.getData();
-            short recSeqNo = Utils.getSeqNo(stpSegment);
-            short recType = Utils.getType(stpSegment);
-            byte[] recData = Utils.getData(stpSegment);
-            recData = filterNullValue(recData);
-            this.clientAddress = incomingPacket.getAddress();
+            if (!isValidSegment(header, length)) {
+                return;
+            }
+            // the segment ends where the payload ends, whatever follows it in the datagram
+            length = header.getSegmentLength();
+            int connId = header.getConnId();
+            int recSeqNo = header.getSeqNo();
+            short recType = header.getType();
 
             if (dropIncomingData) {
-                debugMessage = "drop packet with seqNo " + recSeqNo + "\n";
-                System.out.print(debugMessage);
-                logFOS.write(debugMessage.getBytes());
-                continue;
-            }
-
-            debugMessage = "receive pkt with seqNo " + recSeqNo
-                    + " ,content: " + Arrays.toString(recData) + "\n";
-            System.out.print(debugMessage);
-            logFOS.write(debugMessage.getBytes());
-
-            DatagramPacket replyPacket = recDataAndCreateReplyPacket(recType, recSeqNo, recData);
-            if (!this.writeNextHasBeenInit &&
-                    this.latestInOrderSeqNo != this.seqNoOfSYN) {
-                this.writeNext = (short) (this.seqNoOfSYN + 1);
-                this.writeNextHasBeenInit = true;
-            }
-            writeDataIntoFile();
-
-            if (dropACK) {
-                debugMessage = "drop ACK " + debug_replyACK + "\n";
-                System.out.print(debugMessage);
-                logFOS.write(debugMessage.getBytes());
-                continue;
-            }
-
-            debugMessage = "sending ack " + debug_replyACK + "\n";
-            System.out.print(debugMessage);
-            logFOS.write(debugMessage.getBytes());
-            receiverSocket.send(replyPacket);
-
-            if (this.receiveFIN) {
-                debugMessage = "ACK of FIN has been sent, " +
-                        "to avoid this ACK get lost \n" +
-                        "on the way to the sender, receiver will " +
-                        "wait for 3 seconds \nfor the possible " +
-                        "FIN from sender, then receiver will close.\n";
-                System.out.print(debugMessage);
-                logFOS.write(debugMessage.getBytes());
-                this.receiverSocket.setSoTimeout(3000);
+                // counted by the session, a dropped segment has no other trace
+                ReceiverSession session = sessions.get(lookupKey.set(source, connId));
+                if (session != null) {
+                    session.getMetrics().onDropped();
+                }
+                eventLog.event(EventLog.Event.DROP_SEGMENT, connId, recSeqNo);
                 return;
             }
-        }
-    }
 
-    private byte[] filterNullValue(byte[] data) {
-        int nullValuePosition = 0;
-        for (int i = 0; i < data.length; i++) {
-            if (data[i] == 0) {
-                nullValuePosition = i;
-                break;
+            eventLog.event(EventLog.Event.RECEIVE_SEGMENT, connId, recType, recSeqNo, header.getPayloadLength());
+
+            // the payload is read in place
+            receiveBuffer.limit(length).position(Utils.HEADER_LENGTH);
+            int replyACK;
+            ReceiverSession session = null;
+            if (recType == Utils.PROBE) {
+                // echo the probe, so the sender knows a datagram of this size gets through,
+                // it comes before the SYN, so it needs no session
+                replyACK = header.getPayloadLength();
+                replyBuffer.clear();
+                replyHeader.write(Utils.PROBE, connId, 0, replyACK, 0);
+                replyBuffer.limit(Utils.HEADER_LENGTH);
+            } else {
+                session = sessions.get(lookupKey.set(source, connId));
+                if (session == null && recType == Utils.SYN) {
+                    SessionKey key = new SessionKey(source, connId);
+                    STPOptions optionsOfSYN = STPOptions.decode(Utils.getData(receiveBuffer, length));
+                    Stripe stripe = optionsOfSYN.getStripe();
+                    int transferId = stripe == null ? connId : stripe.getTransferId();
+                    if (acceptor != null && stripe != null) {
+                        log("connection " + connId + ": a stream is not striped, dropping the SYN of " + stripe);
+                        return;
+                    }
+                    if (!serverMode && !isPartOfSingleTransfer(transferId, optionsOfSYN)) {
+                        log("connection " + connId + ": not part of the single transfer, "
+                                + "start the receiver with server=true for more");
+                        return;
+                    }
+                    session = createSession(key, optionsOfSYN);
+                    sessions.put(key, session);
+                    hadSession = true;
+                }
+                if (session == null) {
+                    eventLog.event(EventLog.Event.DROP_UNKNOWN, connId, recSeqNo);
+                    return;
+                }
+                if (!session.recDataAndCreateReplySegment(recType, recSeqNo, header.getAckNo(),
+                        receiveBuffer, replyBuffer)) {
+                    return;
+                }
+                replyACK = session.getLastReplyACK();
             }
+            sendReply(session, connId, replyACK, source);
         }
 
-        // if the data[0] is null, this code also works,
-        // create an empty array
-        byte[] arr = new byte[nullValuePosition];
-        System.arraycopy(data, 0, arr, 0, nullValuePosition);
-        return arr;
-
+        // send the reply in the reply buffer, session is null for a reply outside of a session
+        private void sendReply(ReceiverSession session, int connId, int replyACK,
+                               SocketAddress destination) throws IOException {
+            Receiver.this.sendReply(channel, replyBuffer, session, connId, replyACK, destination);
+        }
     }
 
-    private DatagramPacket recDataAndCreateReplyPacket(short recType, short recSeqNo, byte[] recData) throws IOException {
-        byte[] replySegment = new byte[0];
-        short replyACK;
-        switch (recType) {
-            case Utils.DATA:
-                if (!dataBuffer.containsKey(recSeqNo)) {
-                    this.dataBuffer.put(recSeqNo, recData);
-                }
+    /*
+    threads=session: one thread receives every datagram of the port and
+    hands it to the thread of its session, which handles them one after
+    the other and blocks in between, like the receiver of a single
+    transfer. A session thread is a virtual thread where the JVM has them,
+    so a waiting session holds no OS thread, and thousands of sessions
+    share a few carrier threads. A datagram is copied out of the receive
+    buffer into a pooled buffer of its size, the session thread gives it back
+     */
+    private class SessionDispatcher {
+        private final DatagramChannel channel;
+        private final ExecutorService sessionThreads = Utils.newThreadPerTaskExecutor("receiver-session-");
+        // written by the dispatcher, a session thread only removes its own entry
+        private final Map<SessionKey, SessionThread> sessions = new ConcurrentHashMap<>();
+        private final ByteBuffer receiveBuffer = BufferPool.SHARED.acquire(BUFFERSIZE);
+        private final STPHeader header = new STPHeader().wrap(receiveBuffer);
+        // the echo of a PROBE, every other reply is sent by a session thread
+        private final ByteBuffer replyBuffer = BufferPool.SHARED.acquire(Utils.HEADER_LENGTH);
+        private final STPHeader replyHeader = new STPHeader().wrap(replyBuffer);
+        private final SessionKey lookupKey = new SessionKey(null, 0);
+
+        SessionDispatcher(InetSocketAddress localAddress) throws IOException {
+            // receive blocks, the session threads send through the same channel
+            this.channel = DatagramChannel.open();
+            channel.bind(localAddress);
+        }
 
-                this.latestInOrderSeqNo = updateLatestInOrderSeqNo();
+        int getLocalPort() throws IOException {
+            return ((InetSocketAddress) channel.getLocalAddress()).getPort();
+        }
 
-                if (this.latestInOrderSeqNo != this.seqNoOfSYN) {
-                    int len = dataBuffer.get(latestInOrderSeqNo).length;
-                    replyACK = (short) (this.latestInOrderSeqNo + len);
-                } else {
-                    replyACK = (short) (this.latestInOrderSeqNo + 1);
+        void run() throws IOException {
+            log("a thread per session, " + (Utils.hasVirtualThreads() ? "virtual" : "platform") + " threads");
+            try {
+                while (!stopped) {
+                    receiveBuffer.clear();
+                    SocketAddress source;
+                    try {
+                        source = channel.receive(receiveBuffer);
+                    } catch (ClosedChannelException e) {
+                        // closed by stop
+                        break;
+                    }
+                    onDatagram((InetSocketAddress) source, receiveBuffer.position());
                 }
-                replySegment = Utils.createSTPSegment(Utils.ACK, replyACK, "".getBytes());
-                this.debug_replyACK = replyACK;
-                break;
+            } finally {
+                // every session thread is interrupted, closes its session and returns
+                sessionThreads.shutdownNow();
+                try {
+                    sessionThreads.awaitTermination(SESSION_IDLE_MILLIS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                channel.close();
+                BufferPool.SHARED.release(receiveBuffer);
+                BufferPool.SHARED.release(replyBuffer);
+            }
+        }
 
-            case Utils.SYN:
-                this.seqNoOfSYN = recSeqNo;
-                this.latestInOrderSeqNo = this.seqNoOfSYN;
-                replyACK = (short) (recSeqNo + 1);
-                replySegment = Utils.createSTPSegment(Utils.ACK,
-                        replyACK, "".getBytes());
-                this.connectionIsEstablished = true;
-                this.debug_replyACK = replyACK;
-                break;
+        // unblock the receive of run
+        void stop() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                Logger.getLogger(Receiver.class.getName()).log(Level.WARNING, "closing the channel failed", e);
+            }
+        }
 
-            case Utils.FIN:
-                this.seqNoOfFIN = recSeqNo;
-                replyACK = (short) (recSeqNo + 1);
-                replySegment = Utils.createSTPSegment(Utils.ACK,
-                        replyACK, "".getBytes());
-                this.debug_replyACK = replyACK;
-                this.receiveFIN = true;
-                break;
+        private void onDatagram(InetSocketAddress source, int length) throws IOException {
+            boolean dropIncomingData = randomDropIncomingData();
+            if (!isValidSegment(header, length)) {
+                return;
+            }
+            length = header.getSegmentLength();
+            int connId = header.getConnId();
+            int recSeqNo = header.getSeqNo();
+            short recType = header.getType();
 
-            case Utils.RESET:
-                debugMessage = "receive RESET, closing...\n";
-                System.out.print(debugMessage);
-                logFOS.write(debugMessage.getBytes());
-                System.exit(0);
-        }
+            SessionThread sessionThread = sessions.get(lookupKey.set(source, connId));
+            if (dropIncomingData) {
+                // the dispatcher is the only one that counts dropped segments
+                if (sessionThread != null) {
+                    sessionThread.session.getMetrics().onDropped();
+                }
+                eventLog.event(EventLog.Event.DROP_SEGMENT, connId, recSeqNo);
+                return;
+            }
 
-        return createSTPPacket(replySegment);
-    }
+            eventLog.event(EventLog.Event.RECEIVE_SEGMENT, connId, recType, recSeqNo, header.getPayloadLength());
 
-    private short updateLatestInOrderSeqNo() {
-        if (this.latestInOrderSeqNo == this.seqNoOfSYN) {
-            short nextSeqNo = (short) (this.latestInOrderSeqNo + 1);
-            if (this.dataBuffer.containsKey(nextSeqNo)) {
-                this.latestInOrderSeqNo = nextSeqNo;
-            } else {
-                //otherwise, do not change the latestInOrderSeqNo
-                return this.latestInOrderSeqNo;
+            if (recType == Utils.PROBE) {
+                int replyACK = header.getPayloadLength();
+                replyBuffer.clear();
+                replyHeader.write(Utils.PROBE, connId, 0, replyACK, 0);
+                replyBuffer.limit(Utils.HEADER_LENGTH);
+                sendReply(channel, replyBuffer, null, connId, replyACK, source);
+                return;
+            }
+            if (sessionThread == null && recType == Utils.SYN) {
+                SessionKey key = new SessionKey(source, connId);
+                receiveBuffer.limit(length).position(Utils.HEADER_LENGTH);
+                STPOptions optionsOfSYN = STPOptions.decode(Utils.getData(receiveBuffer, length));
+                SessionThread previous = optionsOfSYN.getStripe() == null
+                        ? takeOver(outputNameOf(connId, optionsOfSYN)) : null;
+                ReceiverSession session = createFileSession(key, optionsOfSYN,
+                        channel.getOption(StandardSocketOptions.SO_RCVBUF), "on a session thread");
+                sessionThread = new SessionThread(key, session, previous);
+                sessions.put(key, sessionThread);
+                sessionThreads.execute(sessionThread);
+            }
+            if (sessionThread == null) {
+                eventLog.event(EventLog.Event.DROP_UNKNOWN, connId, recSeqNo);
+                return;
+            }
+
+            ByteBuffer datagram = BufferPool.SHARED.acquire(length);
+            receiveBuffer.limit(length).position(0);
+            datagram.put(receiveBuffer).flip();
+            if (!sessionThread.queue.offer(datagram)) {
+                // the session thread is behind, as if the socket buffer had overflowed
+                BufferPool.SHARED.release(datagram);
+                sessionThread.session.getMetrics().onDropped();
+                eventLog.event(EventLog.Event.DROP_SEGMENT, connId, recSeqNo);
             }
         }
 
-        while (true) {
-            int len = dataBuffer.get(latestInOrderSeqNo).length;
-            short nextSeqNo = (short) (latestInOrderSeqNo + len);
-            if (dataBuffer.containsKey(nextSeqNo)) {
-                latestInOrderSeqNo = nextSeqNo;
-            } else {
-                break;
+        /*
+        a sender that has been restarted, from another port or with another
+        connId, goes on with the file of the session before it. That session
+        is stopped, its thread closes it, and the thread of the new session
+        waits for that before it handles the SYN, so the checkpoint of the
+        old session is on disk. return the old session, null if there is none
+         */
+        private SessionThread takeOver(String name) {
+            for (SessionThread sessionThread : sessions.values()) {
+                if (sessionThread.session.getStripe() == null && sessionThread.session.getOutputName().equals(name)
+                        && sessions.remove(sessionThread.key, sessionThread)) {
+                    sessionThread.takeOver();
+                    return sessionThread;
+                }
             }
+            return null;
         }
 
-        return latestInOrderSeqNo;
+        /*
+        the blocking, sequential logic of one session: wait for the next
+        datagram or the next deadline, handle it, reply, until the session
+        expires or the receiver stops
+         */
+        private class SessionThread implements Runnable {
+            private final SessionKey key;
+            private final ReceiverSession session;
+            private final BlockingQueue<ByteBuffer> queue = new ArrayBlockingQueue<>(SESSION_QUEUE_LENGTH);
+            private final STPHeader header = new STPHeader();
+            private final ByteBuffer replyBuffer = BufferPool.SHARED.acquire(Utils.HEADER_LENGTH + 64);
+            private long nextStatsMillis = System.currentTimeMillis() + statsIntervalMillis;
+            // the session this one has taken over, it is closed before this one starts, null if none
+            private final SessionThread previous;
+            // set by the dispatcher when a new session takes this one over
+            private volatile boolean takenOver = false;
+            private final CountDownLatch closed = new CountDownLatch(1);
+
+            SessionThread(SessionKey key, ReceiverSession session, SessionThread previous) {
+                this.key = key;
+                this.session = session;
+                this.previous = previous;
+            }
+
+            // the thread is woken up by an empty datagram, if its queue is full it is busy anyway
+            void takeOver() {
+                this.takenOver = true;
+                queue.offer(TAKE_OVER);
+            }
 
-    }
+            @Override
+            public void run() {
+                try {
+                    if (previous != null) {
+                        previous.closed.await();
+                    }
+                    serve();
+                } catch (InterruptedException e) {
+                    log("connection " + session.getConnId() + ": receiver stopped, closing "
+                            + session.getOutputName() + "...");
+                } catch (IOException e) {
+                    // once stopped, the channel has been closed under a reply
+                    if (!stopped) {
+                        Logger.getLogger(Receiver.class.getName()).log(Level.SEVERE,
+                                "session " + Integer.toUnsignedString(key.connId) + " failed", e);
+                    }
+                } finally {
+                    sessions.remove(key, this);
+                    try {
+                        session.close();
+                    } catch (IOException e) {
+                        Logger.getLogger(Receiver.class.getName()).log(Level.SEVERE, "closing the session failed", e);
+                    }
+                    closed.countDown();
+                    ByteBuffer datagram;
+                    while ((datagram = queue.poll()) != null) {
+                        if (datagram != TAKE_OVER) {
+                            BufferPool.SHARED.release(datagram);
+                        }
+                    }
+                    BufferPool.SHARED.release(replyBuffer);
+                }
+            }
 
-    private DatagramPacket createSTPPacket(byte[] stpSegment) {
-        return Utils.createSTPPacket(stpSegment, this.clientAddress, senderPort);
+            private void serve() throws IOException {
+                while (true) {
+                    long now = System.currentTimeMillis();
+                    long wakeUp = deadlineOf(session);
+                    if (takenOver) {
+                        log("connection " + session.getConnId() + ": taken over by a new connection, closing "
+                                + session.getOutputName() + "...");
+                        log(session.getMetrics().toStatsLine());
+                        return;
+                    }
+                    if (wakeUp <= now) {
+                        logExpired(session);
+                        return;
+                    }
+                    if (session.getAckDeadline() != 0) {
+                        wakeUp = Math.min(wakeUp, session.getAckDeadline());
+                    }
+                    if (statsIntervalMillis > 0) {
+                        wakeUp = Math.min(wakeUp, nextStatsMillis);
+                    }
+                    ByteBuffer datagram;
+                    try {
+                        datagram = queue.poll(Math.max(1, wakeUp - now), TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException e) {
+                        log("connection " + session.getConnId() + ": receiver stopped, closing "
+                                + session.getOutputName() + "...");
+                        return;
+                    }
+                    if (datagram == TAKE_OVER) {
+                        continue;
+                    }
+                    if (datagram != null) {
+                        onDatagram(datagram);
+                        BufferPool.SHARED.release(datagram);
+                    }
+                    now = System.currentTimeMillis();
+                    if (session.getAckDeadline() != 0 && session.getAckDeadline() <= now
+                            && session.createDelayedAck(replyBuffer)) {
+                        sendReply(channel, replyBuffer, session, key.connId, session.getLastReplyACK(),
+                                key.senderAddress);
+                    }
+                    if (statsIntervalMillis > 0 && now >= nextStatsMillis) {
+                        nextStatsMillis = now + statsIntervalMillis;
+                        if (eventLog.isEnabled(EventLog.Level.INFO)) {
+                            log(session.getMetrics().toStatsLine());
+                        }
+                    }
+                }
+            }
+
+            // the datagram has been checked by the dispatcher, its limit is the end of the segment
+            private void onDatagram(ByteBuffer datagram) throws IOException {
+                header.wrap(datagram);
+                datagram.position(Utils.HEADER_LENGTH);
+                if (session.recDataAndCreateReplySegment(header.getType(), header.getSeqNo(), header.getAckNo(),
+                        datagram, replyBuffer)) {
+                    sendReply(channel, replyBuffer, session, key.connId, session.getLastReplyACK(),
+                            key.senderAddress);
+                }
+            }
+        }
     }
 
     public static void main(String[] args) throws IOException, InterruptedException {
         Logger.getLogger(Receiver.class.getName()).log(Level.INFO, "Starting Receiver...");
-        if (args.length != 5) {
-            System.err.println("\n===== Error usage, java Receiver <receiver_port> <sender_port> <FileReceived.txt> <flp> <rlp> =====\n");
+        if (args.length < 5) {
+            System.err.println("\n===== Error usage, java Receiver <receiver_port> <sender_port> <FileReceived.txt> <flp> <rlp> [writeBatch=<bytes>] [fsync=none|fin|<N>] [linger=<ms>] [server=true] [workers=<n>] [log=off|info|debug|trace] [stats=<ms>] [ackDelay=<ms>] [ackEvery=<n>] [threads=loop|session] [checkpoint=<MB>] =====\n");
             return;
         }
 
@@ -294,7 +1001,8 @@ public class Receiver {
         float flp = Float.parseFloat(args[3]);
         float rlp = Float.parseFloat(args[4]);
 
-        Receiver receiver = new Receiver(receiverPort, senderPort, filename, flp, rlp);
+        Receiver receiver = new Receiver(receiverPort, senderPort, filename, flp, rlp,
+                Utils.parseOptionArgs(args, 5));
         receiver.run();
     }
 }
@@ -0,0 +1,167 @@
+/**
+ * The counters behind ReceiverMetricsMBean. A session is only touched by
+ * the thread of its event loop, so like SenderMetrics the fields are
+ * single-writer volatile longs, read by JMX without locking.
+ */
+public class ReceiverMetrics implements ReceiverMetricsMBean {
+    private final int connId;
+    private final long startNanos = System.nanoTime();
+    // set when the FIN arrives, the goodput stops there
+    private volatile long endNanos = 0;
+
+    private volatile long segmentsReceived = 0;
+    private volatile long bytesReceived = 0;
+    private volatile long bytesDelivered = 0;
+    private volatile long outOfOrderSegments = 0;
+    private volatile long duplicateSegments = 0;
+    private volatile long droppedSegments = 0;
+    private volatile long paritySegments = 0;
+    private volatile long recoveredSegments = 0;
+    private volatile int reorderDepth = 0;
+    private volatile int maxReorderDepth = 0;
+    private volatile int reorderCapacity = 0;
+    private volatile long acksSent = 0;
+    private volatile long acksDropped = 0;
+
+    public ReceiverMetrics(int connId) {
+        this.connId = connId;
+    }
+
+    public void finish() {
+        if (endNanos == 0) {
+            endNanos = System.nanoTime();
+        }
+    }
+
+    public void onSegment(int bytes) {
+        segmentsReceived += 1;
+        bytesReceived += bytes;
+    }
+
+    public void onOutOfOrder() {
+        outOfOrderSegments += 1;
+    }
+
+    public void onDuplicate() {
+        duplicateSegments += 1;
+    }
+
+    public void onDropped() {
+        droppedSegments += 1;
+    }
+
+    public void onParity() {
+        paritySegments += 1;
+    }
+
+    public void onRecovered() {
+        recoveredSegments += 1;
+    }
+
+    public void onDelivered(int bytes) {
+        bytesDelivered += bytes;
+    }
+
+    public void updateReorderDepth(int depth, int capacity) {
+        reorderDepth = depth;
+        reorderCapacity = capacity;
+        if (depth > maxReorderDepth) {
+            maxReorderDepth = depth;
+        }
+    }
+
+    public void onAckSent() {
+        acksSent += 1;
+    }
+
+    public void onAckDropped() {
+        acksDropped += 1;
+    }
+
+    @Override
+    public int getConnectionId() {
+        return connId;
+    }
+
+    @Override
+    public long getSegmentsReceived() {
+        return segmentsReceived;
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    @Override
+    public long getBytesDelivered() {
+        return bytesDelivered;
+    }
+
+    @Override
+    public double getGoodputBytesPerSecond() {
+        long end = endNanos != 0 ? endNanos : System.nanoTime();
+        return end > startNanos ? bytesDelivered * 1e9 / (end - startNanos) : 0;
+    }
+
+    @Override
+    public long getOutOfOrderSegments() {
+        return outOfOrderSegments;
+    }
+
+    @Override
+    public long getDuplicateSegments() {
+        return duplicateSegments;
+    }
+
+    @Override
+    public long getDroppedSegments() {
+        return droppedSegments;
+    }
+
+    @Override
+    public long getParitySegments() {
+        return paritySegments;
+    }
+
+    @Override
+    public long getRecoveredSegments() {
+        return recoveredSegments;
+    }
+
+    @Override
+    public int getReorderDepth() {
+        return reorderDepth;
+    }
+
+    @Override
+    public int getMaxReorderDepth() {
+        return maxReorderDepth;
+    }
+
+    @Override
+    public int getReorderCapacity() {
+        return reorderCapacity;
+    }
+
+    @Override
+    public long getAcksSent() {
+        return acksSent;
+    }
+
+    @Override
+    public long getAcksDropped() {
+        return acksDropped;
+    }
+
+    public String toStatsLine() {
+        return "connection " + connId + " stats: received " + bytesReceived + " bytes in "
+                + segmentsReceived + " segments, delivered " + bytesDelivered
+                + String.format(", goodput %.1f KB/s", getGoodputBytesPerSecond() / 1024)
+                + ", out of order " + outOfOrderSegments + ", duplicates " + duplicateSegments
+                + ", dropped " + droppedSegments
+                + (paritySegments == 0 ? "" : ", parity " + paritySegments + ", rebuilt " + recoveredSegments)
+                + ", reorder depth " + reorderDepth + " (max " + maxReorderDepth + ") of " + reorderCapacity
+                + ", ACKs sent " + acksSent + ", dropped " + acksDropped;
+    }
+}
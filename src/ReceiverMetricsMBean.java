@@ -0,0 +1,42 @@
+/**
+ * The live counters of one ReceiverSession, registered with the platform
+ * MBean server as ReliableUDP:type=ReceiverSession,connId=<n>,port=<sender port>.
+ * Segment counts are DATA segments, byte counts are payload bytes.
+ */
+public interface ReceiverMetricsMBean {
+    int getConnectionId();
+
+    long getSegmentsReceived();
+
+    long getBytesReceived();
+
+    // written to the file in order, i.e. what the cumulative ACK covers
+    long getBytesDelivered();
+
+    double getGoodputBytesPerSecond();
+
+    long getOutOfOrderSegments();
+
+    // segments we hold already, or that lie outside of the window
+    long getDuplicateSegments();
+
+    // lost by the simulated forward loss, flp
+    long getDroppedSegments();
+
+    // the FEC parity segments, and the lost segments they rebuilt without a retransmission
+    long getParitySegments();
+
+    long getRecoveredSegments();
+
+    // out-of-order segments in the reorder buffer now, and the most it has held
+    int getReorderDepth();
+
+    int getMaxReorderDepth();
+
+    int getReorderCapacity();
+
+    long getAcksSent();
+
+    // lost by the simulated reverse loss, rlp
+    long getAcksDropped();
+}
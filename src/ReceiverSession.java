@@ -0,0 +1,699 @@
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.Pipe;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import javax.management.ObjectName;
+
+/**
+ * The state of one transfer at the receiver, one per (address, port, connID).
+ * It owns the reorder buffer and the output file of the transfer, the
+ * Receiver's event loop hands it the segments of its connection and
+ * sends the replies it writes. Payloads are read in place from the receive
+ * buffer of the event loop, and replies are written in place into its
+ * reply buffer, so a DATA segment costs no allocation. The session of a stripe writes its range
+ * of the file, the other stripes write theirs through their own sessions.
+ * The session of a ReliableUdpServerSocket has no file, it keeps every
+ * segment in the reorder buffer until it has been written into the pipe
+ * the application reads, so what the application has not read yet is
+ * not ACKed.
+ * A session whose sender asks to resume keeps a ReceiveCheckpoint next
+ * to the file, a new SYN of the same file goes on from its prefix.
+ */
+public class ReceiverSession {
+    private final int connId;
+    private final InetSocketAddress senderAddress;
+    // null for a stream
+    private final File fileReceived;
+    // null if the connection sends the whole file
+    private final Stripe stripe;
+    // the file offset of the first byte of the connection, the prefix a resumed transfer already has
+    private long fileOffset;
+    // null for a stream
+    private final FileChannel fileChannel;
+    private final ReceiveFileWriter fileWriter;
+    // save a checkpoint every this many MB of in-order data, 0 never resumes
+    private final int checkpointIntervalInMB;
+    // null unless the sender asked to resume in the SYN
+    private ReceiveCheckpoint checkpoint;
+    private long nextCheckpointOffset;
+    // instead of a file, the pipe of a ReliableUdpSocket, non-blocking, null for a file
+    private final Pipe.SinkChannel streamSink;
+    // called if the stream closes before the FIN, so the reader does not take the end for a complete stream
+    private final Runnable onStreamAbort;
+    // the event loop wakes up once the pipe has room again, registered by watchStream
+    private SelectionKey streamKey;
+    // the in-order head did not fit into the pipe
+    private boolean streamBlocked = false;
+    // the application has closed the stream before the FIN, the sender is told by a RESET
+    private boolean streamClosed = false;
+    private final EventLog eventLog;
+    // the counters of the session, also registered as an MBean for JMX clients
+    private final ReceiverMetrics metrics;
+    private final ObjectName metricsName;
+    // the largest payload we are able to receive and our receive buffer, advertised in the SYN exchange
+    private final int maxSegmentSizeLimit;
+    private final int receiveBufferSize;
+    // delayed ACKs, a full in-order segment is ACKed with the ackEvery-th one after
+    // it or after ackDelayMillis, whatever comes first, 0 ACKs every segment
+    private final int ackDelayMillis;
+    private final int ackEvery;
+    // the sender advertised a window of at least ackEvery full segments, it never waits for a delayed ACK
+    private boolean delayedAckPermitted = false;
+    private int numOfUnackedSegments = 0;
+    // System.currentTimeMillis() by which the delayed ACK is sent, 0 if none is delayed
+    private long ackDeadline = 0;
+
+    // created when the SYN arrives, bounded by the receive buffer we advertise
+    private ReorderBuffer reorderBuffer;
+    private int maxSegmentSize;
+    // the sender permitted SACK blocks in the SYN
+    private boolean sackPermitted = false;
+    // the sender reads the receive window in the seqNo of an ACK, permitted in the SYN
+    private boolean windowAdvertised = false;
+    private final int[] sackBlocks = new int[2 * Utils.MAX_SACK_BLOCKS];
+    // the parity groups of the sender, null unless it asked for FEC in the SYN
+    private FecDecoder fecDecoder;
+    private ByteBuffer rebuiltPayload;
+    // the sender sends compressed blocks, null unless it asked for them in the SYN
+    private BlockInflater blockInflater;
+    private final STPHeader replyHeader = new STPHeader();
+    // the SYN of the current attempt, a copy of it is only ACKed again with the same options
+    private int seqNoOfSYN;
+    private byte[] replyOptionsOfSYN;
+    // the SYN started the transfer over, it replaced the SYN with the seqNo before it
+    private boolean freshSYN = false;
+    private int seqNoOfFIN;
+    private boolean receiveFIN = false;
+    private boolean receiveRESET = false;
+    private int debug_replyACK = -111;
+    // System.currentTimeMillis() of the latest segment
+    private long lastActivity;
+
+    /*
+    the file of an unstriped session is not truncated before the SYN, so
+    the SYN is able to resume the transfer in it
+     */
+    public ReceiverSession(int connId, InetSocketAddress senderAddress, File fileReceived, Stripe stripe,
+                           int writeBatch, ReceiveFileWriter.FsyncPolicy fsyncPolicy, int fsyncIntervalInMB,
+                           int checkpointIntervalInMB, int maxSegmentSizeLimit, int receiveBufferSize,
+                           int ackDelayMillis, int ackEvery, EventLog eventLog) throws IOException {
+        this.connId = connId;
+        this.senderAddress = senderAddress;
+        this.fileReceived = fileReceived;
+        this.streamSink = null;
+        this.onStreamAbort = null;
+        this.stripe = stripe;
+        this.fileOffset = stripe == null ? 0 : stripe.getOffset();
+        this.maxSegmentSizeLimit = maxSegmentSizeLimit;
+        this.receiveBufferSize = receiveBufferSize;
+        this.ackDelayMillis = ackDelayMillis;
+        this.ackEvery = Math.max(1, ackEvery);
+        this.eventLog = eventLog;
+        this.checkpointIntervalInMB = checkpointIntervalInMB;
+        if (stripe == null) {
+            // read to hash the prefix of a checkpoint
+            fileChannel = FileChannel.open(fileReceived.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.READ);
+        } else {
+            // the other stripes may have written their ranges already, so only what
+            // is beyond the end of the file, left from an older transfer, is cut off
+            fileChannel = FileChannel.open(fileReceived.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE);
+            fileChannel.truncate(stripe.getFileSize());
+        }
+        // every session has its own channel, the position of a batch write is not shared
+        this.fileWriter = new ReceiveFileWriter(fileChannel, fileOffset,
+                writeBatch, fsyncPolicy, fsyncIntervalInMB, this::recycleSlotArray);
+        this.lastActivity = System.currentTimeMillis();
+        this.metrics = new ReceiverMetrics(connId);
+        this.metricsName = Utils.registerMBean(metrics, "ReceiverSession", connId,
+                senderAddress.getPort(), eventLog);
+    }
+
+    /*
+    a session that writes into streamSink instead of a file, a stream is
+    neither striped nor compressed. onStreamAbort is called if the session
+    closes before the FIN has arrived
+     */
+    public ReceiverSession(int connId, InetSocketAddress senderAddress, Pipe.SinkChannel streamSink,
+                           Runnable onStreamAbort, int maxSegmentSizeLimit, int receiveBufferSize,
+                           int ackDelayMillis, int ackEvery, EventLog eventLog) throws IOException {
+        this.connId = connId;
+        this.senderAddress = senderAddress;
+        this.fileReceived = null;
+        this.streamSink = streamSink;
+        this.onStreamAbort = onStreamAbort;
+        this.stripe = null;
+        this.fileOffset = 0;
+        this.fileChannel = null;
+        this.fileWriter = null;
+        this.checkpointIntervalInMB = 0;
+        this.maxSegmentSizeLimit = maxSegmentSizeLimit;
+        this.receiveBufferSize = receiveBufferSize;
+        this.ackDelayMillis = ackDelayMillis;
+        this.ackEvery = Math.max(1, ackEvery);
+        this.eventLog = eventLog;
+        streamSink.configureBlocking(false);
+        this.lastActivity = System.currentTimeMillis();
+        this.metrics = new ReceiverMetrics(connId);
+        this.metricsName = Utils.registerMBean(metrics, "ReceiverSession", connId,
+                senderAddress.getPort(), eventLog);
+    }
+
+    public int getConnId() {
+        return connId;
+    }
+
+    public InetSocketAddress getSenderAddress() {
+        return senderAddress;
+    }
+
+    public File getFileReceived() {
+        return fileReceived;
+    }
+
+    // the name of the output for the log
+    public String getOutputName() {
+        return fileReceived == null ? "the stream" : fileReceived.getName();
+    }
+
+    public Stripe getStripe() {
+        return stripe;
+    }
+
+    public int getLastReplyACK() {
+        return debug_replyACK;
+    }
+
+    public ReceiverMetrics getMetrics() {
+        return metrics;
+    }
+
+    public long getLastActivity() {
+        return lastActivity;
+    }
+
+    public long getAckDeadline() {
+        return ackDeadline;
+    }
+
+    // the FIN has been ACKed, the session only waits for a FIN whose ACK was lost
+    public boolean isFinished() {
+        return receiveFIN;
+    }
+
+    // the sender has reset the connection, or the application has closed the stream
+    public boolean isReset() {
+        return receiveRESET || streamClosed;
+    }
+
+    public boolean isStreamClosed() {
+        return streamClosed;
+    }
+
+    // called by the event loop once the application has closed the stream
+    public void closeStream() {
+        if (streamSink != null && !receiveFIN && !receiveRESET && !streamClosed) {
+            eventLog.message(EventLog.Level.INFO, "connection " + connId + ": the stream has been closed by "
+                    + "the application, closing...");
+            this.streamClosed = true;
+        }
+    }
+
+    /*
+    write the RESET that tells the sender of a stream the session is closed
+    before the FIN into reply, ready to be sent, so the sender stops instead
+    of resending until it gives up. return false if the sender needs none
+     */
+    public boolean createReset(ByteBuffer reply) {
+        if (streamSink == null || receiveFIN || receiveRESET) {
+            return false;
+        }
+        reply.clear();
+        replyHeader.wrap(reply).write(Utils.RESET, connId, 0,
+                reorderBuffer == null ? 0 : reorderBuffer.getNextSeqNo(), 0);
+        reply.position(Utils.HEADER_LENGTH).flip();
+        return true;
+    }
+
+    /*
+    an in-order segment is kept in the reorder buffer and written with the
+    next batch, an out-of-order one is written at its file offset right away,
+    so the reorder buffer only remembers that it is there. A segment of an
+    FEC group is added to the parity of its group before it is written.
+    The segments of compressed blocks are kept until they are in order,
+    only the blocks they make up are written
+     */
+    private int putDataIntoBuffer(int recSeqNo, int recAckNo, ByteBuffer payload) throws IOException {
+        int length = payload.remaining();
+        int index = reorderBuffer.indexOf(recSeqNo, length);
+        if (index < 0) {
+            // a duplicate or a segment outside of the window is not kept,
+            // but we still ACK it, the ACK may have been lost
+            metrics.onDuplicate();
+            return index;
+        }
+        if (fecDecoder != null) {
+            fecDecoder.onData(recSeqNo, recAckNo, payload);
+        }
+        if (index > 0) {
+            metrics.onOutOfOrder();
+            if (blockInflater == null && streamSink == null) {
+                fileWriter.writeAt(fileOffset + reorderBuffer.fileOffsetOf(index), payload);
+                if (checkpoint != null) {
+                    checkpoint.markSegment(reorderBuffer.fileOffsetOf(index));
+                }
+            }
+        }
+        reorderBuffer.put(index, payload, length, index == 0 || blockInflater != null || streamSink != null);
+        return index;
+    }
+
+    // move the in-order segments at the head of the reorder buffer to the file writer
+    private void writeDataIntoFile() throws IOException {
+        if (streamSink != null) {
+            writeDataIntoStream();
+            return;
+        }
+        int numOfInOrderSegments = reorderBuffer.countInOrder();
+        for (int i = 0; i < numOfInOrderSegments; i++) {
+            int len = reorderBuffer.getHeadLength();
+            if (blockInflater != null) {
+                ByteBuffer payload = reorderBuffer.takeHead();
+                blockInflater.feed(payload);
+                reorderBuffer.recycle(payload);
+            } else if (reorderBuffer.isHeadInMemory()) {
+                fileWriter.append(reorderBuffer.takeHead());
+            } else {
+                fileWriter.skip(len);
+            }
+            reorderBuffer.releaseHead();
+            metrics.onDelivered(len);
+        }
+        metrics.updateReorderDepth(reorderBuffer.getNumOfFilled(), reorderBuffer.getCapacity());
+        if (fecDecoder != null && numOfInOrderSegments > 0) {
+            fecDecoder.release(reorderBuffer.getNextSeqNo());
+        }
+        if (checkpoint != null && fileOffset + reorderBuffer.getNextFileOffset() >= nextCheckpointOffset) {
+            saveCheckpoint();
+        }
+    }
+
+    // write what is batched, then the checkpoint of what is on disk now
+    private void saveCheckpoint() throws IOException {
+        fileWriter.flush();
+        checkpoint.save(fileWriter.getAppendOffset());
+        this.nextCheckpointOffset = fileWriter.getAppendOffset() + ((long) checkpointIntervalInMB << 20);
+    }
+
+    /*
+    where the data of a new SYN goes: behind the prefix of the checkpoint
+    if the sender asks to resume the file it names, otherwise from byte 0
+    of the truncated file. A stripe always writes its whole range
+     */
+    private void startAttempt(STPOptions senderOptions) throws IOException {
+        if (stripe != null || fileWriter == null) {
+            return;
+        }
+        if (checkpoint != null) {
+            // the sender started over in this session, what the last attempt wrote counts
+            saveCheckpoint();
+        }
+        boolean resume = checkpointIntervalInMB > 0 && senderOptions.getResumeSourceSize() >= 0
+                && senderOptions.getCompressionMethod() == BlockDeflater.STORED;
+        this.checkpoint = null;
+        if (resume && !senderOptions.isResumeFresh()) {
+            this.checkpoint = ReceiveCheckpoint.load(fileReceived, fileChannel,
+                    senderOptions.getResumeSourceSize(), senderOptions.getResumeSourceId());
+        }
+        if (this.checkpoint == null) {
+            fileWriter.flush();
+            fileChannel.truncate(0);
+            Files.deleteIfExists(ReceiveCheckpoint.pathOf(fileReceived));
+            if (resume) {
+                this.checkpoint = new ReceiveCheckpoint(fileReceived, fileChannel,
+                        senderOptions.getResumeSourceSize(), senderOptions.getResumeSourceId());
+            }
+        }
+        this.fileOffset = checkpoint == null ? 0 : checkpoint.getCommittedOffset();
+        fileWriter.restartAt(fileOffset);
+        if (checkpoint != null) {
+            checkpoint.startAttempt(fileOffset, maxSegmentSize);
+            this.nextCheckpointOffset = fileOffset + ((long) checkpointIntervalInMB << 20);
+            eventLog.message(EventLog.Level.INFO, "connection " + connId + ": "
+                    + (fileOffset > 0 ? "resuming at byte " + fileOffset : "checkpoints in " + fileReceived.getName()
+                    + ".ckpt"));
+        }
+    }
+
+    /*
+    write the in-order segments at the head of the reorder buffer into the
+    pipe, as far as it has room. A segment leaves the reorder buffer once
+    all of it has been written, what is left waits until the event loop
+    finds the pipe writable again. return false if no segment was written
+     */
+    private boolean writeDataIntoStream() {
+        if (receiveRESET || streamClosed) {
+            return false;
+        }
+        int numOfInOrderSegments = reorderBuffer.countInOrder();
+        int numOfWritten = 0;
+        try {
+            while (numOfWritten < numOfInOrderSegments) {
+                ByteBuffer payload = reorderBuffer.peekHead();
+                streamSink.write(payload);
+                if (payload.hasRemaining()) {
+                    break;
+                }
+                int len = reorderBuffer.getHeadLength();
+                reorderBuffer.releaseHead();
+                metrics.onDelivered(len);
+                numOfWritten += 1;
+            }
+        } catch (IOException e) {
+            // the application has closed the socket
+            closeStream();
+            return false;
+        }
+        setStreamBlocked(numOfWritten < numOfInOrderSegments);
+        metrics.updateReorderDepth(reorderBuffer.getNumOfFilled(), reorderBuffer.getCapacity());
+        if (fecDecoder != null && numOfWritten > 0) {
+            fecDecoder.release(reorderBuffer.getNextSeqNo());
+        }
+        return numOfWritten > 0;
+    }
+
+    private void setStreamBlocked(boolean blocked) {
+        if (blocked != this.streamBlocked && streamKey != null && streamKey.isValid()) {
+            streamKey.interestOps(blocked ? SelectionKey.OP_WRITE : 0);
+        }
+        this.streamBlocked = blocked;
+    }
+
+    // the selector of the event loop wakes up when the pipe has room again for a blocked stream
+    public void watchStream(Selector selector) throws IOException {
+        this.streamKey = streamSink.register(selector, 0);
+    }
+
+    public boolean isStreamBlocked() {
+        return streamBlocked;
+    }
+
+    /*
+    write what waits for room in the pipe, called once the event loop has
+    found it writable. If the window has moved, the ACK that tells the
+    sender is written into reply, ready to be sent. return false if there is none
+     */
+    public boolean resumeStream(ByteBuffer reply) {
+        if (!streamBlocked || !writeDataIntoStream()) {
+            return false;
+        }
+        writeReplyHeader(reply, reorderBuffer.getNextSeqNo());
+        putSackBlocks(reply, reorderBuffer.getNextSeqNo());
+        replyHeader.setPayloadLength(reply.position() - Utils.HEADER_LENGTH);
+        reply.flip();
+        return true;
+    }
+
+    // put the segment the parity of its group has rebuilt into the reorder buffer, return its seqNo
+    private int putRebuiltSegment() throws IOException {
+        rebuiltPayload.clear();
+        int seqNo = fecDecoder.rebuild(rebuiltPayload);
+        rebuiltPayload.flip();
+        if (putDataIntoBuffer(seqNo, seqNo, rebuiltPayload) >= 0) {
+            metrics.onRecovered();
+        }
+        return seqNo;
+    }
+
+    // put the out-of-order blocks we hold, none if SACK is not permitted or there is no gap
+    private void putSackBlocks(ByteBuffer reply, int recSeqNo) {
+        if (!sackPermitted) {
+            return;
+        }
+        int numOfBlocks = reorderBuffer.getSackBlocks(sackBlocks, Utils.MAX_SACK_BLOCKS, recSeqNo);
+        Utils.putSackBlocks(reply, sackBlocks, numOfBlocks);
+    }
+
+    private void recycleSlotArray(ByteBuffer buffer) {
+        if (reorderBuffer != null) {
+            reorderBuffer.recycle(buffer);
+        }
+    }
+
+    /*
+    the bytes after the cumulative ACK the sender may send, 0 while the
+    head of a stream waits for room in the pipe, so the sender waits too
+    instead of taking the ACKs that do not move for losses
+     */
+    private int receiveWindow() {
+        if (!windowAdvertised || reorderBuffer == null || streamBlocked) {
+            return 0;
+        }
+        return reorderBuffer.getCapacity() * maxSegmentSize;
+    }
+
+    // start a reply without payload in the reply buffer, its seqNo is the receive window
+    private void writeReplyHeader(ByteBuffer reply, int replyACK) {
+        reply.clear();
+        replyHeader.wrap(reply).write(Utils.ACK, connId, receiveWindow(), replyACK, 0);
+        reply.position(Utils.HEADER_LENGTH);
+        this.debug_replyACK = replyACK;
+        // every reply ACKs all we have, including what a delayed ACK was waiting for
+        this.numOfUnackedSegments = 0;
+        this.ackDeadline = 0;
+    }
+
+    /*
+    RFC 1122 4.2.3.2 and RFC 5681 4.2: only a full segment that arrives in
+    order while nothing is held out of order may wait for the next one.
+    Out-of-order segments, duplicates and the segment that fills a gap are
+    ACKed at once, so the sender gets its duplicate ACKs and the ACK of the
+    retransmission without delay, and a short segment, usually the last one
+    of a burst, does not wait for a segment that will not come
+     */
+    private boolean delayAck(int index, int length) {
+        if (!delayedAckPermitted || index != 0 || length != maxSegmentSize
+                || reorderBuffer.getNumOfFilled() != 1) {
+            return false;
+        }
+        numOfUnackedSegments += 1;
+        if (numOfUnackedSegments >= ackEvery) {
+            return false;
+        }
+        if (ackDeadline == 0) {
+            ackDeadline = lastActivity + ackDelayMillis;
+        }
+        return true;
+    }
+
+    /*
+    write the ACK that has been delayed into reply, ready to be sent,
+    called once getAckDeadline() has passed. return false if there is none
+     */
+    public boolean createDelayedAck(ByteBuffer reply) {
+        if (ackDeadline == 0 || reorderBuffer == null) {
+            return false;
+        }
+        writeReplyHeader(reply, reorderBuffer.getNextSeqNo());
+        replyHeader.setPayloadLength(0);
+        reply.flip();
+        return true;
+    }
+
+    /*
+    handle the segment whose payload is the remaining bytes of payload,
+    the reply is written into reply, ready to be sent.
+    return false if there is no reply
+     */
+    public boolean recDataAndCreateReplySegment(short recType, int recSeqNo, int recAckNo, ByteBuffer payload,
+                                                ByteBuffer reply) throws IOException {
+        this.lastActivity = System.currentTimeMillis();
+        int replyACK;
+        switch (recType) {
+            case Utils.DATA:
+                if (this.reorderBuffer == null) {
+                    if (eventLog.isEnabled(EventLog.Level.DEBUG)) {
+                        eventLog.message(EventLog.Level.DEBUG, "connection " + connId
+                                + ": drop pkt with seqNo " + recSeqNo + ", no SYN yet");
+                    }
+                    return false;
+                }
+                int length = payload.remaining();
+                metrics.onSegment(length);
+                int index = putDataIntoBuffer(recSeqNo, recAckNo, payload);
+                boolean rebuilt = fecDecoder != null && fecDecoder.hasRecoverable();
+                if (rebuilt) {
+                    putRebuiltSegment();
+                }
+                // decided before the segment leaves the reorder buffer, it has to be the only one in it
+                boolean delayed = !rebuilt && delayAck(index, length);
+                writeDataIntoFile();
+                if (delayed) {
+                    return false;
+                }
+
+                writeReplyHeader(reply, this.reorderBuffer.getNextSeqNo());
+                putSackBlocks(reply, recSeqNo);
+                break;
+
+            case Utils.SYN:
+                replyACK = recSeqNo + 1;
+                if (this.reorderBuffer != null && recSeqNo == this.seqNoOfSYN) {
+                    // a duplicate or a late copy of the SYN, its ACK may have been lost
+                    writeReplyHeader(reply, replyACK);
+                    reply.put(this.replyOptionsOfSYN);
+                    break;
+                }
+                if (this.reorderBuffer != null && this.freshSYN && recSeqNo + 1 == this.seqNoOfSYN) {
+                    // a late copy of the SYN the sender has given up on, the sender ignores its ACK
+                    return false;
+                }
+                // a new attempt, the sender has been restarted or starts the transfer over
+                this.seqNoOfSYN = recSeqNo;
+                // advertise what we are able to receive, the smaller
+                // maxSegmentSize of the two sides is used
+                byte[] recData = new byte[payload.remaining()];
+                payload.get(recData);
+                STPOptions senderOptions = STPOptions.decode(recData);
+                STPOptions options = new STPOptions(maxSegmentSizeLimit, receiveBufferSize);
+                this.maxSegmentSize = options.getMaxSegmentSize();
+                if (senderOptions.getMaxSegmentSize() > 0) {
+                    this.maxSegmentSize = Math.min(this.maxSegmentSize, senderOptions.getMaxSegmentSize());
+                }
+                // we always understand SACK, so it is on whenever the sender asks for it
+                this.sackPermitted = senderOptions.isSackPermitted();
+                options.setSackPermitted(this.sackPermitted);
+                this.windowAdvertised = senderOptions.isWindowAdvertised();
+                options.setWindowAdvertised(this.windowAdvertised);
+                // a sender without the option may expect an ACK for every segment
+                int sendWindow = Math.min(senderOptions.getSendWindow(), options.getReceiveBufferSize());
+                this.delayedAckPermitted = ackDelayMillis > 0
+                        && sendWindow >= (long) ackEvery * this.maxSegmentSize;
+                this.freshSYN = senderOptions.isResumeFresh();
+                // the batch of the last attempt is written first, its buffers go back to its reorder buffer
+                startAttempt(senderOptions);
+                if (this.reorderBuffer != null) {
+                    this.reorderBuffer.close();
+                }
+                this.reorderBuffer = new ReorderBuffer(recSeqNo + 1,
+                        this.maxSegmentSize, options.getReceiveBufferSize());
+                closeFecDecoder();
+                if (this.blockInflater != null) {
+                    // a block of the last attempt may be incomplete
+                    this.blockInflater.close();
+                    this.blockInflater = null;
+                }
+                if (senderOptions.isFecPermitted()) {
+                    this.fecDecoder = new FecDecoder(this.maxSegmentSize);
+                    this.rebuiltPayload = BufferPool.SHARED.acquire(this.maxSegmentSize);
+                }
+                options.setFecPermitted(this.fecDecoder != null);
+                if (this.checkpoint != null) {
+                    options.setResumeOffset(this.fileOffset, checkpoint.getPrefixHash());
+                }
+                if (this.fileWriter != null && senderOptions.getCompressionMethod() == BlockDeflater.DEFLATE) {
+                    // null when the block is too large or the blocks of other sessions take all the memory
+                    this.blockInflater = BlockInflater.create(fileWriter, senderOptions.getCompressionBlockSize());
+                }
+                if (this.blockInflater != null) {
+                    options.setCompression(BlockDeflater.DEFLATE, senderOptions.getCompressionBlockSize());
+                }
+                eventLog.message(EventLog.Level.INFO, "connection " + connId + ": sender advertised "
+                        + senderOptions + ", negotiated maxSegmentSize: " + this.maxSegmentSize
+                        + (delayedAckPermitted ? ", delayed ACKs" : ""));
+                this.replyOptionsOfSYN = options.encode();
+                writeReplyHeader(reply, replyACK);
+                reply.put(this.replyOptionsOfSYN);
+                break;
+
+            case Utils.FEC:
+                if (this.fecDecoder == null) {
+                    return false;
+                }
+                metrics.onParity();
+                // a parity is not ACKed, unless it rebuilds a segment
+                if (!fecDecoder.onParity(recSeqNo, recAckNo, payload, reorderBuffer.getNextSeqNo())) {
+                    return false;
+                }
+                int rebuiltSeqNo = putRebuiltSegment();
+                writeDataIntoFile();
+
+                writeReplyHeader(reply, this.reorderBuffer.getNextSeqNo());
+                putSackBlocks(reply, rebuiltSeqNo);
+                break;
+
+            case Utils.FIN:
+                this.seqNoOfFIN = recSeqNo;
+                replyACK = recSeqNo + 1;
+                writeReplyHeader(reply, replyACK);
+                if (blockInflater != null && !this.receiveFIN) {
+                    eventLog.message(EventLog.Level.INFO, "connection " + connId + ": " + blockInflater.getStats()
+                            + (blockInflater.isAtBlockBoundary() ? "" : ", the last block is incomplete"));
+                }
+                this.receiveFIN = true;
+                if (fileWriter != null) {
+                    fileWriter.finish();
+                    if (checkpoint != null) {
+                        checkpoint.delete();
+                        this.checkpoint = null;
+                    }
+                } else {
+                    // every byte has been ACKed, so it is in the pipe, the reader gets the end of the stream
+                    streamSink.close();
+                }
+                metrics.finish();
+                break;
+
+            case Utils.RESET:
+                eventLog.message(EventLog.Level.INFO, "connection " + connId + ": receive RESET, closing...");
+                this.receiveRESET = true;
+                return false;
+
+            default:
+                return false;
+        }
+
+        replyHeader.setPayloadLength(reply.position() - Utils.HEADER_LENGTH);
+        reply.flip();
+        return true;
+    }
+
+    private void closeFecDecoder() {
+        if (fecDecoder != null) {
+            fecDecoder.close();
+            BufferPool.SHARED.release(rebuiltPayload);
+            fecDecoder = null;
+            rebuiltPayload = null;
+        }
+    }
+
+    public void close() throws IOException {
+        Utils.unregisterMBean(metricsName);
+        closeFecDecoder();
+        if (blockInflater != null) {
+            blockInflater.close();
+        }
+        if (fileWriter != null) {
+            if (checkpoint != null) {
+                // the sender is gone before the FIN, its next SYN goes on from here
+                saveCheckpoint();
+            }
+            fileWriter.close();
+        } else {
+            if (!receiveFIN) {
+                onStreamAbort.run();
+            }
+            streamSink.close();
+        }
+        if (reorderBuffer != null) {
+            reorderBuffer.close();
+        }
+    }
+}
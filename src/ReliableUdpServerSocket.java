@@ -0,0 +1,85 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Accepts ReliableUDP connections for an application, a Receiver in
+ * server mode whose sessions are streams instead of files. The Receiver
+ * runs its event loops on a thread of its own, every connection whose
+ * SYN arrives is queued for accept as a ReliableUdpSocket to read from.
+ */
+public class ReliableUdpServerSocket implements Closeable {
+    // how often a waiting accept looks whether the server socket has been closed
+    private static final long ACCEPT_POLL_MILLIS = 100;
+
+    private final Receiver receiver;
+    private final Thread receiverThread;
+    private final BlockingQueue<ReliableUdpSocket> acceptQueue = new LinkedBlockingQueue<>();
+    private volatile boolean closed = false;
+
+    public ReliableUdpServerSocket(InetSocketAddress localAddress) throws IOException {
+        this(localAddress, new HashMap<>());
+    }
+
+    /*
+    port 0 of localAddress picks a free port, see getLocalAddress.
+    options are those of the Receiver, except for server and fsync
+     */
+    public ReliableUdpServerSocket(InetSocketAddress localAddress, Map<String, String> options) throws IOException {
+        this.receiver = new Receiver(localAddress, options, acceptQueue::add);
+        this.receiverThread = new Thread(() -> {
+            try {
+                receiver.run();
+            } catch (IOException e) {
+                Logger.getLogger(ReliableUdpServerSocket.class.getName()).log(Level.SEVERE, "receiver failed", e);
+                closed = true;
+            }
+        }, "reliable-udp-receiver-" + receiver.getLocalAddress().getPort());
+        receiverThread.start();
+    }
+
+    public InetSocketAddress getLocalAddress() {
+        return receiver.getLocalAddress();
+    }
+
+    // wait for the next connection, its socket only receives
+    public ReliableUdpSocket accept() throws IOException {
+        while (!closed) {
+            try {
+                ReliableUdpSocket socket = acceptQueue.poll(ACCEPT_POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (socket != null) {
+                    return socket;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted while waiting for a connection", e);
+            }
+        }
+        throw new SocketException("the server socket is closed");
+    }
+
+    // stop the receiver, the connections that are still open are closed, their readers see them aborted
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        receiver.stop();
+        try {
+            receiverThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while waiting for the receiver", e);
+        }
+        ReliableUdpSocket socket;
+        while ((socket = acceptQueue.poll()) != null) {
+            socket.close();
+        }
+    }
+}
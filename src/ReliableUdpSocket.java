@@ -0,0 +1,206 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.Pipe;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A ReliableUDP connection for an application, without files.
+ * A connection sends in one direction, like the Sender and the Receiver:
+ * a socket created with a remote address sends what the application
+ * writes into its OutputStream or WritableByteChannel, a socket returned
+ * by ReliableUdpServerSocket.accept receives it, to be read from its
+ * InputStream or ReadableByteChannel.
+ * The bytes go through a pipe between the application and the event loop
+ * of the Sender or the Receiver, so the loop never waits for the
+ * application: a Sender runs its loop on a thread of its own and sends
+ * what has been written, a Receiver keeps what the application has not
+ * read yet in its reorder buffer, does not ACK it and closes its window,
+ * so the Sender waits for the application instead of resending.
+ */
+public class ReliableUdpSocket implements Closeable {
+    private final int connId;
+    private final InetSocketAddress remoteAddress;
+    // the sending side, null for an accepted socket
+    private final Pipe.SinkChannel sink;
+    private final Sender sender;
+    private final Thread senderThread;
+    private volatile IOException failure;
+    // the receiving side, null for a socket that sends
+    private final Pipe.SourceChannel source;
+    private final ReadableByteChannel inputChannel;
+    // the receiver closed the stream before the FIN, the end of the pipe is not the end of the stream
+    private volatile boolean aborted = false;
+    // tells the event loop of an accepted socket that it is closed, so the session resets its sender
+    private final Runnable onClose;
+    private boolean closed = false;
+
+    public ReliableUdpSocket(InetSocketAddress remoteAddress) throws IOException {
+        this(new InetSocketAddress(0), remoteAddress, 1 << 20, 100, new HashMap<>());
+    }
+
+    /*
+    connect to the ReliableUdpServerSocket at remoteAddress, port 0 of
+    localAddress picks a free port. windowSizeInByte, rto and options are
+    those of the Sender, except for compress and the stripe options.
+    It returns once the SYN has been ACKed
+     */
+    public ReliableUdpSocket(InetSocketAddress localAddress, InetSocketAddress remoteAddress, int windowSizeInByte,
+                             int rto, Map<String, String> options) throws IOException {
+        Pipe pipe = Pipe.open();
+        this.remoteAddress = remoteAddress;
+        this.sink = pipe.sink();
+        this.source = null;
+        this.inputChannel = null;
+        this.onClose = null;
+        try {
+            this.sender = new Sender(localAddress, remoteAddress, pipe.source(), windowSizeInByte, rto, options);
+            sender.connect();
+        } catch (IOException | RuntimeException e) {
+            pipe.source().close();
+            sink.close();
+            throw e;
+        }
+        this.connId = sender.getConnId();
+        this.senderThread = new Thread(() -> {
+            try {
+                sender.transfer();
+            } catch (IOException e) {
+                Logger.getLogger(ReliableUdpSocket.class.getName()).log(Level.SEVERE, "transfer failed", e);
+                failure = e;
+            }
+        }, "reliable-udp-sender-" + Integer.toUnsignedString(connId));
+        senderThread.start();
+    }
+
+    /*
+    the socket of a session of a Receiver, it reads from source what the
+    session writes into the pipe, onClose is called once it is closed
+     */
+    ReliableUdpSocket(int connId, InetSocketAddress remoteAddress, Pipe.SourceChannel source, Runnable onClose) {
+        this.connId = connId;
+        this.remoteAddress = remoteAddress;
+        this.sink = null;
+        this.sender = null;
+        this.senderThread = null;
+        this.source = source;
+        this.inputChannel = new InputChannel();
+        this.onClose = onClose;
+    }
+
+    public int getConnId() {
+        return connId;
+    }
+
+    public InetSocketAddress getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    // the bound address of a socket that sends
+    public InetSocketAddress getLocalAddress() throws IOException {
+        if (sender == null) {
+            throw new IOException("an accepted socket has the local address of its server socket");
+        }
+        return sender.getLocalAddress();
+    }
+
+    // the counters of a socket that sends, also registered as an MBean
+    public SenderMetricsMBean getMetrics() {
+        return sender == null ? null : sender.getMetrics();
+    }
+
+    /*
+    what is written is sent, closing the channel ends the stream, the
+    FIN is sent once all of it has been ACKed. A write blocks while the
+    window of the sender is full and the pipe has no room
+     */
+    public WritableByteChannel getWritableChannel() throws IOException {
+        if (sink == null) {
+            throw new IOException("an accepted socket only receives");
+        }
+        return sink;
+    }
+
+    // a read blocks until the next bytes are in order, -1 once the FIN has arrived
+    public ReadableByteChannel getReadableChannel() throws IOException {
+        if (inputChannel == null) {
+            throw new IOException("a socket that connects only sends");
+        }
+        return inputChannel;
+    }
+
+    public OutputStream getOutputStream() throws IOException {
+        return Channels.newOutputStream(getWritableChannel());
+    }
+
+    public InputStream getInputStream() throws IOException {
+        return Channels.newInputStream(getReadableChannel());
+    }
+
+    // called by the session of the Receiver if it closes before the FIN has arrived
+    void abort() {
+        this.aborted = true;
+    }
+
+    /*
+    a socket that sends ends the stream and waits until it has been
+    ACKed, or until the sender has given up on a receiver that stopped
+    ACKing and reset the connection, an IOException tells that it has
+    not been ACKed. An accepted socket stops reading, what its sender has
+    not sent yet is not received, the sender gets a RESET and stops
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (source != null) {
+            source.close();
+            onClose.run();
+            return;
+        }
+        sink.close();
+        try {
+            senderThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while waiting for the ACK of the stream", e);
+        }
+        if (failure != null) {
+            throw new IOException("connection " + Integer.toUnsignedString(connId) + " failed", failure);
+        }
+    }
+
+    // the end of the pipe is only the end of the stream if the FIN has arrived
+    private class InputChannel implements ReadableByteChannel {
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            int n = source.read(dst);
+            if (n < 0 && aborted) {
+                throw new IOException("connection " + Integer.toUnsignedString(connId)
+                        + " was closed before its FIN arrived");
+            }
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return source.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            ReliableUdpSocket.this.close();
+        }
+    }
+}
@@ -0,0 +1,246 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * The receive window of the receiver, a fixed number of pooled payload
+ * slots indexed by their offset from the next expected sequence number.
+ * Slot i (counted from head) holds the segment that starts at
+ * nextSeqNo + i * maxSegmentSize, an occupancy bitmap tells which slots
+ * are filled, so finding the in-order prefix is a bitmap scan.
+ * A filled slot either keeps the payload in memory, or only records
+ * that the payload has already been written to the file at its offset.
+ * The slots are direct buffers of the BufferPool, taken when a slot is
+ * first filled and given back by close.
+ */
+public class ReorderBuffer {
+    private final int maxSegmentSize;
+    private final int capacity;
+    private final ByteBuffer[] slotArr;
+    private final int[] lengthArr;
+    private final long[] occupancy;
+    // set if the payload of a filled slot is kept in slotArr
+    private final long[] inMemory;
+    // buffers taken by takeHead come back here, so at most capacity buffers exist
+    private final ArrayDeque<ByteBuffer> freeBuffers = new ArrayDeque<>();
+    private int head = 0;
+    // the number of filled slots
+    private int numOfFilled = 0;
+    private int nextSeqNo;
+    // the file offset of nextSeqNo, it keeps growing when nextSeqNo wraps around
+    private long nextFileOffset = 0;
+
+    public ReorderBuffer(int firstSeqNo, int maxSegmentSize, int windowSizeInByte) {
+        this.maxSegmentSize = maxSegmentSize;
+        this.capacity = Math.max(1, (windowSizeInByte + maxSegmentSize - 1) / maxSegmentSize);
+        this.slotArr = new ByteBuffer[capacity];
+        this.lengthArr = new int[capacity];
+        this.occupancy = new long[(capacity + 63) / 64];
+        this.inMemory = new long[(capacity + 63) / 64];
+        this.nextSeqNo = firstSeqNo;
+    }
+
+    // the seqNo the receiver expects next, i.e. the cumulative ACK
+    public int getNextSeqNo() {
+        return nextSeqNo;
+    }
+
+    public long getNextFileOffset() {
+        return nextFileOffset;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    // once the in-order head has been written, every filled slot is an out-of-order segment
+    public int getNumOfFilled() {
+        return numOfFilled;
+    }
+
+    private static boolean isSet(long[] bitmap, int slot) {
+        return (bitmap[slot >>> 6] & (1L << slot)) != 0;
+    }
+
+    /*
+    the index of the segment in the window, 0 means it is the next in-order one,
+    -1 if the segment is a duplicate, is not aligned to maxSegmentSize,
+    or lies outside of the window
+     */
+    public int indexOf(int seqNo, int length) {
+        int distance = seqNo - nextSeqNo;
+        if (distance < 0 || distance % maxSegmentSize != 0 || length > maxSegmentSize) {
+            return -1;
+        }
+        int index = distance / maxSegmentSize;
+        if (index >= capacity || isSet(occupancy, (head + index) % capacity)) {
+            return -1;
+        }
+        return index;
+    }
+
+    public long fileOffsetOf(int index) {
+        return nextFileOffset + (long) index * maxSegmentSize;
+    }
+
+    /*
+    fill the slot of a segment of length bytes returned by indexOf, if
+    keepPayload is set the remaining bytes of payload are copied into the
+    slot, otherwise the caller has written the payload to the file already
+     */
+    public void put(int index, ByteBuffer payload, int length, boolean keepPayload) {
+        int slot = (head + index) % capacity;
+        if (keepPayload) {
+            if (slotArr[slot] == null) {
+                ByteBuffer buffer = freeBuffers.poll();
+                slotArr[slot] = buffer != null ? buffer : BufferPool.SHARED.acquire(maxSegmentSize);
+            }
+            ByteBuffer buffer = slotArr[slot];
+            buffer.clear();
+            buffer.put(payload);
+            buffer.flip();
+            inMemory[slot >>> 6] |= 1L << slot;
+        }
+        lengthArr[slot] = length;
+        occupancy[slot >>> 6] |= 1L << slot;
+        numOfFilled += 1;
+    }
+
+    /*
+    the number of filled slots from head onwards, e.g.
+    head is 2, occupancy is ..0111100, the result is 4
+    the bits above capacity are never set, so a run stops there
+    and goes on from slot 0
+     */
+    public int countInOrder() {
+        int count = 0;
+        int slot = head;
+        while (count < capacity) {
+            int bit = slot & 63;
+            int run = Long.numberOfTrailingZeros(~(occupancy[slot >>> 6] >>> bit));
+            run = Math.min(run, 64 - bit);
+            count += run;
+            slot += run;
+            if (slot == capacity) {
+                slot = 0;
+            } else if (run < 64 - bit) {
+                break;
+            }
+        }
+        return Math.min(count, capacity);
+    }
+
+    /*
+    the first relative index from fromIndex on whose occupancy bit equals set,
+    or capacity if there is none, a scan is done a word at a time
+     */
+    private int scan(int fromIndex, boolean set) {
+        int index = fromIndex;
+        while (index < capacity) {
+            int slot = (head + index) % capacity;
+            // scan up to the end of the array, then go on from slot 0
+            int end = slot >= head ? capacity : head;
+            int found = scanSlots(slot, end, set);
+            index += found - slot;
+            if (found < end) {
+                return index;
+            }
+        }
+        return capacity;
+    }
+
+    // the first slot in [from, to) whose occupancy bit equals set, or to
+    private int scanSlots(int from, int to, boolean set) {
+        int slot = from;
+        while (slot < to) {
+            long word = occupancy[slot >>> 6];
+            if (!set) {
+                word = ~word;
+            }
+            word &= -1L << (slot & 63);
+            if (word != 0) {
+                return Math.min((slot & ~63) + Long.numberOfTrailingZeros(word), to);
+            }
+            slot = (slot & ~63) + 64;
+        }
+        return to;
+    }
+
+    /*
+    the out-of-order ranges we hold, as pairs of [left edge, right edge)
+    seqNos in blocks, the block with recentSeqNo comes first, like TCP does,
+    so the newest information survives if some ACKs are lost.
+    return the number of blocks, at most maxBlocks
+     */
+    public int getSackBlocks(int[] blocks, int maxBlocks, int recentSeqNo) {
+        int numOfBlocks = 0;
+        int index = scan(1, true);
+        while (index < capacity && numOfBlocks < maxBlocks) {
+            int end = scan(index, false);
+            int lastSlot = (head + end - 1) % capacity;
+            int left = nextSeqNo + index * maxSegmentSize;
+            int right = nextSeqNo + (end - 1) * maxSegmentSize + lengthArr[lastSlot];
+            blocks[2 * numOfBlocks] = left;
+            blocks[2 * numOfBlocks + 1] = right;
+            if (numOfBlocks > 0 && Utils.seqLessOrEqual(left, recentSeqNo)
+                    && Utils.seqLessThan(recentSeqNo, right)) {
+                // swap the block with the recent segment to the front
+                blocks[2 * numOfBlocks] = blocks[0];
+                blocks[2 * numOfBlocks + 1] = blocks[1];
+                blocks[0] = left;
+                blocks[1] = right;
+            }
+            numOfBlocks += 1;
+            index = scan(end, true);
+        }
+        return numOfBlocks;
+    }
+
+    public boolean isHeadInMemory() {
+        return isSet(inMemory, head);
+    }
+
+    public int getHeadLength() {
+        return lengthArr[head];
+    }
+
+    // the payload buffer of the head slot, it stays in the slot, what the caller reads stays read
+    public ByteBuffer peekHead() {
+        return slotArr[head];
+    }
+
+    // hand the payload buffer of the head slot over to the caller, ready to be written, give it back with recycle
+    public ByteBuffer takeHead() {
+        ByteBuffer buffer = slotArr[head];
+        slotArr[head] = null;
+        return buffer;
+    }
+
+    public void recycle(ByteBuffer buffer) {
+        if (buffer.capacity() >= maxSegmentSize && freeBuffers.size() < capacity) {
+            freeBuffers.push(buffer);
+        } else {
+            BufferPool.SHARED.release(buffer);
+        }
+    }
+
+    // give every buffer back to the pool, the buffer must not be used afterwards
+    public void close() {
+        for (int i = 0; i < capacity; i++) {
+            BufferPool.SHARED.release(slotArr[i]);
+            slotArr[i] = null;
+        }
+        while (!freeBuffers.isEmpty()) {
+            BufferPool.SHARED.release(freeBuffers.pop());
+        }
+    }
+
+    // move the window forward by the head segment
+    public void releaseHead() {
+        nextSeqNo += lengthArr[head];
+        nextFileOffset += lengthArr[head];
+        occupancy[head >>> 6] &= ~(1L << head);
+        inMemory[head >>> 6] &= ~(1L << head);
+        numOfFilled -= 1;
+        head = (head + 1) % capacity;
+    }
+}
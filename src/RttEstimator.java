@@ -0,0 +1,73 @@
+/**
+ * Round trip time estimation of Jacobson/Karels (RFC 6298).
+ * SRTT and RTTVAR are smoothed from the samples, the retransmission
+ * timeout is SRTT + max(G, 4 * RTTVAR), doubled on every timeout.
+ * The caller follows Karn's rule, a retransmitted segment gives no sample,
+ * since we can not tell which transmission its ACK belongs to.
+ */
+public class RttEstimator {
+    private final long minRtoMillis;
+    private final long maxRtoMillis;
+    private final long granularityNanos;
+    private long srttNanos = 0;
+    private long rttvarNanos = 0;
+    private boolean hasSample = false;
+    private long rtoMillis;
+
+    public RttEstimator(long initialRtoMillis, long minRtoMillis, long maxRtoMillis, long granularityMillis) {
+        this.minRtoMillis = minRtoMillis;
+        this.maxRtoMillis = maxRtoMillis;
+        this.granularityNanos = granularityMillis * 1_000_000L;
+        this.rtoMillis = clamp(initialRtoMillis);
+    }
+
+    public void addSample(long rttNanos) {
+        if (!hasSample) {
+            srttNanos = rttNanos;
+            rttvarNanos = rttNanos / 2;
+            hasSample = true;
+        } else {
+            // RTTVAR = 3/4 RTTVAR + 1/4 |SRTT - R|, SRTT = 7/8 SRTT + 1/8 R
+            rttvarNanos += (Math.abs(srttNanos - rttNanos) - rttvarNanos) >> 2;
+            srttNanos += (rttNanos - srttNanos) >> 3;
+        }
+        updateRto();
+    }
+
+    private void updateRto() {
+        long rtoNanos = srttNanos + Math.max(granularityNanos, 4 * rttvarNanos);
+        rtoMillis = clamp((rtoNanos + 999_999) / 1_000_000);
+    }
+
+    // exponential backoff after a retransmission timeout
+    public void backOff() {
+        rtoMillis = clamp(rtoMillis * 2);
+    }
+
+    /*
+    an ACK of new data shows the path works again, so the backoff is dropped
+    even if Karn's rule gives no sample, as Linux does, otherwise under heavy
+    loss the RTO keeps doubling while every segment left is a retransmission
+     */
+    public void resetBackOff() {
+        if (hasSample) {
+            updateRto();
+        }
+    }
+
+    private long clamp(long rto) {
+        return Math.max(minRtoMillis, Math.min(maxRtoMillis, rto));
+    }
+
+    public long getRtoMillis() {
+        return rtoMillis;
+    }
+
+    public long getSrttNanos() {
+        return srttNanos;
+    }
+
+    public long getRttvarNanos() {
+        return rttvarNanos;
+    }
+}
@@ -0,0 +1,93 @@
+import java.nio.ByteBuffer;
+
+/**
+ * A flyweight over the STP header at the start of a ByteBuffer, see Utils
+ * for the layout. The fields are read and written in place with absolute
+ * gets and puts, so the position and limit of the buffer stay as they are
+ * and nothing is allocated. An event loop keeps one instance per buffer
+ * and wraps it once, every datagram received into the buffer is then
+ * decoded without copying.
+ */
+public final class STPHeader {
+    private static final int VERSION_OFFSET = 0;
+    private static final int TYPE_OFFSET = 1;
+    private static final int PAYLOAD_LENGTH_OFFSET = 2;
+    private static final int CONN_ID_OFFSET = 4;
+    private static final int SEQ_NO_OFFSET = 8;
+    private static final int ACK_NO_OFFSET = 12;
+
+    private ByteBuffer buffer;
+
+    public STPHeader wrap(ByteBuffer buffer) {
+        this.buffer = buffer;
+        return this;
+    }
+
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    public byte getVersion() {
+        return buffer.get(VERSION_OFFSET);
+    }
+
+    // a datagram of the given length holds a whole header of our version
+    public boolean isSupportedVersion(int length) {
+        return length >= Utils.HEADER_LENGTH && getVersion() == Utils.HEADER_VERSION;
+    }
+
+    /*
+    a datagram of the given length holds the whole payload the header
+    announces, anything after the payload is not part of the segment
+     */
+    public boolean isComplete(int length) {
+        return length >= getSegmentLength();
+    }
+
+    public short getType() {
+        return buffer.get(TYPE_OFFSET);
+    }
+
+    public int getConnId() {
+        return buffer.getInt(CONN_ID_OFFSET);
+    }
+
+    public int getSeqNo() {
+        return buffer.getInt(SEQ_NO_OFFSET);
+    }
+
+    public int getAckNo() {
+        return buffer.getInt(ACK_NO_OFFSET);
+    }
+
+    // the payload is sliced by this length, it may contain any byte, 0 included
+    public int getPayloadLength() {
+        return buffer.getShort(PAYLOAD_LENGTH_OFFSET) & 0xFFFF;
+    }
+
+    public int getSegmentLength() {
+        return Utils.HEADER_LENGTH + getPayloadLength();
+    }
+
+    // for a payload that is put behind the header after the header has been written
+    public void setPayloadLength(int payloadLength) {
+        if (payloadLength < 0 || payloadLength > Utils.MAX_DATAGRAM_SIZE - Utils.HEADER_LENGTH) {
+            throw new IllegalArgumentException("payload of " + payloadLength + " bytes does not fit in a datagram");
+        }
+        buffer.putShort(PAYLOAD_LENGTH_OFFSET, (short) payloadLength);
+    }
+
+    // write a whole header in front of the payload, which may be in the buffer already
+    public void write(short type, int connId, int seqNo, int ackNo, int payloadLength) {
+        if (type < 0 || type > 6) {
+            throw new IllegalArgumentException("Invalid type, it must between 0 and 6");
+        }
+        // every 32-bit value is a valid sequence number, since it wraps around
+        buffer.put(VERSION_OFFSET, Utils.HEADER_VERSION);
+        buffer.put(TYPE_OFFSET, (byte) type);
+        setPayloadLength(payloadLength);
+        buffer.putInt(CONN_ID_OFFSET, connId);
+        buffer.putInt(SEQ_NO_OFFSET, seqNo);
+        buffer.putInt(ACK_NO_OFFSET, ackNo);
+    }
+}
@@ -0,0 +1,273 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Options carried in the payload of a SYN segment and of the ACK of SYN.
+ * Each option is encoded as kind(1 byte) length(1 byte) value(length bytes),
+ * unknown kinds are skipped, so a side can add options the peer ignores.
+ */
+public class STPOptions {
+    static final byte END = 0;
+    // the largest payload the side is able to send or receive in one segment
+    static final byte MSS = 1;
+    // the receive buffer of the side in bytes, the peer never keeps more in flight
+    static final byte RECEIVE_BUFFER = 2;
+    // the side understands SACK blocks in the payload of an ACK, it has no value
+    static final byte SACK_PERMITTED = 3;
+    // the connection is one stripe of a file, see Stripe
+    static final byte STRIPE = 4;
+    // the most bytes the sender keeps in flight, sent by a sender that handles ACKs
+    // covering several segments, so the receiver may delay its ACKs
+    static final byte SEND_WINDOW = 5;
+    // the side understands FEC segments, it has no value, see FecEncoder
+    static final byte FEC_PERMITTED = 6;
+    // method(1) blockSize(4), the sender asks for compressed blocks, the receiver
+    // echoes the option if it agrees, see BlockDeflater
+    static final byte COMPRESSION = 7;
+    // sourceSize(8) sourceId(8) fresh(1), the sender asks to resume the transfer of
+    // this file, unless fresh is set, then the receiver starts over, see ReceiveCheckpoint.
+    // sourceId is a random id the sender keeps next to the file, see Sender.sourceIdOf
+    static final byte RESUME = 8;
+    // offset(8) hash(8), the receiver has [0, offset) of the file, the sender
+    // sends the rest if the hash of its own prefix is the same
+    static final byte RESUME_OFFSET = 9;
+    // the side understands a receive window in the seqNo of an ACK, which is 0
+    // while the application does not read, it has no value, see ReceiverSession
+    static final byte WINDOW_ADVERTISED = 10;
+
+    // 0 means the option is not present
+    private int maxSegmentSize = 0;
+    private int receiveBufferSize = 0;
+    private boolean sackPermitted = false;
+    private Stripe stripe = null;
+    private int sendWindow = 0;
+    private boolean fecPermitted = false;
+    private byte compressionMethod = BlockDeflater.STORED;
+    private int compressionBlockSize = 0;
+    // -1 if the sender does not ask to resume
+    private long resumeSourceSize = -1;
+    private long resumeSourceId = 0;
+    private boolean resumeFresh = false;
+    // -1 if the receiver does not resume
+    private long resumeOffset = -1;
+    private long resumeHash = 0;
+    private boolean windowAdvertised = false;
+
+    public STPOptions() {
+    }
+
+    public STPOptions(int maxSegmentSize, int receiveBufferSize) {
+        this.maxSegmentSize = maxSegmentSize;
+        this.receiveBufferSize = receiveBufferSize;
+    }
+
+    public int getMaxSegmentSize() {
+        return maxSegmentSize;
+    }
+
+    public int getReceiveBufferSize() {
+        return receiveBufferSize;
+    }
+
+    public boolean isSackPermitted() {
+        return sackPermitted;
+    }
+
+    public void setSackPermitted(boolean sackPermitted) {
+        this.sackPermitted = sackPermitted;
+    }
+
+    // null if the connection sends the whole file
+    public Stripe getStripe() {
+        return stripe;
+    }
+
+    public void setStripe(Stripe stripe) {
+        this.stripe = stripe;
+    }
+
+    public int getSendWindow() {
+        return sendWindow;
+    }
+
+    public void setSendWindow(int sendWindow) {
+        this.sendWindow = sendWindow;
+    }
+
+    public boolean isFecPermitted() {
+        return fecPermitted;
+    }
+
+    public void setFecPermitted(boolean fecPermitted) {
+        this.fecPermitted = fecPermitted;
+    }
+
+    // BlockDeflater.STORED if the blocks are not compressed
+    public byte getCompressionMethod() {
+        return compressionMethod;
+    }
+
+    public int getCompressionBlockSize() {
+        return compressionBlockSize;
+    }
+
+    public void setCompression(byte method, int blockSize) {
+        this.compressionMethod = method;
+        this.compressionBlockSize = blockSize;
+    }
+
+    // -1 if the sender does not ask to resume
+    public long getResumeSourceSize() {
+        return resumeSourceSize;
+    }
+
+    public long getResumeSourceId() {
+        return resumeSourceId;
+    }
+
+    public boolean isResumeFresh() {
+        return resumeFresh;
+    }
+
+    public void setResume(long sourceSize, long sourceId, boolean fresh) {
+        this.resumeSourceSize = sourceSize;
+        this.resumeSourceId = sourceId;
+        this.resumeFresh = fresh;
+    }
+
+    // -1 if the receiver does not resume
+    public long getResumeOffset() {
+        return resumeOffset;
+    }
+
+    public long getResumeHash() {
+        return resumeHash;
+    }
+
+    public void setResumeOffset(long offset, long hash) {
+        this.resumeOffset = offset;
+        this.resumeHash = hash;
+    }
+
+    public boolean isWindowAdvertised() {
+        return windowAdvertised;
+    }
+
+    public void setWindowAdvertised(boolean windowAdvertised) {
+        this.windowAdvertised = windowAdvertised;
+    }
+
+    public byte[] encode() {
+        ByteBuffer buffer = ByteBuffer.allocate(128);
+        if (maxSegmentSize > 0) {
+            buffer.put(MSS).put((byte) 4).putInt(maxSegmentSize);
+        }
+        if (receiveBufferSize > 0) {
+            buffer.put(RECEIVE_BUFFER).put((byte) 4).putInt(receiveBufferSize);
+        }
+        if (sackPermitted) {
+            buffer.put(SACK_PERMITTED).put((byte) 0);
+        }
+        if (stripe != null) {
+            // transferId(4) index(2) count(2) offset(8) length(8) fileSize(8)
+            buffer.put(STRIPE).put((byte) 32).putInt(stripe.getTransferId())
+                    .putShort((short) stripe.getIndex()).putShort((short) stripe.getCount())
+                    .putLong(stripe.getOffset()).putLong(stripe.getLength()).putLong(stripe.getFileSize());
+        }
+        if (sendWindow > 0) {
+            buffer.put(SEND_WINDOW).put((byte) 4).putInt(sendWindow);
+        }
+        if (fecPermitted) {
+            buffer.put(FEC_PERMITTED).put((byte) 0);
+        }
+        if (compressionMethod != BlockDeflater.STORED) {
+            buffer.put(COMPRESSION).put((byte) 5).put(compressionMethod).putInt(compressionBlockSize);
+        }
+        if (resumeSourceSize >= 0) {
+            buffer.put(RESUME).put((byte) 17).putLong(resumeSourceSize).putLong(resumeSourceId)
+                    .put((byte) (resumeFresh ? 1 : 0));
+        }
+        if (resumeOffset >= 0) {
+            buffer.put(RESUME_OFFSET).put((byte) 16).putLong(resumeOffset).putLong(resumeHash);
+        }
+        if (windowAdvertised) {
+            buffer.put(WINDOW_ADVERTISED).put((byte) 0);
+        }
+        buffer.put(END);
+
+        byte[] arr = new byte[buffer.position()];
+        buffer.flip();
+        buffer.get(arr);
+        return arr;
+    }
+
+    public static STPOptions decode(byte[] data) {
+        STPOptions options = new STPOptions();
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        while (buffer.remaining() >= 2) {
+            byte kind = buffer.get();
+            if (kind == END) {
+                break;
+            }
+            int len = buffer.get() & 0xFF;
+            if (len > buffer.remaining()) {
+                break;
+            }
+            int valueStart = buffer.position();
+            switch (kind) {
+                case MSS:
+                    options.maxSegmentSize = buffer.getInt();
+                    break;
+                case RECEIVE_BUFFER:
+                    options.receiveBufferSize = buffer.getInt();
+                    break;
+                case SACK_PERMITTED:
+                    options.sackPermitted = true;
+                    break;
+                case STRIPE:
+                    options.stripe = new Stripe(buffer.getInt(), buffer.getShort() & 0xFFFF,
+                            buffer.getShort() & 0xFFFF, buffer.getLong(), buffer.getLong(), buffer.getLong());
+                    break;
+                case SEND_WINDOW:
+                    options.sendWindow = buffer.getInt();
+                    break;
+                case FEC_PERMITTED:
+                    options.fecPermitted = true;
+                    break;
+                case COMPRESSION:
+                    options.compressionMethod = buffer.get();
+                    options.compressionBlockSize = buffer.getInt();
+                    break;
+                case RESUME:
+                    options.resumeSourceSize = buffer.getLong();
+                    options.resumeSourceId = buffer.getLong();
+                    options.resumeFresh = buffer.get() != 0;
+                    break;
+                case RESUME_OFFSET:
+                    options.resumeOffset = buffer.getLong();
+                    options.resumeHash = buffer.getLong();
+                    break;
+                case WINDOW_ADVERTISED:
+                    options.windowAdvertised = true;
+                    break;
+                default:
+                    break;
+            }
+            buffer.position(valueStart + len);
+        }
+        return options;
+    }
+
+    @Override
+    public String toString() {
+        return "mss " + maxSegmentSize + ", receive buffer " + receiveBufferSize
+                + ", sack permitted " + sackPermitted
+                + (sendWindow == 0 ? "" : ", send window " + sendWindow)
+                + (fecPermitted ? ", fec permitted" : "")
+                + (windowAdvertised ? ", window advertised" : "")
+                + (compressionMethod == BlockDeflater.STORED ? ""
+                : ", compression " + compressionMethod + " in blocks of " + compressionBlockSize)
+                + (resumeSourceSize < 0 ? "" : ", resume " + resumeSourceSize + " bytes" + (resumeFresh ? " fresh" : ""))
+                + (resumeOffset < 0 ? "" : ", resume at " + resumeOffset)
+                + (stripe == null ? "" : ", " + stripe);
+    }
+}
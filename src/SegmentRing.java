@@ -0,0 +1,243 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * A fixed set of reusable segment slots for the sender.
+ * Segment i of the file is read lazily from the FileChannel into
+ * slot (i % capacity) right before it is sent for the first time,
+ * so memory is bounded by the window size instead of the file size.
+ * The segments cover the bytes [fileOffset, fileOffset + fileSize) of the
+ * file, all of it unless the file is sent in stripes.
+ * A slot is a direct buffer of the BufferPool that holds the whole
+ * datagram, the payload is read into it right behind the header, so a
+ * segment is sent as it is without any copy.
+ * A ring for a stream has no file, fill reads every segment from the
+ * stream into its slot, and the length is known once the stream ends.
+ * The compressed blocks of a file are read the same way, see BlockDeflater.
+ */
+public class SegmentRing {
+    // null for a stream
+    private final FileChannel fileChannel;
+    private final long fileOffset;
+    // Long.MAX_VALUE for a stream that has not ended yet
+    private long fileSize;
+    private final int maxSegmentSize;
+    private final int capacity;
+    private long numOfSegments;
+    private final int connId;
+    // the segment fill reads into, it goes on where the last call stopped, and the last complete one
+    private long fillIndex = -1;
+    private long filledIndex = -1;
+
+    private final int[] dataLenArr;
+    private final int[] seqNoArr;
+    private final int[] expectedACKArr;
+    // the whole segment, header and payload, ready for DatagramChannel.send
+    private final ByteBuffer[] datagramArr;
+    private final STPHeader header = new STPHeader();
+    // System.nanoTime() of the latest transmission
+    private final long[] startTimeArr;
+    // the retransmission deadline in milliseconds, see Sender.onRetransmissionTimeout
+    private final long[] deadlineArr;
+    private final boolean[] retransmittedArr;
+    private final boolean[] ACKedArr;
+    // the receiver holds the segment out of order, it reported it in a SACK block
+    private final boolean[] SACKedArr;
+
+    public SegmentRing(FileChannel fileChannel, long fileOffset, long fileSize,
+                       int maxSegmentSize, int capacity, int connId) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.fileChannel = fileChannel;
+        this.fileOffset = fileOffset;
+        this.fileSize = fileSize;
+        this.maxSegmentSize = maxSegmentSize;
+        this.capacity = capacity;
+        this.connId = connId;
+        // e.g. fileSize is 3790, maxSegmentSize is 1000,
+        // the file is sent as 4 segments: [1000][1000][1000][790]
+        this.numOfSegments = fileSize / maxSegmentSize + (fileSize % maxSegmentSize == 0 ? 0 : 1);
+
+        this.dataLenArr = new int[capacity];
+        this.seqNoArr = new int[capacity];
+        this.expectedACKArr = new int[capacity];
+        this.datagramArr = new ByteBuffer[capacity];
+        this.startTimeArr = new long[capacity];
+        this.deadlineArr = new long[capacity];
+        this.retransmittedArr = new boolean[capacity];
+        this.ACKedArr = new boolean[capacity];
+        this.SACKedArr = new boolean[capacity];
+
+        for (int i = 0; i < capacity; i++) {
+            datagramArr[i] = BufferPool.SHARED.acquire(Utils.HEADER_LENGTH + maxSegmentSize);
+        }
+    }
+
+    // a ring for a stream, see fill
+    public SegmentRing(int maxSegmentSize, int capacity, int connId) {
+        this(null, 0, Long.MAX_VALUE, maxSegmentSize, capacity, connId);
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    public long getNumOfSegments() {
+        return numOfSegments;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    private int slot(long segmentIndex) {
+        return (int) (segmentIndex % capacity);
+    }
+
+    /*
+    read the segmentIndex-th segment of the file into its slot
+    and write the DATA header in front of it. The slot must not
+    hold a segment that is still in flight. For a stream the
+    segment has been read by fill already.
+     */
+    public void load(long segmentIndex, int seqNo) throws IOException {
+        load(segmentIndex, seqNo, 0);
+    }
+
+    // the DATA header carries ackNo, see FecEncoder
+    public void load(long segmentIndex, int seqNo, int ackNo) throws IOException {
+        int slot = slot(segmentIndex);
+        long position = segmentIndex * maxSegmentSize;
+        int dataLen = (int) Math.min(maxSegmentSize, fileSize - position);
+
+        ByteBuffer datagram = datagramArr[slot];
+        datagram.limit(Utils.HEADER_LENGTH + dataLen).position(Utils.HEADER_LENGTH);
+        while (fileChannel != null && datagram.hasRemaining()) {
+            long filePosition = fileOffset + position + datagram.position() - Utils.HEADER_LENGTH;
+            int n = fileChannel.read(datagram, filePosition);
+            if (n < 0) {
+                throw new IOException("file is shorter than expected, it may " +
+                        "have been truncated during the transfer");
+            }
+        }
+
+        header.wrap(datagram).write(Utils.DATA, connId, seqNo, ackNo, dataLen);
+        dataLenArr[slot] = dataLen;
+        seqNoArr[slot] = seqNo;
+        expectedACKArr[slot] = seqNo + dataLen;
+        startTimeArr[slot] = 0;
+        deadlineArr[slot] = 0;
+        retransmittedArr[slot] = false;
+        ACKedArr[slot] = false;
+        SACKedArr[slot] = false;
+    }
+
+    /*
+    read the segmentIndex-th segment of a stream into its slot, as far as
+    source has bytes now, the next call goes on where this one stopped.
+    return true once the segment is complete, full or the short last one,
+    then load writes its header. false if source has no more bytes yet,
+    or if it ended before the segment, then getFileSize() and
+    getNumOfSegments() are known. The slot must not hold a segment that
+    is still in flight, source is non-blocking
+     */
+    public boolean fill(long segmentIndex, ReadableByteChannel source) throws IOException {
+        if (segmentIndex == filledIndex) {
+            // loaded already, its send did not get through
+            return true;
+        }
+        ByteBuffer datagram = datagramArr[slot(segmentIndex)];
+        if (segmentIndex != fillIndex) {
+            fillIndex = segmentIndex;
+            datagram.clear().limit(Utils.HEADER_LENGTH + maxSegmentSize).position(Utils.HEADER_LENGTH);
+        }
+        while (datagram.hasRemaining()) {
+            int n = source.read(datagram);
+            if (n == 0) {
+                return false;
+            }
+            if (n < 0) {
+                int dataLen = datagram.position() - Utils.HEADER_LENGTH;
+                this.fileSize = segmentIndex * maxSegmentSize + dataLen;
+                this.numOfSegments = dataLen == 0 ? segmentIndex : segmentIndex + 1;
+                if (dataLen == 0) {
+                    return false;
+                }
+                break;
+            }
+        }
+        filledIndex = segmentIndex;
+        return true;
+    }
+
+    // a send consumes the buffer, so it is rewound for every transmission
+    public ByteBuffer getDatagram(long segmentIndex) {
+        int slot = slot(segmentIndex);
+        ByteBuffer datagram = datagramArr[slot];
+        datagram.limit(Utils.HEADER_LENGTH + dataLenArr[slot]).position(0);
+        return datagram;
+    }
+
+    public int getDataLen(long segmentIndex) {
+        return dataLenArr[slot(segmentIndex)];
+    }
+
+    public int getSeqNo(long segmentIndex) {
+        return seqNoArr[slot(segmentIndex)];
+    }
+
+    public int getExpectedACK(long segmentIndex) {
+        return expectedACKArr[slot(segmentIndex)];
+    }
+
+    public boolean isACKed(long segmentIndex) {
+        return ACKedArr[slot(segmentIndex)];
+    }
+
+    public void setACKed(long segmentIndex) {
+        ACKedArr[slot(segmentIndex)] = true;
+    }
+
+    public boolean isSACKed(long segmentIndex) {
+        return SACKedArr[slot(segmentIndex)];
+    }
+
+    public void setSACKed(long segmentIndex) {
+        SACKedArr[slot(segmentIndex)] = true;
+    }
+
+    public long getStartTime(long segmentIndex) {
+        return startTimeArr[slot(segmentIndex)];
+    }
+
+    public void setStartTime(long segmentIndex, long startTime) {
+        startTimeArr[slot(segmentIndex)] = startTime;
+    }
+
+    public long getDeadline(long segmentIndex) {
+        return deadlineArr[slot(segmentIndex)];
+    }
+
+    public void setDeadline(long segmentIndex, long deadline) {
+        deadlineArr[slot(segmentIndex)] = deadline;
+    }
+
+    public boolean isRetransmitted(long segmentIndex) {
+        return retransmittedArr[slot(segmentIndex)];
+    }
+
+    public void setRetransmitted(long segmentIndex) {
+        retransmittedArr[slot(segmentIndex)] = true;
+    }
+
+    // give the slots back to the pool, the ring must not be used afterwards
+    public void close() {
+        for (int i = 0; i < capacity; i++) {
+            BufferPool.SHARED.release(datagramArr[i]);
+            datagramArr[i] = null;
+        }
+    }
+}
@@ -1,115 +1,340 @@
 import java.net.*;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.Pipe;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.Arrays;
-import java.util.concurrent.Semaphore;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Map;
+import javax.management.ObjectName;
 
 public class Sender {
-    private static final short NOT_REC = -1;
-    private final byte[] fileBytes;
-    private final byte[][] dataArr;
-    private final short[] seqNoArr;
-    private final short[] expectedACKArr;
-    private final byte[][] segmentArr;
-    private final DatagramPacket[] UDPPacketArr;
-    private final long[] startTimeArr;
-    private final short[] receivedACKArr;
-    private final File senderLogFile;
-    private FileOutputStream logFOS;
-    //todo: random initSeqNo
-    private short initSeqNo = Short.MAX_VALUE - 7;
-    private String debugMessage;
+    // the file, null for a stream
+    private final FileChannel fileChannel;
+    // the range of the file this connection sends, all of it unless stripe is set
+    private final Stripe stripe;
+    private long fileOffset;
+    // Long.MAX_VALUE while a stream, or the compressed blocks of the range, have not ended
+    private long fileSize;
+    // instead of a file, the bytes an application writes into a ReliableUdpSocket, null for a file
+    private final Pipe.SourceChannel streamSource;
+    private final SelectionKey streamKey;
+    // what the SegmentRing fills the segments from, the stream or the compressed blocks
+    // of the range, null if it reads them from the file
+    private ReadableByteChannel segmentSource;
+    // created once the receiver has agreed to compression in the SYN exchange, null otherwise
+    private BlockDeflater blockDeflater;
+    // the loop waits on the selector for the writer of the stream
+    private boolean waitingForStream = false;
+    // created once the maximum segment size has been negotiated
+    private SegmentRing segmentRing;
+    // senderLog.txt, written by a background thread
+    private final EventLog eventLog;
+    private static final int LOG_RING_SIZE = 1 << 16;
+    // random, so the receiver tells the SYN of a sender that has been restarted
+    // apart from a late copy of the SYN of the one before it
+    private int initSeqNo;
+    // tells our segments apart from those of other senders at the same receiver port
+    private final int connId;
     private final int senderPort;
     private final int receiverPort;
     private final InetAddress senderAddress;
     private final InetAddress receiverAddress;
-    private final DatagramSocket senderSocket;
+    // one thread runs every phase as an event loop over a non-blocking channel,
+    // so the state below needs no locks
+    private final DatagramChannel channel;
+    private final Selector selector;
+    private final SelectionKey selectionKey;
+    private final InetSocketAddress receiverSocketAddress;
+    // set when the socket buffer is full, new segments wait until the channel is writable
+    private boolean writeBlocked = false;
     private final String filename;
     private final int windowSizeInByte;
+    // the initial retransmission timeout, later it follows the measured RTT
     private final int rto;
+    private final RttEstimator rttEstimator;
+    private final TimerWheel timerWheel;
+    private static final long TIMER_TICK_MILLIS = 5;
+    private static final int TIMER_WHEEL_SIZE = 512;
+    private static final long MAX_RTO_MILLIS = 60_000;
 
     private final int BUFFERSIZE = 1024;
-
-    private final int maxSegmentSize = 2;
-
-    private Semaphore semaphore;
-    private short receivedACKOfSYNPkt;
+    // every reply is received into the same pooled buffer and decoded in place
+    private final ByteBuffer receiveBuffer = BufferPool.SHARED.acquire(BUFFERSIZE);
+    private final STPHeader receivedHeader = new STPHeader().wrap(receiveBuffer);
+
+    // negotiated in the SYN exchange, no larger than this.maxSegmentSizeLimit
+    private int maxSegmentSize;
+    private final int maxSegmentSizeLimit;
+    private final boolean probePathMTU;
+    private int largestProbeACKed = 0;
+    private STPOptions receivedOptionsOfSYN;
+    // candidate datagram sizes of the path MTU probe, from large to small
+    private static final int[] PROBE_DATAGRAM_SIZES = {
+            Utils.MAX_DATAGRAM_SIZE, 32768, 16384, 8972, 8192, 4096, Utils.DEFAULT_DATAGRAM_SIZE};
+
+    // initSeqNo means no ACK has been received yet, no ACK can carry it
+    private int receivedACKOfSYNPkt;
     private final int resentLimit = 3;
+    // the data phase gives up after this many timeouts of the oldest segment in a row, the RTO
+    // doubles on each of them, up to MAX_RTO_MILLIS, so it waits a few minutes for an ACK
+    private final int timeoutLimit = 12;
+    private int timeoutsWithoutProgress = 0;
+    // System.nanoTime() of the SYN and of its ACK, the first RTT sample
     private long SYNSentTime;
+    private long ACKOfSYNArrivalTime;
     private boolean connectionIsEstablished = false;
-    private Integer recACKNext = 0;
-    private int amountOfDataTransferred = 0;
-    private int numOfDataSegmentSent = 0;
-    private int numOfRetransmittedDataSegment = 0;
-    private int next = 0;
-    private int base = 0;
+    private long recACKNext = 0;
+    // the counters of the connection, also registered as an MBean for JMX clients
+    private final SenderMetrics metrics;
+    private final ObjectName metricsName;
+    // a stats line is logged every statsIntervalMillis of the data phase, 0 for none
+    private final int statsIntervalMillis;
+    private long nextStatsMillis;
+    private long next = 0;
+    private long base = 0;
     private boolean allDataHasBeenACKed = false;
-    private short receivedACKOfFINPkt = -111;
-    private boolean listenThreadShouldBeClosed = false;
+    private int receivedACKOfFINPkt;
     private long FINSentTime;
-    private Thread mainThread;
+    // set on 3 duplicate ACKs, cleared by the data loop when it resends the holes
+    private boolean fastRetransmitPending = false;
+    // the window in segments logged last, it is only logged when it changes
+    private int loggedNumOfSegInWindow = 0;
     private int dupACKCount = 0;
+    // SACK is asked for unless sack=false, and used if the receiver permits it too
+    private final boolean sackEnabled;
+    private boolean sackPermitted = false;
+    private final int[] sackBlocks = new int[2 * Utils.MAX_SACK_BLOCKS];
+    // the receiver puts its window into the seqNo of an ACK, agreed in the SYN exchange
+    private boolean windowAdvertised = false;
+    // the last ACK closed the window, nothing new is sent and only base is resent, as a probe
+    private boolean peerWindowClosed = false;
+    // the receiver has reset the connection, the application closed the stream before its end
+    private boolean resetByReceiver = false;
+    // the scoreboard, the highest segment a SACK block has covered, -1 if none
+    private long highestSACKedIndex = -1;
+    // newreno or cubic, created once the maximum segment size has been negotiated
+    private final String congestionControl;
+    private CongestionController congestionController;
+    // fec=off|auto|<n>, the group size of the parity segments, 0 for auto, -1 for none
+    private final int fecGroupSize;
+    // created once the receiver has permitted FEC in the SYN exchange, null otherwise
+    private FecEncoder fecEncoder;
+    // compress=off|deflate, BlockDeflater.STORED for off
+    private final byte compressionMethod;
+    private final int compressionBlockSize;
+    private final int compressionLevel;
+    // resume=true, ask the receiver for the prefix it has of the file, see ReceiveCheckpoint
+    private final boolean resumeEnabled;
 
     public Sender(int senderPort, int receiverPort, String filename, int windowSizeInByte, int rto) throws IOException {
-        this.semaphore = new Semaphore(1);
-        this.senderPort = senderPort;
-        this.receiverPort = receiverPort;
-        this.senderAddress = InetAddress.getByName("127.0.0.1");
-        this.receiverAddress = InetAddress.getByName("127.0.0.1");
+        this(senderPort, receiverPort, filename, windowSizeInByte, rto, new HashMap<>());
+    }
+
+    /*
+    options:
+    mss=<bytes>     upper bound of the maximum segment size, the default
+                    is the largest datagram the local interface sends unfragmented
+                    on loopback, and 1472 - header on other links
+    probe=true      probe the path MTU before the SYN, so that jumbo frame
+                    links can use segments larger than 1472 bytes
+    minRto=<ms>     lower bound of the retransmission timeout, default 20
+    cc=newreno|cubic
+                    the congestion control, default newreno, the sender keeps
+                    at most min(cwnd, window of the receiver) bytes in flight
+    connId=<n>      the connection ID in the header, random by default
+    sack=false      do not ask the receiver for SACK blocks, a fast
+                    retransmit then only resends the oldest segment
+    log=off|info|debug|trace
+                    what goes into senderLog.txt and to the console, default info,
+                    debug adds retransmissions and the window, trace every packet
+    stats=<ms>      log a line of the counters every ms milliseconds, default 1000,
+                    0 only logs it once the file has been sent. The same counters
+                    are the ReliableUDP:type=Sender MBean
+    fec=off|auto|<n>
+                    send a parity segment after every n new segments, from which
+                    the receiver rebuilds one lost segment of the n without a
+                    retransmission, auto picks n from the observed loss rate and
+                    sends no parity while there is hardly any loss, default off.
+                    Parity segments are not counted in the congestion window
+    compress=off|deflate
+                    if the receiver agrees, send the file as compressed blocks,
+                    a block that does not shrink is sent as it is, default off
+    compressBlock=<bytes>
+                    the bytes of the file in one block, at most 1 MB, default 256 KB
+    compressLevel=<0-9>
+                    the Deflater level, default 1, the fastest
+    resume=true     if the receiver has a checkpoint of an earlier transfer of the
+                    file, send only what it does not have yet, after checking the
+                    hash of the prefix it has against the file. Not with compress
+                    or stripes, default false
+     */
+    public Sender(int senderPort, int receiverPort, String filename, int windowSizeInByte, int rto,
+                  Map<String, String> options) throws IOException {
+        this(senderPort, receiverPort, filename, windowSizeInByte, rto, options, null);
+    }
+
+    /*
+    send only the range of the stripe, the receiver learns it from the SYN,
+    see StripedSender. The connection ID is the transfer ID plus the index
+    of the stripe, and every stripe logs into its own senderLog.<index>.txt
+     */
+    public Sender(int senderPort, int receiverPort, String filename, int windowSizeInByte, int rto,
+                  Map<String, String> options, Stripe stripe) throws IOException {
+        this(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), senderPort),
+                new InetSocketAddress(InetAddress.getByName("127.0.0.1"), receiverPort),
+                filename, null, windowSizeInByte, rto, options, stripe);
+    }
+
+    /*
+    send what is written into the sink of the pipe of streamSource until
+    the sink is closed, see ReliableUdpSocket. The length of a stream is
+    not known in advance, so it is not compressed and not striped
+     */
+    Sender(InetSocketAddress localAddress, InetSocketAddress remoteAddress, Pipe.SourceChannel streamSource,
+           int windowSizeInByte, int rto, Map<String, String> options) throws IOException {
+        this(localAddress, remoteAddress, null, streamSource, windowSizeInByte, rto, options, null);
+    }
+
+    private Sender(InetSocketAddress localAddress, InetSocketAddress remoteAddress, String filename,
+                   Pipe.SourceChannel streamSource, int windowSizeInByte, int rto,
+                   Map<String, String> options, Stripe stripe) throws IOException {
+        this.stripe = stripe;
+        this.senderPort = localAddress.getPort();
+        this.receiverPort = remoteAddress.getPort();
+        this.senderAddress = localAddress.getAddress();
+        this.receiverAddress = remoteAddress.getAddress();
         this.filename = filename;
+        this.streamSource = streamSource;
         this.windowSizeInByte = windowSizeInByte;
         this.rto = rto;
-        this.senderLogFile = new File(System.getProperty("user.dir") +
-                System.getProperty("file.separator") + "senderLog.txt");
-        this.senderLogFile.createNewFile();
-        this.logFOS = new FileOutputStream(senderLogFile);
-
-        String temp = "file to be sent: " + filename + "\n"
+        this.rttEstimator = new RttEstimator(rto, Utils.getIntOption(options, "minRto", 20),
+                MAX_RTO_MILLIS, TIMER_TICK_MILLIS);
+        this.timerWheel = new TimerWheel(TIMER_TICK_MILLIS, TIMER_WHEEL_SIZE, System.currentTimeMillis());
+        File senderLogFile = new File(System.getProperty("user.dir") +
+                System.getProperty("file.separator")
+                + (stripe == null ? "senderLog.txt" : "senderLog." + stripe.getIndex() + ".txt"));
+        this.eventLog = new EventLog(senderLogFile,
+                EventLog.Level.parse(options.getOrDefault("log", "info")), LOG_RING_SIZE, System.out);
+
+        log((streamSource == null ? "file to be sent: " + filename : "sending a stream") + "\n"
                 + "senderPort: " + senderPort +
                 ", receiverPort: " + receiverPort + "\n" +
                 "window size in bytes: " + windowSizeInByte
-                + ", retransmit time: " + rto + " milliseconds\n\n";
-        System.out.print(temp);
-        logFOS.write(temp.getBytes());
-
-        if (windowSizeInByte % maxSegmentSize != 0) {
-            throw new IllegalArgumentException("windowSizeInByte " +
-                    "must be a multiple of maxSegmentSize");
-        }
-
-        this.fileBytes = readBytesFromFile(filename);
-        this.dataArr = sliceFileBytesIntoDataWindow(this.fileBytes);
-        this.seqNoArr = createSeqNoArr(this.initSeqNo, this.dataArr);
-        this.expectedACKArr = createExpectedACKArr(this.seqNoArr, this.dataArr);
-        this.segmentArr = createSTPSegmentArr(this.dataArr, this.seqNoArr);
-        this.UDPPacketArr = createUDPPacketArr(this.segmentArr);
-        this.startTimeArr = new long[UDPPacketArr.length];
-        this.receivedACKArr = new short[UDPPacketArr.length];
-        Arrays.fill(receivedACKArr, NOT_REC);
-
-        this.senderSocket = new DatagramSocket(senderPort, senderAddress);
-
-        this.mainThread = Thread.currentThread();
-
-        // start the listening sub-thread
-        Thread listenThread = new Thread(() -> {
-            try {
-                listen();
-            } catch (IOException | InterruptedException e) {
-                // Handle exceptions here
-            }
-        });
-        listenThread.start();
+                + ", initial retransmit time: " + rto + " milliseconds\n"
+                + (stripe == null ? "" : stripe + "\n"));
+
+        if (stripe != null) {
+            this.connId = stripe.getTransferId() + stripe.getIndex();
+        } else {
+            this.connId = options.containsKey("connId")
+                    ? Integer.parseInt(options.get("connId")) : Utils.SECURE_RANDOM.nextInt();
+        }
+        this.initSeqNo = Utils.SECURE_RANDOM.nextInt();
+        this.receivedACKOfSYNPkt = initSeqNo;
+        this.receivedACKOfFINPkt = initSeqNo;
+        this.statsIntervalMillis = Utils.getIntOption(options, "stats", 1000);
+        this.metrics = new SenderMetrics(this.connId);
+
+        this.probePathMTU = Utils.getBooleanOption(options, "probe", false);
+        // a socket bound to the wildcard address sends through the interface of the receiver
+        InetAddress interfaceAddress = senderAddress.isAnyLocalAddress() ? receiverAddress : senderAddress;
+        int largestDatagram = receiverAddress.isLoopbackAddress() || probePathMTU
+                ? Utils.largestSafeDatagram(interfaceAddress)
+                : Math.min(Utils.largestSafeDatagram(interfaceAddress), Utils.DEFAULT_DATAGRAM_SIZE);
+        this.maxSegmentSizeLimit = Utils.getIntOption(options, "mss",
+                largestDatagram - Utils.HEADER_LENGTH);
+        if (maxSegmentSizeLimit <= 0 || maxSegmentSizeLimit > Utils.MAX_DATAGRAM_SIZE - Utils.HEADER_LENGTH) {
+            throw new IllegalArgumentException("mss must between 1 and "
+                    + (Utils.MAX_DATAGRAM_SIZE - Utils.HEADER_LENGTH));
+        }
+        this.maxSegmentSize = maxSegmentSizeLimit;
+        this.sackEnabled = Utils.getBooleanOption(options, "sack", true);
+        this.congestionControl = options.getOrDefault("cc", "newreno");
+        String fec = options.getOrDefault("fec", "off");
+        this.fecGroupSize = fec.equals("off") ? -1 : fec.equals("auto") ? 0 : Integer.parseInt(fec);
+        if (fecGroupSize > 0 && (fecGroupSize < FecEncoder.MIN_GROUP_SIZE || fecGroupSize > FecEncoder.MAX_GROUP_SIZE)) {
+            throw new IllegalArgumentException("fec must be off, auto or between "
+                    + FecEncoder.MIN_GROUP_SIZE + " and " + FecEncoder.MAX_GROUP_SIZE);
+        }
+        String compress = options.getOrDefault("compress", "off");
+        if (!compress.equals("off") && !compress.equals("deflate")) {
+            throw new IllegalArgumentException("compress must be off or deflate");
+        }
+        if (compress.equals("deflate") && streamSource != null) {
+            throw new IllegalArgumentException("compress needs a file, a stream is sent as it is");
+        }
+        this.compressionMethod = compress.equals("deflate") ? BlockDeflater.DEFLATE : BlockDeflater.STORED;
+        this.resumeEnabled = Utils.getBooleanOption(options, "resume", false);
+        if (resumeEnabled && (streamSource != null || stripe != null || !compress.equals("off"))) {
+            throw new IllegalArgumentException("resume needs a whole file that is not compressed");
+        }
+        this.compressionBlockSize = Utils.getIntOption(options, "compressBlock", 256 << 10);
+        this.compressionLevel = Utils.getIntOption(options, "compressLevel", 1);
+        if (compressionBlockSize <= 0 || compressionBlockSize > BlockDeflater.MAX_BLOCK_SIZE
+                || compressionLevel < 0 || compressionLevel > 9) {
+            throw new IllegalArgumentException("compressBlock must between 1 and " + BlockDeflater.MAX_BLOCK_SIZE
+                    + " and compressLevel between 0 and 9");
+        }
+        // fail before the SYN if the name is wrong
+        CongestionController.create(congestionControl, maxSegmentSize, windowSizeInByte);
+
+        // the file is read lazily, only the segments in the window are kept in memory
+        if (streamSource == null) {
+            this.fileChannel = openFileChannel(filename);
+            this.fileOffset = stripe == null ? 0 : stripe.getOffset();
+            this.fileSize = stripe == null ? fileChannel.size() : stripe.getLength();
+        } else {
+            this.fileChannel = null;
+            this.fileOffset = 0;
+            this.fileSize = Long.MAX_VALUE;
+        }
 
+        this.segmentSource = streamSource;
+
+        this.receiverSocketAddress = remoteAddress;
+        this.channel = DatagramChannel.open();
+        channel.bind(localAddress);
+        channel.configureBlocking(false);
+        this.selector = Selector.open();
+        this.selectionKey = channel.register(selector, SelectionKey.OP_READ);
+        if (streamSource != null) {
+            streamSource.configureBlocking(false);
+            this.streamKey = streamSource.register(selector, 0);
+        } else {
+            this.streamKey = null;
+        }
+        // the bound port, with port 0 every sender has a port of its own
+        this.metricsName = Utils.registerMBean(metrics, "Sender", connId,
+                ((InetSocketAddress) channel.getLocalAddress()).getPort(), eventLog);
+    }
+
+    public int getConnId() {
+        return connId;
+    }
+
+    public InetSocketAddress getLocalAddress() throws IOException {
+        return (InetSocketAddress) channel.getLocalAddress();
+    }
+
+    public SenderMetricsMBean getMetrics() {
+        return metrics;
     }
 
     /*
     input:
-    array index:     0   1   2   3
-    expectedACKArr:  3   5   7   9
-    receivedACKArr:  3   9  -1  -1
-    recACKNext is 1
+    segment index:   0   1   2   3
+    expectedACK:     3   5   7   9
+    ACKed:           y   n   n   n
+    recACKNext is 1, receive ACK 9
 
     all packets in a window has been received,
     but ACK 5 and 7 are lost
@@ -119,27 +344,23 @@ public class Sender {
     before 9 has been acknowledged.
 
     output:
-    array index:     0   1   2   3
-    expectedACKArr:  3   5   7   9
-    receivedACKArr:  3   5   7   9
-    recACKNext is 3
+    segment index:   0   1   2   3
+    expectedACK:     3   5   7   9
+    ACKed:           y   y   y   y
+    return 3, the index of the last segment covered by ACK 9
+
+    the expected ACKs are only kept for the segments in flight,
+    and they wrap around 2^32, so instead of a binary search we
+    walk from recACKNext to next with serial number comparison
      */
-    private void fixACKGap(short[] receivedACKArr, short[] expectedACKArr, Integer recACKNext) {
-        short currRecACK = receivedACKArr[recACKNext];
-
-        int startIndex = recACKNext;
-        int endIndex = Arrays.binarySearch(expectedACKArr, currRecACK);
-        /*
-        @Original Code, Copy arrays manually.
-        for (int i = startIndex; i <= endIndex; i++) {
-            receivedACKArr[i] = expectedACKArr[i];
-        }
-         */
-
-        // the code below is equal to the @Original Code
-        if (endIndex + 1 - startIndex >= 0) {
-            System.arraycopy(expectedACKArr, startIndex, receivedACKArr, startIndex, endIndex + 1 - startIndex);
+    private long fixACKGap(long recACKNext, int currRecACK) {
+        long endIndex = recACKNext - 1;
+        while (endIndex + 1 < this.next
+                && Utils.seqLessOrEqual(segmentRing.getExpectedACK(endIndex + 1), currRecACK)) {
+            endIndex += 1;
+            segmentRing.setACKed(endIndex);
         }
+        return endIndex;
     }
 
     private void readThisComment() {
@@ -151,357 +372,780 @@ public class Sender {
         receiver receive packet with seqNo 1 7,
         and the ACKs of packet 1 and packet 7 do not get lost,
         so in Sender.java,
-        expectedACKArr: 3  5  7  9
-        receivedACKArr: 3  3 -1 -1
+        expectedACK: 3  5  7  9
+        ACKed:       y  n  n  n
 
         now Sender.java going to resent packet 3,
         if we increment recACKNext as what we do when
         currRecACK == expRecACK and currRecACK> expRecACK,
         this will happen:
-        expectedACKArr: 3  5  7  9
-        receivedACKArr: 3  3  5 -1
+        expectedACK: 3  5  7  9
+        ACKed:       y  y  n  n   (by ACK 3)
 
         that is not we want, we want this:
-        expectedACKArr: 3  5  7  9
-        receivedACKArr: 3  5 -1 -1
+        expectedACK: 3  5  7  9
+        ACKed:       y  n  n  n
          */
     }
 
-    private void dealingWithRecACKOfDATA(short recSeqNo) throws InterruptedException, IOException {
-        receivedACKArr[recACKNext] = recSeqNo;
-        short currRecACK = receivedACKArr[recACKNext];
-        short expRecACK = expectedACKArr[recACKNext];
+    /*
+    mark the segments covered by the SACK blocks of an ACK, e.g.
+    maxSegmentSize is 2, the ACK is 3 with the block [7, 11)
+    segment index:   0   1   2   3   4
+    seqNo:           1   3   5   7   9
+    ACKed:           y   n   n   n   n
+    SACKed:          n   n   n   y   y
+    segments 1 and 2 are the holes, highestSACKedIndex is 4.
+    the receiver writes SACKed data to the file, it never drops it again,
+    so a SACKed segment needs no retransmission
+     */
+    private void updateScoreboard(int numOfBlocks) {
+        for (int i = 0; i < numOfBlocks; i++) {
+            int left = sackBlocks[2 * i];
+            int right = sackBlocks[2 * i + 1];
+            // segments are aligned to maxSegmentSize, so the first covered one is found directly
+            int distance = left - segmentRing.getSeqNo(recACKNext);
+            long index = distance <= 0 ? recACKNext
+                    : recACKNext + (distance + maxSegmentSize - 1) / maxSegmentSize;
+            // the segments between the highest SACKed one so far and this block are new holes
+            long firstUnseen = Math.max(this.highestSACKedIndex + 1, recACKNext);
+            if (fecEncoder != null && index > firstUnseen) {
+                fecEncoder.onLoss((int) (index - firstUnseen));
+            }
+            while (index < this.next
+                    && Utils.seqLessOrEqual(segmentRing.getExpectedACK(index), right)) {
+                if (!segmentRing.isSACKed(index) && !segmentRing.isRetransmitted(index)
+                        && segmentRing.getExpectedACK(index) == right) {
+                    // the right edge has just arrived, it gives an RTT sample
+                    addRttSample(System.nanoTime() - segmentRing.getStartTime(index));
+                }
+                segmentRing.setSACKed(index);
+                this.highestSACKedIndex = Math.max(this.highestSACKedIndex, index);
+                index += 1;
+            }
+        }
+    }
 
-        if (currRecACK > expRecACK) {
-            fixACKGap(receivedACKArr, expectedACKArr, recACKNext);
-            recACKNext += 1;
-        } else if (currRecACK == expRecACK) {
-            recACKNext += 1;
+    /*
+    recWindow is the receive window in the seqNo of the ACK. While it is 0
+    the ACKs that do not move are no sign of a loss, the application of
+    the receiver does not read, and they show that the receiver is alive
+     */
+    private void dealingWithRecACKOfDATA(int currRecACK, int recWindow, int numOfSackBlocks) throws IOException {
+        boolean windowClosed = this.windowAdvertised && recWindow == 0;
+        if (windowClosed != this.peerWindowClosed) {
+            eventLog.message(EventLog.Level.DEBUG, windowClosed ? "the receiver closed its window"
+                    : "the receiver opened its window");
+            this.peerWindowClosed = windowClosed;
+        }
+        if (recACKNext >= this.next) {
+            // every segment that has been sent is already ACKed
+            return;
+        }
+        int expRecACK = segmentRing.getExpectedACK(recACKNext);
+        updateScoreboard(numOfSackBlocks);
+
+        if (Utils.seqGreaterOrEqual(currRecACK, expRecACK)) {
+            long endIndex = fixACKGap(recACKNext, currRecACK);
+            // Karn's rule, only a segment sent exactly once gives an RTT sample.
+            // if a resent segment filled a hole, the ACK was sent when the copy
+            // arrived, not endIndex, so it gives no sample either
+            boolean holeFilledByResend = false;
+            for (long i = recACKNext; i <= endIndex; i++) {
+                holeFilledByResend |= segmentRing.isRetransmitted(i);
+            }
+            long ackedBytes = offsetOf(endIndex + 1) - offsetOf(recACKNext);
+            recACKNext = endIndex + 1;
+            // the window slides as soon as the ACK arrives
+            this.base = recACKNext;
+            this.dupACKCount = 0;
+            this.timeoutsWithoutProgress = 0;
+            rttEstimator.resetBackOff();
+            // a SACKed segment gave its sample already, its ACK waited for a hole
+            if (!holeFilledByResend && !segmentRing.isSACKed(endIndex)
+                    && segmentRing.getExpectedACK(endIndex) == currRecACK) {
+                addRttSample(System.nanoTime() - segmentRing.getStartTime(endIndex));
+            }
+            metrics.onAcked(ackedBytes);
+            congestionController.onAck(ackedBytes, offsetOf(recACKNext),
+                    rttEstimator.getSrttNanos(), System.nanoTime());
+            if (congestionController.isInRecovery() && recACKNext < this.next) {
+                // a partial ACK, the segment at base is lost as well, resend it
+                // now instead of waiting for three more duplicates or its timer
+                eventLog.event(EventLog.Event.PARTIAL_ACK, connId, currRecACK);
+                this.fastRetransmitPending = true;
+            }
+        } else if (windowClosed) {
+            this.timeoutsWithoutProgress = 0;
         } else {
             readThisComment();
             this.dupACKCount += 1;
-            if (dupACKCount == 3) {
-                dupACKCount = 0;
-                // wake up main thread
-                debugMessage = "detect 3 duplicate ACK, trying " +
-                        "to wake up main thread\n";
-                System.out.print(debugMessage);
-                logFOS.write(debugMessage.getBytes());
-                mainThread.interrupt();
+            metrics.onDuplicateAck();
+            congestionController.onDuplicateAck(dupACKCount, bytesInFlight(),
+                    offsetOf(this.next), System.nanoTime());
+            if (dupACKCount % 3 == 0) {
+                eventLog.event(EventLog.Event.FAST_RETRANSMIT, connId, currRecACK);
+                this.fastRetransmitPending = true;
+                metrics.onFastRetransmit();
             }
         }
     }
 
-    public void listen() throws IOException, InterruptedException {
-        // listen to incoming packets from receiver
-        String debugMessage2;
+    // the file offset of the first byte of a segment, or the file size after the last one
+    private long offsetOf(long segmentIndex) {
+        return Math.min(segmentIndex * maxSegmentSize, this.fileSize);
+    }
+
+    private long bytesInFlight() {
+        return offsetOf(this.next) - offsetOf(this.recACKNext);
+    }
+
+    /*
+    wait at most timeoutMillis for the channel, then handle every datagram
+    that has arrived. The ACKs are handled in between the sends of the
+    same thread, so there is no listening thread and nothing to lock
+     */
+    private void poll(long timeoutMillis) throws IOException {
+        if (timeoutMillis > 0) {
+            selector.select(timeoutMillis);
+        } else {
+            selector.selectNow();
+        }
+        boolean selected = selector.selectedKeys().remove(selectionKey);
+        if (streamKey != null) {
+            selector.selectedKeys().remove(streamKey);
+        }
+        if (selected && writeBlocked && selectionKey.isWritable()) {
+            writeBlocked = false;
+            selectionKey.interestOps(SelectionKey.OP_READ);
+        }
         while (true) {
-            semaphore.acquire();
-            if (this.listenThreadShouldBeClosed) {
-                debugMessage2 = "receive signal from sending thread, closing...\n";
-                System.out.print(debugMessage2);
-                logFOS.write(debugMessage2.getBytes());
-                semaphore.release();
-                senderSocket.close();
+            receiveBuffer.clear();
+            if (channel.receive(receiveBuffer) == null) {
                 return;
             }
-            semaphore.release();
+            onSegment(receiveBuffer.position());
+        }
+    }
+
+    // the segment is the first length bytes of receiveBuffer
+    private void onSegment(int length) throws IOException {
+        if (!receivedHeader.isSupportedVersion(length)) {
+            if (eventLog.isEnabled(EventLog.Level.DEBUG)) {
+                eventLog.message(EventLog.Level.DEBUG, "drop pkt with unsupported header version "
+                        + receivedHeader.getVersion());
+            }
+            return;
+        }
+        if (!receivedHeader.isComplete(length)) {
+            if (eventLog.isEnabled(EventLog.Level.DEBUG)) {
+                eventLog.message(EventLog.Level.DEBUG, "drop truncated pkt of " + length + " bytes");
+            }
+            return;
+        }
+        length = receivedHeader.getSegmentLength();
+        if (receivedHeader.getConnId() != this.connId) {
+            if (eventLog.isEnabled(EventLog.Level.DEBUG)) {
+                eventLog.message(EventLog.Level.DEBUG, "drop pkt of another connection "
+                        + receivedHeader.getConnId());
+            }
+            return;
+        }
+        int recAckNo = receivedHeader.getAckNo();
+        short type = receivedHeader.getType();
+
+        if (type == Utils.RESET) {
+            log("receive RESET, the receiver has closed the connection");
+            this.resetByReceiver = true;
+            return;
+        }
 
-            byte[] receiveData = new byte[BUFFERSIZE];
-            DatagramPacket receivePacket = new DatagramPacket(receiveData, receiveData.length);
-            senderSocket.receive(receivePacket);
-            byte[] stpSegment = receivePacket.getData();
-            short recSeqNo = Utils.getSeqNo(stpSegment);
-            short type = Utils.getType(stpSegment);
+        if (type == Utils.PROBE) {
+            log("receive PROBE echo of " + recAckNo + " bytes");
+            this.largestProbeACKed = Math.max(this.largestProbeACKed, recAckNo);
+            return;
+        }
 
-            debugMessage2 = "receive ACK: " + recSeqNo + "\n";
-            System.out.print(debugMessage2);
-            logFOS.write(debugMessage2.getBytes());
+        boolean recACKIsForDATASegment =
+                this.connectionIsEstablished && !this.allDataHasBeenACKed;
+        int numOfSackBlocks = 0;
+        if (recACKIsForDATASegment && this.sackPermitted) {
+            numOfSackBlocks = Utils.getSackBlocks(receiveBuffer, length, sackBlocks);
+        }
+        if (numOfSackBlocks == 0) {
+            eventLog.event(EventLog.Event.RECEIVE_ACK, connId, recAckNo);
+        }
+        for (int i = 0; i < numOfSackBlocks; i++) {
+            eventLog.event(EventLog.Event.RECEIVE_SACK_BLOCK, connId,
+                    recAckNo, sackBlocks[2 * i], sackBlocks[2 * i + 1]);
+        }
 
-            semaphore.acquire();
+        if (recACKIsForDATASegment) {
+            dealingWithRecACKOfDATA(recAckNo, receivedHeader.getSeqNo(), numOfSackBlocks);
+        }
 
-            boolean recACKIsForDATASegment =
-                    this.connectionIsEstablished && !this.allDataHasBeenACKed;
-            if (recACKIsForDATASegment) {
-                dealingWithRecACKOfDATA(recSeqNo);
-            }
+        // a late ACK of a SYN that has been replaced does not count
+        boolean recACKIsForSYNSegment = !this.connectionIsEstablished && recAckNo == this.initSeqNo + 1;
+        if (recACKIsForSYNSegment) {
+            this.receivedACKOfSYNPkt = recAckNo;
+            this.ACKOfSYNArrivalTime = System.nanoTime();
+            this.receivedOptionsOfSYN = STPOptions.decode(Utils.getData(receiveBuffer, length));
+        }
 
-            boolean recACKIsForSYNSegment = !this.connectionIsEstablished;
-            if (recACKIsForSYNSegment) {
-                this.receivedACKOfSYNPkt = recSeqNo;
-            }
+        boolean recACKIsForFINSegment =
+                connectionIsEstablished && this.allDataHasBeenACKed;
+        if (recACKIsForFINSegment) {
+            this.receivedACKOfFINPkt = recAckNo;
+        }
+    }
 
-            boolean recACKIsForFINSegment =
-                    connectionIsEstablished && this.allDataHasBeenACKed;
-            if (recACKIsForFINSegment) {
-                this.receivedACKOfFINPkt = recSeqNo;
+    // run the event loop until deadlineMillis, or until done says so
+    private void pollUntil(long deadlineMillis, java.util.function.BooleanSupplier done) throws IOException {
+        while (!done.getAsBoolean()) {
+            long remaining = deadlineMillis - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return;
             }
-            semaphore.release();
+            poll(remaining);
+        }
+    }
 
+    /*
+    send a datagram to the receiver, false if the socket buffer is full,
+    then the channel is watched for OP_WRITE and the caller either treats
+    the datagram as lost or tries again after the next poll
+     */
+    private boolean sendDatagram(ByteBuffer datagram) throws IOException {
+        if (channel.send(datagram, receiverSocketAddress) > 0) {
+            return true;
         }
+        writeBlocked = true;
+        selectionKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        return false;
     }
 
-    public void run() throws IOException, InterruptedException {
+    public void run() throws IOException {
+        connect();
+        transfer();
+    }
+
+    // probe the path MTU if asked to, and establish the connection
+    void connect() throws IOException {
+        if (this.probePathMTU) {
+            probePathMTU();
+        }
         sendSYNAndCheckACK();
+    }
+
+    // send the data and the FIN of a connection established by connect, then close it
+    void transfer() throws IOException {
         sendDATAAndCheckACK();
         sendFINAndCheckACK();
     }
 
-    private void sendSYNAndCheckACK() throws IOException, InterruptedException {
-        sendOnePktAndCheckACK(Utils.SYN, Utils.mod(this.initSeqNo),
-                Utils.mod(this.initSeqNo + 1));
+    /*
+    send one PROBE of every candidate size that fits in maxSegmentSize,
+    the receiver echoes the ones it gets, the largest echoed one becomes
+    the maxSegmentSize we advertise in the SYN. The probes are sent at most
+    this.resentLimit times, if none of them comes back we keep the
+    maxSegmentSize limited by the local interface.
+     */
+    private void probePathMTU() throws IOException {
+        for (int round = 0; round < this.resentLimit; round++) {
+            for (int datagramSize : PROBE_DATAGRAM_SIZES) {
+                int probeSize = datagramSize - Utils.HEADER_LENGTH;
+                if (probeSize > this.maxSegmentSize) {
+                    continue;
+                }
+                log("sending PROBE of " + probeSize + " bytes");
+                byte[] stpSegment = Utils.createSTPSegment(Utils.PROBE, this.connId,
+                        this.initSeqNo, 0, new byte[probeSize]);
+                sendDatagram(ByteBuffer.wrap(stpSegment));
+            }
+
+            // we can not tell how many echoes will come, so wait one RTO for all of them
+            pollUntil(System.currentTimeMillis() + rttEstimator.getRtoMillis(), () -> false);
+
+            if (this.largestProbeACKed > 0) {
+                this.maxSegmentSize = this.largestProbeACKed;
+                break;
+            }
+        }
+        log("path MTU probe done, maxSegmentSize is " + this.maxSegmentSize);
+    }
+
+    private void sendSYNAndCheckACK() throws IOException {
+        STPOptions options = new STPOptions(this.maxSegmentSize,
+                channel.getOption(StandardSocketOptions.SO_RCVBUF));
+        options.setSackPermitted(this.sackEnabled);
+        options.setStripe(this.stripe);
+        // the ACK handling walks cumulative ACKs of any number of segments, so the receiver may delay its ACKs
+        options.setSendWindow(this.windowSizeInByte);
+        options.setFecPermitted(this.fecGroupSize >= 0);
+        options.setCompression(this.compressionMethod, this.compressionBlockSize);
+        // the receiver of a stream closes its window while its application does not read
+        options.setWindowAdvertised(true);
+        long sourceId = this.resumeEnabled ? sourceIdOf(this.filename) : 0;
+        if (this.resumeEnabled) {
+            options.setResume(this.fileSize, sourceId, false);
+        }
+        sendOnePktAndCheckACK(Utils.SYN, this.initSeqNo, this.initSeqNo + 1, options.encode());
+
+        STPOptions peerOptions = this.receivedOptionsOfSYN;
+        if (peerOptions.getResumeOffset() > 0 && !resumeAt(peerOptions.getResumeOffset(), peerOptions.getResumeHash())) {
+            // a SYN with another seqNo starts the transfer over, the receiver drops its checkpoint
+            options.setResume(this.fileSize, sourceId, true);
+            this.initSeqNo += 1;
+            this.connectionIsEstablished = false;
+            sendOnePktAndCheckACK(Utils.SYN, this.initSeqNo, this.initSeqNo + 1, options.encode());
+            peerOptions = this.receivedOptionsOfSYN;
+        }
+
+        // both sides use the smaller maxSegmentSize, and we never keep more
+        // bytes in flight than the receiver is able to buffer
+        if (peerOptions.getMaxSegmentSize() > 0) {
+            this.maxSegmentSize = Math.min(this.maxSegmentSize, peerOptions.getMaxSegmentSize());
+        }
+        this.sackPermitted = this.sackEnabled && peerOptions.isSackPermitted();
+        this.windowAdvertised = peerOptions.isWindowAdvertised();
+        int window = this.windowSizeInByte;
+        if (peerOptions.getReceiveBufferSize() > 0) {
+            window = Math.min(window, peerOptions.getReceiveBufferSize());
+        }
+        int numOfSegInWindow = Math.max(1, window / this.maxSegmentSize);
+        if (this.compressionMethod != BlockDeflater.STORED
+                && peerOptions.getCompressionMethod() == this.compressionMethod) {
+            // the blocks are compressed as the ring fills, their length is known once the last one is read
+            this.blockDeflater = new BlockDeflater(fileChannel, fileOffset, fileSize,
+                    compressionBlockSize, compressionLevel);
+            this.segmentSource = blockDeflater;
+            this.fileSize = Long.MAX_VALUE;
+        }
+        this.segmentRing = segmentSource == null
+                ? new SegmentRing(fileChannel, fileOffset, fileSize, maxSegmentSize, numOfSegInWindow, this.connId)
+                : new SegmentRing(maxSegmentSize, numOfSegInWindow, this.connId);
+        this.congestionController = CongestionController.create(this.congestionControl,
+                maxSegmentSize, (long) numOfSegInWindow * maxSegmentSize);
+        if (this.fecGroupSize >= 0 && peerOptions.isFecPermitted()) {
+            this.fecEncoder = new FecEncoder(this.connId, maxSegmentSize, this.initSeqNo + 1, fileSize,
+                    this.fecGroupSize, numOfSegInWindow);
+        }
+
+        log("receiver advertised " + peerOptions + "\n"
+                + "negotiated maxSegmentSize: " + this.maxSegmentSize
+                + ", segments in window: " + numOfSegInWindow
+                + ", SACK: " + this.sackPermitted
+                + ", congestion control: " + this.congestionControl
+                + ", FEC: " + (fecEncoder == null ? "off" : fecGroupSize == 0 ? "auto" : "groups of " + fecGroupSize)
+                + ", connection ID: " + this.connId);
+    }
+
+    /*
+    the receiver has [0, offset) of the file, from here on the connection
+    sends the rest, if the prefix of our file has the hash of the one it has.
+    The prefix is read to hash it, which is cheaper than sending it again
+     */
+    private boolean resumeAt(long offset, long hash) throws IOException {
+        if (offset > this.fileSize) {
+            log("the receiver has " + offset + " bytes of a file of " + this.fileSize + ", starting over");
+            return false;
+        }
+        long startNanos = System.nanoTime();
+        if (ReceiveCheckpoint.prefixHash(this.fileChannel, this.fileOffset, offset) != hash) {
+            log("the first " + offset + " bytes the receiver has are not those of the file, starting over");
+            return false;
+        }
+        this.fileOffset += offset;
+        this.fileSize -= offset;
+        log("resuming at byte " + offset + String.format(", its prefix checked in %.1f ms",
+                (System.nanoTime() - startNanos) / 1e6));
+        return true;
+    }
+
+    private boolean isACKed(short type, int expACK) {
+        if (type == Utils.SYN) {
+            return this.receivedACKOfSYNPkt == expACK;
+        }
+        return this.receivedACKOfFINPkt == expACK;
     }
 
     // retransmit unacknowledged packet at most this.resentLimit times
-    private void sendOnePktAndCheckACK(short type, short seqNo, short expACK) throws IOException, InterruptedException {
+    private void sendOnePktAndCheckACK(short type, int seqNo, int expACK, byte[] data) throws IOException {
         if (!(type == Utils.SYN || type == Utils.FIN)) {
             throw new IllegalArgumentException("type should be SYN or FIN");
         }
 
-        byte[] stpSegment = Utils.createSTPSegment(type, seqNo, "".getBytes());
-        DatagramPacket stpPacket = createUDPPacket(stpSegment);
+        byte[] stpSegment = Utils.createSTPSegment(type, this.connId, seqNo, 0, data);
+        ByteBuffer datagram = ByteBuffer.wrap(stpSegment);
 
-        debugMessage = "sending " + Utils.convertTypeNumToString(type)
-                + " pkt with seqNo " + seqNo + "\n";
-        System.out.print(debugMessage);
-        logFOS.write(debugMessage.getBytes());
-        senderSocket.send(stpPacket);
+        log("sending " + Utils.convertTypeNumToString(type)
+                + " pkt with seqNo " + seqNo);
+        sendDatagram(datagram);
         if (type == Utils.SYN) {
-            this.SYNSentTime = System.currentTimeMillis();
+            this.SYNSentTime = System.nanoTime();
         } else {
-            this.FINSentTime = System.currentTimeMillis();
+            this.FINSentTime = System.nanoTime();
         }
 
-        Thread.sleep(this.rto);
-
-        boolean shouldRetransmit;
-        semaphore.acquire();
-        if (type == Utils.SYN) {
-            shouldRetransmit = this.receivedACKOfSYNPkt != expACK;
-        } else {
-            shouldRetransmit = this.receivedACKOfFINPkt != expACK;
-        }
-        semaphore.release();
+        // the loop returns as soon as the ACK arrives, instead of sleeping one RTO
+        pollUntil(System.currentTimeMillis() + rttEstimator.getRtoMillis(), () -> isACKed(type, expACK));
 
         int resentCount = 0;
-        while (shouldRetransmit) {
+        while (!isACKed(type, expACK)) {
             if (resentCount > this.resentLimit) {
-                debugMessage = "sending Reset...\n";
-                System.out.print(debugMessage);
-                logFOS.write(debugMessage.getBytes());
+                log("sending Reset...");
                 sendRESETAndDoNotCheckACK();
-                semaphore.acquire();
-                this.listenThreadShouldBeClosed = true;
-                semaphore.release();
-                debugMessage = "calling System.exit...\n";
-                System.out.print(debugMessage);
-                logFOS.write(debugMessage.getBytes());
-                System.exit(0);
+                close();
+                // the other stripes of a striped transfer are still running, so we do not exit
+                throw new IOException("no ACK of " + Utils.convertTypeNumToString(type)
+                        + " after " + resentCount + " resends, the connection has been reset");
             }
 
-            debugMessage = "resending " + Utils.convertTypeNumToString(type)
-                    + " pkt with seqNo " + seqNo + "\n";
-            System.out.print(debugMessage);
-            logFOS.write(debugMessage.getBytes());
-            senderSocket.send(stpPacket);
+            log("resending " + Utils.convertTypeNumToString(type)
+                    + " pkt with seqNo " + seqNo);
+            datagram.rewind();
+            sendDatagram(datagram);
             if (type == Utils.SYN) {
-                this.SYNSentTime = System.currentTimeMillis();
+                this.SYNSentTime = System.nanoTime();
             } else {
-                this.FINSentTime = System.currentTimeMillis();
+                this.FINSentTime = System.nanoTime();
             }
+            rttEstimator.backOff();
 
-            Thread.sleep(this.rto);
+            pollUntil(System.currentTimeMillis() + rttEstimator.getRtoMillis(), () -> isACKed(type, expACK));
             resentCount += 1;
-
-            semaphore.acquire();
-            if (type == Utils.SYN) {
-                shouldRetransmit = this.receivedACKOfSYNPkt != expACK;
-            } else {
-                shouldRetransmit = this.receivedACKOfFINPkt != expACK;
-            }
-            semaphore.release();
         }
 
-        semaphore.acquire();
         if (type == Utils.SYN) {
             this.connectionIsEstablished = true;
-        } else {
-            this.listenThreadShouldBeClosed = true;
-        }
-        semaphore.release();
-    }
-
-    // this function doesn't have a limit for retransmit packet
-    private void sendAllPacketsInWindow(int numOfSegInWindow) throws IOException {
-        while (this.next < this.base + numOfSegInWindow) {
-            debugMessage = "sending pkt with seqNo " + seqNoArr[this.next]
-                    + ", content: " + Arrays.toString(dataArr[next]) + "\n";
-            System.out.print(debugMessage);
-            logFOS.write(debugMessage.getBytes());
-            senderSocket.send(this.UDPPacketArr[this.next]);
-            this.startTimeArr[this.next] = System.currentTimeMillis();
-            this.amountOfDataTransferred += dataArr[this.next].length;
-            this.numOfDataSegmentSent += 1;
-            this.next += 1;
+            if (resentCount == 0) {
+                addRttSample(this.ACKOfSYNArrivalTime - this.SYNSentTime);
+            }
         }
     }
 
-    private void resentUnACKPacketsInWindow(int numOfSegInWindow) throws InterruptedException, IOException {
-        int flag = numOfSegInWindow;
-        while (flag > 0) {
-            semaphore.acquire();
-            boolean needToBeResent = receivedACKArr[this.base] < expectedACKArr[this.base];
-            semaphore.release();
-            if (needToBeResent) {
-                debugMessage = "resending pkt with seqNo "
-                        + seqNoArr[this.base] + "\n";
-                System.out.print(debugMessage);
-                logFOS.write(debugMessage.getBytes());
-                senderSocket.send(this.UDPPacketArr[this.base]);
-                this.startTimeArr[this.base] = System.currentTimeMillis();
-                this.numOfRetransmittedDataSegment += 1;
-                Thread.sleep(this.rto);
+    /*
+    send the segments from next up to windowEnd, it stops early
+    if the socket buffer is full, the rest is sent after the next poll
+     */
+    private void sendNewSegments(long windowEnd) throws IOException {
+        boolean waitForStream = false;
+        while (this.next < windowEnd && !this.writeBlocked) {
+            // SYN segment's seqNo is initSeqNo, so the first
+            // Data Segment's seqNo is initSeqNo+1
+            long segmentIndex = this.next;
+            int seqNo = (int) (this.initSeqNo + 1 + segmentIndex * maxSegmentSize);
+            if (segmentSource != null) {
+                boolean filled = segmentRing.fill(segmentIndex, segmentSource);
+                // the size is known once the stream has ended
+                this.fileSize = segmentRing.getFileSize();
+                if (!filled) {
+                    // no full segment has been written yet, unless the stream has ended
+                    waitForStream = segmentIndex < segmentRing.getNumOfSegments();
+                    break;
+                }
+            }
+            if (fecEncoder == null) {
+                segmentRing.load(segmentIndex, seqNo);
             } else {
-                this.base += 1;
-                flag -= 1;
+                segmentRing.load(segmentIndex, seqNo, fecEncoder.startSegment(segmentIndex));
+            }
+            if (!sendDatagram(segmentRing.getDatagram(segmentIndex))) {
+                break;
             }
+            if (fecEncoder != null) {
+                sendParityIfDue(segmentIndex);
+            }
+            segmentRing.setStartTime(segmentIndex, System.nanoTime());
+            scheduleRetransmission(segmentIndex);
+            this.next += 1;
+
+            eventLog.event(EventLog.Event.SEND_DATA, connId, seqNo, segmentRing.getDataLen(segmentIndex), 0);
+            metrics.onSend(segmentRing.getDataLen(segmentIndex));
+        }
+        watchStream(waitForStream);
+    }
+
+    /*
+    the selector wakes the loop up when the writer of the stream writes,
+    but only while the loop waits for it, a full window waits for ACKs
+     */
+    private void watchStream(boolean waitForStream) {
+        if (streamKey == null || waitForStream == this.waitingForStream) {
+            return;
+        }
+        this.waitingForStream = waitForStream;
+        streamKey.interestOps(waitForStream ? SelectionKey.OP_READ : 0);
+    }
+
+    /*
+    add the segment that has just been sent to the parity of its group, and
+    send the parity after the last segment of the group. A parity segment is
+    never resent, if it is lost the lost segment of its group is resent
+     */
+    private void sendParityIfDue(long segmentIndex) throws IOException {
+        ByteBuffer parity = fecEncoder.addSegment(segmentIndex, segmentRing.getDatagram(segmentIndex),
+                segmentRing.getDataLen(segmentIndex));
+        if (parity == null) {
+            return;
+        }
+        int length = parity.remaining() - Utils.HEADER_LENGTH;
+        if (sendDatagram(parity)) {
+            // the group ends with this segment, the seqNo after it is the ackNo its segments carry
+            eventLog.event(EventLog.Event.SEND_PARITY, connId, segmentRing.getExpectedACK(segmentIndex), length, 0);
+            metrics.onParity(length);
         }
     }
 
-    private void sendDATAAndCheckACK() throws IOException, InterruptedException {
-        while (this.base < this.UDPPacketArr.length) {
-            int numOfSegInWindow = Math.min(windowSizeInByte / maxSegmentSize, UDPPacketArr.length - base);
-            // in this example, maxWin is 6 bytes, MSS is 2 bytes,
-            // so generally the num of segments in a window is 3(maxWin/MSS),
-            // but in the rightmost window, the num of segments may less than 3
+    // every segment in flight has its own deadline in the timer wheel
+    private void scheduleRetransmission(long segmentIndex) {
+        long deadline = System.currentTimeMillis() + rttEstimator.getRtoMillis();
+        segmentRing.setDeadline(segmentIndex, deadline);
+        timerWheel.schedule(segmentIndex, deadline);
+    }
 
-            sendAllPacketsInWindow(numOfSegInWindow);
+    // every RTT sample goes to the estimator of the RTO and to the histogram of the metrics
+    private void addRttSample(long rttNanos) {
+        rttEstimator.addSample(rttNanos);
+        metrics.onRttSample(rttNanos);
+    }
 
-            try {
-                Thread.sleep(this.rto);
-            } catch (InterruptedException e) {
-                debugMessage = "main thread wake up, starting fast-retransmit\n";
-                System.out.print(debugMessage);
-                logFOS.write(debugMessage.getBytes());
+    private void resendSegment(long segmentIndex) throws IOException {
+        eventLog.event(EventLog.Event.RESEND_DATA, connId,
+                segmentRing.getSeqNo(segmentIndex), rttEstimator.getRtoMillis(), 0);
+        // if the socket buffer is full the copy is lost, its timer resends it
+        sendDatagram(segmentRing.getDatagram(segmentIndex));
+        segmentRing.setStartTime(segmentIndex, System.nanoTime());
+        segmentRing.setRetransmitted(segmentIndex);
+        metrics.onResend(segmentRing.getDataLen(segmentIndex));
+        scheduleRetransmission(segmentIndex);
+    }
 
-                // stop sleeping
+    /*
+    a timer of the wheel is never cancelled, it is stale if its segment
+    has been ACKed, has left the ring, or has been resent with a new deadline
+     */
+    private void onRetransmissionTimeout(long segmentIndex, long deadline) throws IOException {
+        boolean stale = segmentIndex < this.base || segmentIndex >= this.next
+                || segmentRing.isACKed(segmentIndex)
+                || segmentRing.isSACKed(segmentIndex)
+                || segmentRing.getDeadline(segmentIndex) != deadline;
+        if (!stale && this.peerWindowClosed) {
+            // a probe of the closed window, not a loss, the ACK of base tells when it opens
+            if (segmentIndex == this.base) {
+                this.timeoutsWithoutProgress += 1;
+                rttEstimator.backOff();
+                resendSegment(segmentIndex);
+            } else {
+                scheduleRetransmission(segmentIndex);
             }
-            /*
-            you might think this will be a possible scenario
-            // e.g.
-            // startTimeArr:    10.1    10.3    10.5
-            // after sending all segments in a window, current time is 10.7,
-            // we need to sleep until 11.1s (rto is 1 second)
+            return;
+        }
+        if (!stale && !this.sackPermitted && fecEncoder != null) {
+            // without SACK blocks a timeout is the only sign of a loss
+            fecEncoder.onLoss(1);
+        }
+        if (!stale && segmentIndex == this.base) {
+            // back off once per timeout of the oldest segment, like the single timer of TCP
+            this.timeoutsWithoutProgress += 1;
+            rttEstimator.backOff();
+            congestionController.onTimeout(bytesInFlight(), System.nanoTime());
+            metrics.onTimeout();
+        }
+        if (!stale) {
+            resendSegment(segmentIndex);
+        }
+    }
 
-            indeed, the startTimeArr will be: 10.1  10.1  10.1
-            so here we just need to directly sleep for this.rto seconds
-             */
+    /*
+    with SACK, every segment below the highest SACKed one that is neither
+    ACKed nor SACKed is a hole, and all of them are resent at once instead
+    of one per RTT. A hole resent less than an SRTT ago is skipped, its copy
+    may still be on the way, and so is a hole the receiver rebuilds from the
+    parity of its group. Without SACK information only base is resent
+     */
+    private void resendHoles() throws IOException {
+        if (this.highestSACKedIndex <= this.base) {
+            resendSegment(this.base);
+            return;
+        }
+        long now = System.nanoTime();
+        long srtt = rttEstimator.getSrttNanos();
+        for (long i = this.base; i < this.highestSACKedIndex; i++) {
+            boolean isHole = !segmentRing.isACKed(i) && !segmentRing.isSACKed(i)
+                    && now - segmentRing.getStartTime(i) >= srtt
+                    && (fecEncoder == null || !fecEncoder.isRecoverable(i, segmentRing, this.base, this.next));
+            if (isHole) {
+                resendSegment(i);
+            }
+        }
+    }
 
-            resentUnACKPacketsInWindow(numOfSegInWindow);
+    /*
+    a continuous sliding window, base moves as soon as a cumulative ACK
+    is handled by poll, then the window is filled again right away, so
+    the pipe never drains between rounds. each lost segment is resent
+    when its own timer expires, or right away with the other holes on
+    a fast retransmit
+     */
+    private void sendDATAAndCheckACK() throws IOException {
+        metrics.start();
+        this.nextStatsMillis = System.currentTimeMillis() + statsIntervalMillis;
+        // the number of segments of a stream is known once it has ended
+        while (this.base < segmentRing.getNumOfSegments()) {
+            if (this.fastRetransmitPending) {
+                this.fastRetransmitPending = false;
+                resendHoles();
+            }
 
+            // the window is min(cwnd, window of the receiver), at least one segment
+            long cwnd = congestionController.getCongestionWindow();
+            int numOfSegInWindow = (int) Math.min(segmentRing.getCapacity(),
+                    Math.max(1, cwnd / maxSegmentSize));
+            if (numOfSegInWindow != loggedNumOfSegInWindow) {
+                loggedNumOfSegInWindow = numOfSegInWindow;
+                eventLog.event(EventLog.Event.WINDOW, connId, numOfSegInWindow, cwnd,
+                        congestionController.getSlowStartThreshold());
+            }
+            // a closed window sends nothing new, and does not wait for the stream either
+            sendNewSegments(this.peerWindowClosed ? this.base
+                    : Math.min(this.base + numOfSegInWindow, segmentRing.getNumOfSegments()));
+            metrics.updateWindow(cwnd, congestionController.getSlowStartThreshold(), bytesInFlight(),
+                    numOfSegInWindow, segmentRing.getCapacity(),
+                    rttEstimator.getSrttNanos(), rttEstimator.getRtoMillis());
+            logStatsIfDue();
+
+            timerWheel.expire(System.currentTimeMillis(), this::onRetransmissionTimeout);
+            if (this.resetByReceiver) {
+                close();
+                throw new IOException("the receiver has reset the connection");
+            }
+            if (this.timeoutsWithoutProgress > this.timeoutLimit) {
+                log("sending Reset...");
+                sendRESETAndDoNotCheckACK();
+                close();
+                throw new IOException("no ACK of DATA after " + timeoutsWithoutProgress
+                        + " timeouts in a row, the connection has been reset");
+            }
+            // wakes up on the next ACK, or on the next tick of the timer wheel
+            poll(timerWheel.getTickMillis());
         }
 
-        semaphore.acquire();
         this.allDataHasBeenACKed = true;
-        semaphore.release();
-    }
-
-    private void sendFINAndCheckACK() throws IOException, InterruptedException {
-        short seqNo = Utils.mod(this.fileBytes.length + 1);
-        short expACK = Utils.mod(seqNo + 1);
-        sendOnePktAndCheckACK(Utils.FIN, seqNo, expACK);
-        debugMessage = "FIN has been ACK, tell listenThread to close, call System.exit\n";
-        System.out.print(debugMessage);
-        logFOS.write(debugMessage.getBytes());
-        System.exit(0);
+        metrics.finish();
+        metrics.updateWindow(congestionController.getCongestionWindow(),
+                congestionController.getSlowStartThreshold(), 0, loggedNumOfSegInWindow,
+                segmentRing.getCapacity(), rttEstimator.getSrttNanos(), rttEstimator.getRtoMillis());
+        log(metrics.toStatsLine());
+        if (blockDeflater != null) {
+            log(blockDeflater.getStats());
+        }
     }
 
-    private void sendRESETAndDoNotCheckACK() throws IOException {
-        // in RESET segment, the seqNo will not be used,
-        // but we can't randomly choose a sequence number,
-        // since in Utils.createSTPSegment, it needs the sequence number
-        // between 0 and 2^16 -1
-        byte[] stpSegment = Utils.createSTPSegment(Utils.RESET, (short) (this.fileBytes.length + 1), "".getBytes());
-        DatagramPacket packet = createUDPPacket(stpSegment);
-        senderSocket.send(packet);
+    private void logStatsIfDue() {
+        if (statsIntervalMillis <= 0) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (now >= nextStatsMillis) {
+            nextStatsMillis = now + statsIntervalMillis;
+            if (eventLog.isEnabled(EventLog.Level.INFO)) {
+                log(metrics.toStatsLine());
+            }
+        }
     }
 
-    private DatagramPacket createUDPPacket(byte[] stpSegment) {
-        return Utils.createSTPPacket(stpSegment, receiverAddress, receiverPort);
+    private void sendFINAndCheckACK() throws IOException {
+        int seqNo = finSeqNo();
+        int expACK = seqNo + 1;
+        sendOnePktAndCheckACK(Utils.FIN, seqNo, expACK, "".getBytes());
+        log("FIN has been ACK, closing the channel");
+        close();
     }
 
-    private byte[][] createSTPSegmentArr(byte[][] dataArr, short[] segmentSeqNoArr) {
-        byte[][] STPSegmentArr = new byte[dataArr.length][];
-        for (int i = 0; i < STPSegmentArr.length; i++) {
-            STPSegmentArr[i] = Utils.createSTPSegment(Utils.DATA, segmentSeqNoArr[i], dataArr[i]);
+    private void close() throws IOException {
+        selector.close();
+        channel.close();
+        if (fileChannel != null) {
+            fileChannel.close();
         }
-        return STPSegmentArr;
-    }
-
-    private DatagramPacket[] createUDPPacketArr(byte[][] STPSegmentArrs) {
-        DatagramPacket[] UDPPacketArrs = new DatagramPacket[STPSegmentArrs.length];
-        for (int i = 0; i < UDPPacketArrs.length; i++) {
-            DatagramPacket UDPPacket = createUDPPacket(STPSegmentArrs[i]);
-            UDPPacketArrs[i] = UDPPacket;
+        if (blockDeflater != null) {
+            blockDeflater.close();
+        }
+        if (streamSource != null) {
+            // a writer that is still writing gets an IOException instead of waiting forever
+            streamSource.close();
+        }
+        if (segmentRing != null) {
+            segmentRing.close();
+        }
+        if (fecEncoder != null) {
+            fecEncoder.close();
         }
+        BufferPool.SHARED.release(receiveBuffer);
+        Utils.unregisterMBean(metricsName);
+        eventLog.close();
+    }
 
-        return UDPPacketArrs;
+    private void log(String message) {
+        eventLog.message(EventLog.Level.INFO, message);
     }
 
-    private short[] createExpectedACKArr(short[] segmentSeqNoArr, byte[][] dataArr) {
-        short[] expectedACKArr = new short[dataArr.length];
-        for (int i = 0; i < expectedACKArr.length; i++) {
-            expectedACKArr[i] = Utils.mod(segmentSeqNoArr[i] + dataArr[i].length);
-        }
-        return expectedACKArr;
+    // the seqNo after the last data byte, it wraps around 2^32 for large files
+    private int finSeqNo() {
+        return (int) (this.initSeqNo + 1 + this.fileSize);
     }
 
-    private byte[] readBytesFromFile(String filename) throws IOException {
-        File file = new File(System.getProperty("user.dir") + System.getProperty("file.separator") + filename);
-        return Files.readAllBytes(Path.of(file.getPath()));
+    private void sendRESETAndDoNotCheckACK() throws IOException {
+        // in RESET segment, the seqNo will not be used
+        byte[] stpSegment = Utils.createSTPSegment(Utils.RESET, this.connId, finSeqNo(), 0, "".getBytes());
+        sendDatagram(ByteBuffer.wrap(stpSegment));
     }
 
-    // e.g. fileBytes.length is 3790,
-    // the dataWindow's length should be 4:
-    // [1000][1000][1000][790]
-    private byte[][] sliceFileBytesIntoDataWindow(byte[] fileBytes) {
-        int dataWindowLen = -1;
-        if (fileBytes.length % maxSegmentSize == 0) {
-            dataWindowLen = fileBytes.length / maxSegmentSize;
-        } else {
-            dataWindowLen = fileBytes.length / maxSegmentSize + 1;
+    /*
+    identifies the file in a checkpoint together with its size. It is a random
+    id kept in <file>.id next to it, with the size and last modified time it
+    was made for: a restarted sender sends the same id, another sender of a
+    file with the same name, size and time sends another one. A new version
+    of the file gets a new id
+     */
+    private long sourceIdOf(String filename) throws IOException {
+        File file = new File(System.getProperty("user.dir") + System.getProperty("file.separator") + filename);
+        long lastModified = file.lastModified();
+        Path path = Path.of(file.getPath() + ".id");
+        if (Files.isRegularFile(path)) {
+            ByteBuffer saved = ByteBuffer.wrap(Files.readAllBytes(path));
+            if (saved.remaining() == 24 && saved.getLong() == this.fileSize && saved.getLong() == lastModified) {
+                return saved.getLong();
+            }
         }
-        byte[][] dataWindow = new byte[dataWindowLen][];
-        int fbIndex = 0; // fileBytes 's index
-        int dwIndex = 0;// dataWindow 's index
-        while (fbIndex < fileBytes.length) {
-            int copyLen = Math.min(fileBytes.length - fbIndex, maxSegmentSize);
-            dataWindow[dwIndex] = new byte[copyLen];
-            System.arraycopy(fileBytes, fbIndex, dataWindow[dwIndex], 0, copyLen);
-            fbIndex += copyLen;
-            dwIndex += 1;
+
+        long sourceId = new SecureRandom().nextLong();
+        ByteBuffer buffer = ByteBuffer.allocate(24).putLong(this.fileSize).putLong(lastModified).putLong(sourceId);
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try {
+            Files.write(tmp, buffer.array());
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // the transfer goes on, a restarted sender starts over
+            log("cannot save the id of " + filename + " in " + path + ": " + e.getMessage());
         }
-        return dataWindow;
+        return sourceId;
     }
 
-    private short[] createSeqNoArr(short initSeqNo, byte[][] dataArr) {
-        short[] seqNoArr = new short[dataArr.length];
-        // SYN segment's seqNo is initSeqNo, so the first
-        // Data Segment's seqNo is initSeqNo+1
-        seqNoArr[0] = Utils.mod(initSeqNo + 1);
-        for (int i = 1; i < seqNoArr.length; i++) {
-            seqNoArr[i] = Utils.mod(seqNoArr[i - 1] + dataArr[i - 1].length);
-        }
-        return seqNoArr;
+    private FileChannel openFileChannel(String filename) throws IOException {
+        File file = new File(System.getProperty("user.dir") + System.getProperty("file.separator") + filename);
+        return FileChannel.open(Path.of(file.getPath()), StandardOpenOption.READ);
     }
 
     public static void main(String[] args) throws IOException, InterruptedException {
-        if (args.length != 5) {
-            System.err.println("\n===== Error usage, java Sender senderPort receiverPort FileReceived.txt maxWin rto ======\n");
+        if (args.length < 5) {
+            System.err.println("\n===== Error usage, java Sender senderPort receiverPort FileReceived.txt maxWin rto [mss=<bytes>] [probe=true] [minRto=<ms>] [sack=false] [cc=newreno|cubic] [connId=<n>] [log=off|info|debug|trace] [stats=<ms>] [fec=off|auto|<n>] [compress=off|deflate] [compressBlock=<bytes>] [compressLevel=<0-9>] [resume=true] ======\n");
             System.exit(0);
         }
 
-        Sender sender = new Sender(Integer.parseInt(args[0]), Integer.parseInt(args[1]), args[2], Integer.parseInt(args[3]), Integer.parseInt(args[4]));
+        Sender sender = new Sender(Integer.parseInt(args[0]), Integer.parseInt(args[1]), args[2], Integer.parseInt(args[3]), Integer.parseInt(args[4]),
+                Utils.parseOptionArgs(args, 5));
         sender.run();
     }
 
@@ -0,0 +1,259 @@
+/**
+ * The counters behind SenderMetricsMBean. The event loop of the Sender is
+ * the only writer, so the fields are plain volatile longs, a JMX thread
+ * reading them sees a value at most one update old and the packet path
+ * pays no lock or CAS.
+ */
+public class SenderMetrics implements SenderMetricsMBean {
+    private final int connId;
+    private final LatencyHistogram rttHistogram = new LatencyHistogram();
+    // System.nanoTime() of the start and end of the data phase, 0 until then
+    private volatile long startNanos = 0;
+    private volatile long endNanos = 0;
+
+    private volatile long bytesSent = 0;
+    private volatile long bytesAcked = 0;
+    private volatile long bytesRetransmitted = 0;
+    private volatile long segmentsSent = 0;
+    private volatile long segmentsRetransmitted = 0;
+    private volatile long duplicateAcks = 0;
+    private volatile long fastRetransmits = 0;
+    private volatile long timeouts = 0;
+    private volatile long paritySegmentsSent = 0;
+    private volatile long parityBytesSent = 0;
+
+    // a snapshot of the window, taken by the data loop on every round
+    private volatile long congestionWindow = 0;
+    private volatile long slowStartThreshold = 0;
+    private volatile long bytesInFlight = 0;
+    private volatile int windowSegments = 0;
+    private volatile int windowCapacity = 0;
+    private volatile long srttNanos = 0;
+    private volatile long rtoMillis = 0;
+
+    public SenderMetrics(int connId) {
+        this.connId = connId;
+    }
+
+    public void start() {
+        startNanos = System.nanoTime();
+    }
+
+    // the rates stop at the last ACK instead of falling while nobody sends
+    public void finish() {
+        if (startNanos != 0 && endNanos == 0) {
+            endNanos = System.nanoTime();
+        }
+    }
+
+    public void onSend(int bytes) {
+        bytesSent += bytes;
+        segmentsSent += 1;
+    }
+
+    public void onResend(int bytes) {
+        bytesRetransmitted += bytes;
+        segmentsRetransmitted += 1;
+    }
+
+    public void onParity(int bytes) {
+        parityBytesSent += bytes;
+        paritySegmentsSent += 1;
+    }
+
+    public void onAcked(long bytes) {
+        bytesAcked += bytes;
+    }
+
+    public void onDuplicateAck() {
+        duplicateAcks += 1;
+    }
+
+    public void onFastRetransmit() {
+        fastRetransmits += 1;
+    }
+
+    public void onTimeout() {
+        timeouts += 1;
+    }
+
+    public void onRttSample(long rttNanos) {
+        rttHistogram.recordNanos(rttNanos);
+    }
+
+    public void updateWindow(long congestionWindow, long slowStartThreshold, long bytesInFlight,
+                             int windowSegments, int windowCapacity, long srttNanos, long rtoMillis) {
+        this.congestionWindow = congestionWindow;
+        this.slowStartThreshold = slowStartThreshold;
+        this.bytesInFlight = bytesInFlight;
+        this.windowSegments = windowSegments;
+        this.windowCapacity = windowCapacity;
+        this.srttNanos = srttNanos;
+        this.rtoMillis = rtoMillis;
+    }
+
+    private double perSecond(long bytes) {
+        long start = startNanos;
+        if (start == 0) {
+            return 0;
+        }
+        long end = endNanos != 0 ? endNanos : System.nanoTime();
+        return end > start ? bytes * 1e9 / (end - start) : 0;
+    }
+
+    @Override
+    public int getConnectionId() {
+        return connId;
+    }
+
+    @Override
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    @Override
+    public long getBytesAcked() {
+        return bytesAcked;
+    }
+
+    @Override
+    public long getBytesRetransmitted() {
+        return bytesRetransmitted;
+    }
+
+    @Override
+    public long getSegmentsSent() {
+        return segmentsSent;
+    }
+
+    @Override
+    public long getSegmentsRetransmitted() {
+        return segmentsRetransmitted;
+    }
+
+    @Override
+    public double getGoodputBytesPerSecond() {
+        return perSecond(bytesAcked);
+    }
+
+    @Override
+    public double getThroughputBytesPerSecond() {
+        return perSecond(bytesSent + bytesRetransmitted);
+    }
+
+    @Override
+    public long getDuplicateAcks() {
+        return duplicateAcks;
+    }
+
+    @Override
+    public long getFastRetransmits() {
+        return fastRetransmits;
+    }
+
+    @Override
+    public long getTimeouts() {
+        return timeouts;
+    }
+
+    @Override
+    public long getParitySegmentsSent() {
+        return paritySegmentsSent;
+    }
+
+    @Override
+    public long getParityBytesSent() {
+        return parityBytesSent;
+    }
+
+    @Override
+    public long getCongestionWindow() {
+        return congestionWindow;
+    }
+
+    @Override
+    public long getSlowStartThreshold() {
+        return slowStartThreshold;
+    }
+
+    @Override
+    public long getBytesInFlight() {
+        return bytesInFlight;
+    }
+
+    @Override
+    public int getWindowSegments() {
+        return windowSegments;
+    }
+
+    @Override
+    public int getWindowCapacity() {
+        return windowCapacity;
+    }
+
+    @Override
+    public double getSrttMillis() {
+        return srttNanos / 1e6;
+    }
+
+    @Override
+    public long getRtoMillis() {
+        return rtoMillis;
+    }
+
+    @Override
+    public long getRttSamples() {
+        return rttHistogram.getTotalCount();
+    }
+
+    @Override
+    public long getRttMinMicros() {
+        return rttHistogram.getMinMicros();
+    }
+
+    @Override
+    public double getRttMeanMicros() {
+        return rttHistogram.getMeanMicros();
+    }
+
+    @Override
+    public long getRttP50Micros() {
+        return rttHistogram.getValueAtPercentile(50);
+    }
+
+    @Override
+    public long getRttP90Micros() {
+        return rttHistogram.getValueAtPercentile(90);
+    }
+
+    @Override
+    public long getRttP99Micros() {
+        return rttHistogram.getValueAtPercentile(99);
+    }
+
+    @Override
+    public long getRttMaxMicros() {
+        return rttHistogram.getMaxMicros();
+    }
+
+    // one line for the log, e.g. every stats=<ms> milliseconds
+    public String toStatsLine() {
+        long ssthresh = slowStartThreshold;
+        return "connection " + connId + " stats: sent " + bytesSent + " bytes in " + segmentsSent + " segments"
+                + ", acked " + bytesAcked
+                + ", retransmitted " + bytesRetransmitted + " bytes in " + segmentsRetransmitted + " segments"
+                + String.format(", goodput %.1f KB/s, throughput %.1f KB/s",
+                getGoodputBytesPerSecond() / 1024, getThroughputBytesPerSecond() / 1024)
+                + ", cwnd " + congestionWindow
+                + ", ssthresh " + (ssthresh == Long.MAX_VALUE ? "inf" : Long.toString(ssthresh))
+                + ", in flight " + bytesInFlight
+                + ", window " + windowSegments + "/" + windowCapacity + " segments"
+                + ", dupACKs " + duplicateAcks + ", fast retransmits " + fastRetransmits
+                + ", timeouts " + timeouts
+                + (paritySegmentsSent == 0 ? "" : ", parity " + parityBytesSent + " bytes in "
+                + paritySegmentsSent + " segments")
+                + String.format(", srtt %.3f ms, rto %d ms", getSrttMillis(), rtoMillis)
+                + ", rtt p50/p90/p99/max " + getRttP50Micros() + "/" + getRttP90Micros()
+                + "/" + getRttP99Micros() + "/" + getRttMaxMicros() + " us";
+    }
+}
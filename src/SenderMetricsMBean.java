@@ -0,0 +1,64 @@
+/**
+ * The live counters of one Sender connection, registered with the platform
+ * MBean server as ReliableUDP:type=Sender,connId=<n>,port=<sender port>,
+ * so jconsole or any JMX client can watch a transfer while it runs.
+ * Byte counts are payload bytes, rates are per second of the data phase.
+ */
+public interface SenderMetricsMBean {
+    int getConnectionId();
+
+    long getBytesSent();
+
+    long getBytesAcked();
+
+    long getBytesRetransmitted();
+
+    long getSegmentsSent();
+
+    long getSegmentsRetransmitted();
+
+    // bytes the receiver has ACKed, i.e. what the application gets
+    double getGoodputBytesPerSecond();
+
+    // every byte sent, retransmissions included
+    double getThroughputBytesPerSecond();
+
+    long getDuplicateAcks();
+
+    long getFastRetransmits();
+
+    long getTimeouts();
+
+    // the FEC parity segments, not part of the bytes sent
+    long getParitySegmentsSent();
+
+    long getParityBytesSent();
+
+    long getCongestionWindow();
+
+    long getSlowStartThreshold();
+
+    long getBytesInFlight();
+
+    int getWindowSegments();
+
+    int getWindowCapacity();
+
+    double getSrttMillis();
+
+    long getRtoMillis();
+
+    long getRttSamples();
+
+    long getRttMinMicros();
+
+    double getRttMeanMicros();
+
+    long getRttP50Micros();
+
+    long getRttP90Micros();
+
+    long getRttP99Micros();
+
+    long getRttMaxMicros();
+}
@@ -0,0 +1,75 @@
+/**
+ * One byte range of a file that is sent as several flows at once.
+ * Every stripe is an independent connection with its own connection ID,
+ * its sender tells the receiver in the SYN where the range goes, so the
+ * receiver writes all stripes of a transfer into the same file.
+ */
+public class Stripe {
+    // a smaller stripe spends more time in the handshakes than in sending data
+    static final long MIN_STRIPE_SIZE = 64 * 1024;
+
+    // the same for every stripe of a transfer, it names the file in server mode
+    private final int transferId;
+    private final int index;
+    private final int count;
+    private final long offset;
+    private final long length;
+    private final long fileSize;
+
+    public Stripe(int transferId, int index, int count, long offset, long length, long fileSize) {
+        this.transferId = transferId;
+        this.index = index;
+        this.count = count;
+        this.offset = offset;
+        this.length = length;
+        this.fileSize = fileSize;
+    }
+
+    /*
+    split a file into at most maxCount ranges of about the same size,
+    e.g. fileSize is 1000000, maxCount is 3:
+    [0, 333334) [333334, 666668) [666668, 1000000)
+    a file smaller than MIN_STRIPE_SIZE gets a single stripe
+     */
+    public static Stripe[] split(int transferId, long fileSize, int maxCount) {
+        int count = (int) Math.max(1, Math.min(maxCount, fileSize / MIN_STRIPE_SIZE));
+        long stripeSize = (fileSize + count - 1) / count;
+        Stripe[] stripes = new Stripe[count];
+        for (int i = 0; i < count; i++) {
+            long offset = Math.min(i * stripeSize, fileSize);
+            long length = Math.min(stripeSize, fileSize - offset);
+            stripes[i] = new Stripe(transferId, i, count, offset, length, fileSize);
+        }
+        return stripes;
+    }
+
+    public int getTransferId() {
+        return transferId;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    @Override
+    public String toString() {
+        return "stripe " + (index + 1) + "/" + count + " of transfer " + Integer.toUnsignedString(transferId)
+                + ", bytes [" + offset + ", " + (offset + length) + ") of " + fileSize;
+    }
+}
@@ -0,0 +1,109 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sends one file as several stripes at once, every stripe is a Sender
+ * with its own socket, connection and event loop thread. One flow is
+ * bounded by one thread and by the loss stalls of its window, with N
+ * flows the file is sent by N cores and a stalled flow does not stop
+ * the others. The receiver writes every stripe at its offset of the
+ * same file.
+ */
+public class StripedSender {
+    private final int senderPort;
+    private final int receiverPort;
+    private final String filename;
+    private final int windowSizeInByte;
+    private final int rto;
+    private final Map<String, String> options;
+    private final Stripe[] stripes;
+
+    /*
+    options, the others are passed on to every Sender:
+    stripes=<n>     send the file as at most n stripes, default the number of cores.
+                    stripe i uses senderPort + i, and its window is windowSizeInByte
+    connId=<n>      the transfer ID, stripe i uses connection ID n + i, random by default
+     */
+    public StripedSender(int senderPort, int receiverPort, String filename, int windowSizeInByte, int rto,
+                         Map<String, String> options) {
+        this.senderPort = senderPort;
+        this.receiverPort = receiverPort;
+        this.filename = filename;
+        this.windowSizeInByte = windowSizeInByte;
+        this.rto = rto;
+        this.options = new HashMap<>(options);
+        int maxCount = Utils.getIntOption(this.options, "stripes", Runtime.getRuntime().availableProcessors());
+        if (maxCount <= 0) {
+            throw new IllegalArgumentException("stripes must be positive");
+        }
+        int transferId = this.options.containsKey("connId")
+                ? Integer.parseInt(this.options.get("connId")) : Utils.SECURE_RANDOM.nextInt();
+        this.options.remove("stripes");
+        this.options.remove("connId");
+
+        File file = new File(System.getProperty("user.dir") + System.getProperty("file.separator") + filename);
+        this.stripes = Stripe.split(transferId, file.length(), maxCount);
+    }
+
+    public Stripe[] getStripes() {
+        return stripes;
+    }
+
+    // run every stripe on its own thread, and wait for all of them
+    public void run() throws IOException {
+        List<Sender> senders = new ArrayList<>();
+        for (Stripe stripe : stripes) {
+            senders.add(new Sender(senderPort + stripe.getIndex(), receiverPort, filename,
+                    windowSizeInByte, rto, options, stripe));
+        }
+
+        List<IOException> failures = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < senders.size(); i++) {
+            Sender sender = senders.get(i);
+            Thread thread = new Thread(() -> {
+                try {
+                    sender.run();
+                } catch (IOException e) {
+                    Logger.getLogger(StripedSender.class.getName()).log(Level.SEVERE, "stripe failed", e);
+                    synchronized (failures) {
+                        failures.add(e);
+                    }
+                }
+            }, "sender-stripe-" + i);
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted while waiting for the stripes", e);
+            }
+        }
+        if (!failures.isEmpty()) {
+            throw new IOException(failures.size() + " of " + stripes.length + " stripes failed", failures.get(0));
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 5) {
+            System.err.println("\n===== Error usage, java StripedSender senderPort receiverPort FileToSend.txt maxWin rto [stripes=<n>] [connId=<n>] [other Sender options] ======\n");
+            return;
+        }
+
+        StripedSender sender = new StripedSender(Integer.parseInt(args[0]), Integer.parseInt(args[1]), args[2],
+                Integer.parseInt(args[3]), Integer.parseInt(args[4]), Utils.parseOptionArgs(args, 5));
+        long start = System.nanoTime();
+        sender.run();
+        System.out.println("sent " + sender.getStripes().length + " stripes in "
+                + (System.nanoTime() - start) / 1_000_000 + " ms");
+    }
+}
@@ -0,0 +1,325 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Runs a Receiver and a Sender in one process over loopback for every
+ * combination of the swept parameters, and writes one row per run to
+ * <out>.csv and <out>.json: wall time and goodput of the transfer, the
+ * retransmission ratio of the sender, the CPU time of the sender, the
+ * receiver and the whole process, and whether the received file is
+ * identical to the one sent. The file sent is random and generated once
+ * per size from the seed, so two sweeps with the same seed send the same
+ * bytes, e.g. before and after a change.
+ */
+public class ThroughputSweep {
+    private static final String FILE_TO_SEND = "SweepToSend.bin";
+    private static final String FILE_RECEIVED = "SweepReceived.bin";
+
+    private final List<Long> sizes;
+    private final List<Integer> windows;
+    // empty for the default of the Sender
+    private final List<String> mssValues;
+    private final List<Integer> rtos;
+    private final List<Float> flps;
+    private final List<Float> rlps;
+    private final int repeat;
+    private final long seed;
+    private final int receiverPort;
+    private final int senderPort;
+    private final String out;
+    // every option that is not swept goes to both the Sender and the Receiver
+    private final Map<String, String> passedOptions;
+    private final ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+
+    /*
+    options, a swept one is a comma separated list:
+    size=<bytes>        file sizes, default 10000000
+    win=<bytes>         window sizes, default 1000000
+    mss=<bytes>         maximum segment sizes, default is the one of the Sender,
+                        which is also what the value default stands for
+    rto=<ms>            initial retransmission timeouts, default 100
+    flp=<p>, rlp=<p>    forward and reverse loss of the Receiver, default 0
+    repeat=<n>          runs of every combination, default 1
+    seed=<n>            seed of the file contents, default 1
+    receiverPort=<n>, senderPort=<n>
+                        default 60000 and 50000
+    out=<prefix>        the results go to <prefix>.csv and <prefix>.json, default sweep
+    log=off|info|debug|trace
+                        the log of the Sender and the Receiver, default off
+    any other option, e.g. cc=cubic or writeBatch=65536, is passed to the
+    Sender and the Receiver of every run
+     */
+    public ThroughputSweep(Map<String, String> options) {
+        Map<String, String> remaining = new HashMap<>(options);
+        this.sizes = parseList(remaining.remove("size"), "10000000", Long::parseLong);
+        this.windows = parseList(remaining.remove("win"), "1000000", Integer::parseInt);
+        this.mssValues = parseList(remaining.remove("mss"), "", value -> value.equals("default") ? "" : value);
+        this.rtos = parseList(remaining.remove("rto"), "100", Integer::parseInt);
+        this.flps = parseList(remaining.remove("flp"), "0", Float::parseFloat);
+        this.rlps = parseList(remaining.remove("rlp"), "0", Float::parseFloat);
+        this.repeat = Integer.parseInt(valueOrDefault(remaining.remove("repeat"), "1"));
+        this.seed = Long.parseLong(valueOrDefault(remaining.remove("seed"), "1"));
+        this.receiverPort = Integer.parseInt(valueOrDefault(remaining.remove("receiverPort"), "60000"));
+        this.senderPort = Integer.parseInt(valueOrDefault(remaining.remove("senderPort"), "50000"));
+        this.out = valueOrDefault(remaining.remove("out"), "sweep");
+        remaining.putIfAbsent("log", "off");
+        remaining.putIfAbsent("stats", "0");
+        this.passedOptions = remaining;
+    }
+
+    private static String valueOrDefault(String value, String defaultValue) {
+        return value == null ? defaultValue : value;
+    }
+
+    private static <T> List<T> parseList(String value, String defaultValue,
+                                         java.util.function.Function<String, T> parser) {
+        List<T> values = new ArrayList<>();
+        for (String item : valueOrDefault(value, defaultValue).split(",")) {
+            if (!item.isEmpty()) {
+                values.add(parser.apply(item.trim()));
+            }
+        }
+        return values;
+    }
+
+    // one run of the sweep, the columns of the output
+    private static final class Result {
+        long size;
+        int window;
+        String mss;
+        int rto;
+        float flp;
+        float rlp;
+        int run;
+        boolean identical;
+        double wallMillis;
+        double goodputMBps;
+        long segmentsSent;
+        long segmentsRetransmitted;
+        double retransmissionRatio;
+        double senderCpuMillis;
+        double receiverCpuMillis;
+        double processCpuMillis;
+        String error = "";
+    }
+
+    public void run() throws IOException {
+        List<Result> results = new ArrayList<>();
+        int numOfRuns = sizes.size() * windows.size() * Math.max(1, mssValues.size())
+                * rtos.size() * flps.size() * rlps.size() * repeat;
+        System.out.println("sweeping " + numOfRuns + " runs, results go to " + out + ".csv and " + out + ".json");
+        try (PrintWriter csv = new PrintWriter(new FileOutputStream(file(out + ".csv")))) {
+            csv.println(String.join(",", "size", "window", "mss", "rto", "flp", "rlp", "run", "identical",
+                    "wallMillis", "goodputMBps", "segmentsSent", "segmentsRetransmitted",
+                    "retransmissionRatio", "senderCpuMillis", "receiverCpuMillis", "processCpuMillis", "error"));
+            for (long size : sizes) {
+                generateFile(size);
+                for (int window : windows) {
+                    for (String mss : mssValues.isEmpty() ? List.of("") : mssValues) {
+                        for (int rto : rtos) {
+                            for (float flp : flps) {
+                                for (float rlp : rlps) {
+                                    for (int run = 0; run < repeat; run++) {
+                                        Result result = runOnce(size, window, mss, rto, flp, rlp, run);
+                                        results.add(result);
+                                        csv.println(toCsv(result));
+                                        // a sweep may be stopped half way, every row is written at once
+                                        csv.flush();
+                                        System.out.println(toCsv(result));
+                                    }
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        } finally {
+            writeJson(results);
+            Files.deleteIfExists(file(FILE_TO_SEND).toPath());
+            Files.deleteIfExists(file(FILE_RECEIVED).toPath());
+        }
+    }
+
+    private static File file(String name) {
+        return new File(System.getProperty("user.dir") + System.getProperty("file.separator") + name);
+    }
+
+    private void generateFile(long size) throws IOException {
+        Random random = new Random(seed);
+        byte[] block = new byte[1 << 16];
+        try (OutputStream stream = new FileOutputStream(file(FILE_TO_SEND))) {
+            for (long written = 0; written < size; written += block.length) {
+                random.nextBytes(block);
+                stream.write(block, 0, (int) Math.min(block.length, size - written));
+            }
+        }
+    }
+
+    private Result runOnce(long size, int window, String mss, int rto, float flp, float rlp, int run) {
+        Result result = new Result();
+        result.size = size;
+        result.window = window;
+        result.mss = mss;
+        result.rto = rto;
+        result.flp = flp;
+        result.rlp = rlp;
+        result.run = run;
+
+        Map<String, String> senderOptions = new HashMap<>(passedOptions);
+        if (!mss.isEmpty()) {
+            senderOptions.put("mss", mss);
+        }
+        long processCpuStart = processCpuNanos();
+        Receiver receiver = null;
+        Thread receiverThread = null;
+        long[] receiverCpu = new long[1];
+        IOException[] receiverFailure = new IOException[1];
+        try {
+            Files.deleteIfExists(file(FILE_RECEIVED).toPath());
+            Receiver runningReceiver = new Receiver(receiverPort, senderPort, FILE_RECEIVED, flp, rlp, passedOptions);
+            receiver = runningReceiver;
+            receiverThread = new Thread(() -> {
+                long cpuStart = threadMXBean.getCurrentThreadCpuTime();
+                try {
+                    runningReceiver.run();
+                } catch (IOException e) {
+                    receiverFailure[0] = e;
+                }
+                receiverCpu[0] = threadMXBean.getCurrentThreadCpuTime() - cpuStart;
+            }, "sweep-receiver");
+            receiverThread.setDaemon(true);
+            receiverThread.start();
+
+            Sender sender = new Sender(senderPort, receiverPort, FILE_TO_SEND, window, rto, senderOptions);
+            long cpuStart = threadMXBean.getCurrentThreadCpuTime();
+            long start = System.nanoTime();
+            try {
+                sender.run();
+            } finally {
+                result.wallMillis = (System.nanoTime() - start) / 1e6;
+                result.senderCpuMillis = (threadMXBean.getCurrentThreadCpuTime() - cpuStart) / 1e6;
+            }
+            SenderMetricsMBean metrics = sender.getMetrics();
+            result.goodputMBps = size / 1e6 / (result.wallMillis / 1e3);
+            result.segmentsSent = metrics.getSegmentsSent();
+            result.segmentsRetransmitted = metrics.getSegmentsRetransmitted();
+            result.retransmissionRatio = result.segmentsSent == 0 ? 0
+                    : (double) result.segmentsRetransmitted / result.segmentsSent;
+        } catch (IOException | RuntimeException e) {
+            // a failed run, e.g. a bad option or a reset connection, does not stop the sweep
+            result.error = e.toString();
+        } finally {
+            // the FIN has been ACKed, or the receiver would wait for a SYN forever
+            if (receiver != null) {
+                receiver.stop();
+            }
+            if (receiverThread != null) {
+                try {
+                    receiverThread.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+        result.receiverCpuMillis = receiverCpu[0] / 1e6;
+        if (receiverFailure[0] != null && result.error.isEmpty()) {
+            result.error = receiverFailure[0].toString();
+        }
+        try {
+            result.identical = result.error.isEmpty() && isIdentical(file(FILE_TO_SEND), file(FILE_RECEIVED));
+        } catch (IOException e) {
+            result.error = e.toString();
+        }
+        result.processCpuMillis = (processCpuNanos() - processCpuStart) / 1e6;
+        return result;
+    }
+
+    // the CPU time of every thread of the process, the log writers and the garbage collector included, -1 if unknown
+    private static long processCpuNanos() {
+        java.lang.management.OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+        }
+        return -1;
+    }
+
+    private static boolean isIdentical(File expected, File actual) throws IOException {
+        if (!actual.exists() || expected.length() != actual.length()) {
+            return false;
+        }
+        try (FileChannel expectedChannel = FileChannel.open(expected.toPath(), StandardOpenOption.READ);
+             FileChannel actualChannel = FileChannel.open(actual.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer expectedBuffer = ByteBuffer.allocate(1 << 16);
+            ByteBuffer actualBuffer = ByteBuffer.allocate(1 << 16);
+            while (true) {
+                expectedBuffer.clear();
+                actualBuffer.clear();
+                int n = expectedChannel.read(expectedBuffer);
+                if (n < 0) {
+                    return true;
+                }
+                while (actualBuffer.position() < n && actualChannel.read(actualBuffer) >= 0) {
+                    // the files have the same length, so the read catches up
+                }
+                expectedBuffer.flip();
+                actualBuffer.flip();
+                if (!expectedBuffer.equals(actualBuffer)) {
+                    return false;
+                }
+            }
+        }
+    }
+
+    private static String toCsv(Result result) {
+        return String.format(Locale.ROOT, "%d,%d,%s,%d,%s,%s,%d,%b,%.3f,%.3f,%d,%d,%.5f,%.3f,%.3f,%.3f,\"%s\"",
+                result.size, result.window, result.mss.isEmpty() ? "default" : result.mss, result.rto,
+                result.flp, result.rlp, result.run, result.identical, result.wallMillis, result.goodputMBps,
+                result.segmentsSent, result.segmentsRetransmitted, result.retransmissionRatio,
+                result.senderCpuMillis, result.receiverCpuMillis, result.processCpuMillis,
+                result.error.replace("\"", "\"\""));
+    }
+
+    private void writeJson(List<Result> results) throws IOException {
+        try (PrintWriter json = new PrintWriter(new FileOutputStream(file(out + ".json")))) {
+            json.println("[");
+            for (int i = 0; i < results.size(); i++) {
+                Result result = results.get(i);
+                json.print(String.format(Locale.ROOT, "  {\"size\": %d, \"window\": %d, \"mss\": %s, \"rto\": %d, "
+                                + "\"flp\": %s, \"rlp\": %s, \"run\": %d, \"identical\": %b, \"wallMillis\": %.3f, "
+                                + "\"goodputMBps\": %.3f, \"segmentsSent\": %d, \"segmentsRetransmitted\": %d, "
+                                + "\"retransmissionRatio\": %.5f, \"senderCpuMillis\": %.3f, "
+                                + "\"receiverCpuMillis\": %.3f, \"processCpuMillis\": %.3f, \"error\": \"%s\"}",
+                        result.size, result.window, result.mss.isEmpty() ? "null" : result.mss, result.rto,
+                        result.flp, result.rlp, result.run, result.identical, result.wallMillis,
+                        result.goodputMBps, result.segmentsSent, result.segmentsRetransmitted,
+                        result.retransmissionRatio, result.senderCpuMillis, result.receiverCpuMillis,
+                        result.processCpuMillis, result.error.replace("\\", "\\\\").replace("\"", "\\\"")));
+                json.println(i + 1 < results.size() ? "," : "");
+            }
+            json.println("]");
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length > 0 && args[0].equals("help")) {
+            System.err.println("\n===== Usage, java ThroughputSweep [size=<bytes>,...] [win=<bytes>,...] [mss=<bytes>,...] [rto=<ms>,...] [flp=<p>,...] [rlp=<p>,...] [repeat=<n>] [seed=<n>] [receiverPort=<n>] [senderPort=<n>] [out=<prefix>] [log=off|info|debug|trace] [other Sender and Receiver options] =====\n");
+            return;
+        }
+        new ThroughputSweep(Utils.parseOptionArgs(args, 0)).run();
+    }
+}
@@ -0,0 +1,117 @@
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A hashed timer wheel, every timer is an (id, deadline) pair of longs
+ * kept in the bucket of its deadline tick. A bucket holds the timers of
+ * every round, a timer fires once the wheel passes its bucket after the
+ * deadline. Timers are not cancelled, the handler has to ignore the stale
+ * ones, which is cheaper than searching the bucket on every ACK.
+ */
+public class TimerWheel {
+    public interface ExpiryHandler {
+        void onExpiry(long id, long deadlineMillis) throws IOException;
+    }
+
+    private final long tickMillis;
+    private final int mask;
+    private final long[][] idArr;
+    private final long[][] deadlineArr;
+    private final int[] sizeArr;
+    // the last tick whose bucket has been processed
+    private long currentTick;
+    private int size = 0;
+
+    // the expired timers of one bucket, collected before their handlers run
+    private long[] expiredIds = new long[16];
+    private long[] expiredDeadlines = new long[16];
+
+    public TimerWheel(long tickMillis, int numOfBuckets, long nowMillis) {
+        if (Integer.bitCount(numOfBuckets) != 1) {
+            throw new IllegalArgumentException("numOfBuckets must be a power of 2");
+        }
+        this.tickMillis = tickMillis;
+        this.mask = numOfBuckets - 1;
+        this.idArr = new long[numOfBuckets][4];
+        this.deadlineArr = new long[numOfBuckets][4];
+        this.sizeArr = new int[numOfBuckets];
+        this.currentTick = nowMillis / tickMillis;
+    }
+
+    public long getTickMillis() {
+        return tickMillis;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // the first tick that is not before the deadline, so a timer never fires early
+    private long tickOf(long deadlineMillis) {
+        return (deadlineMillis + tickMillis - 1) / tickMillis;
+    }
+
+    public void schedule(long id, long deadlineMillis) {
+        // a deadline in the past fires on the next tick
+        long tick = Math.max(tickOf(deadlineMillis), currentTick + 1);
+        int bucket = (int) (tick & mask);
+        int n = sizeArr[bucket];
+        if (n == idArr[bucket].length) {
+            idArr[bucket] = Arrays.copyOf(idArr[bucket], n * 2);
+            deadlineArr[bucket] = Arrays.copyOf(deadlineArr[bucket], n * 2);
+        }
+        idArr[bucket][n] = id;
+        deadlineArr[bucket][n] = deadlineMillis;
+        sizeArr[bucket] = n + 1;
+        size += 1;
+    }
+
+    // run the handler of every timer whose deadline tick has been reached
+    public void expire(long nowMillis, ExpiryHandler handler) throws IOException {
+        long nowTick = nowMillis / tickMillis;
+        // after a long pause every bucket is visited once
+        long numOfTicks = Math.min(nowTick - currentTick, mask + 1);
+        long startTick = currentTick;
+        for (long i = 1; i <= numOfTicks; i++) {
+            // a handler that schedules a timer in the past gets the next bucket, not this one
+            currentTick = startTick + i;
+            int bucket = (int) (currentTick & mask);
+            int numOfExpired = collectExpired(bucket, nowTick);
+            for (int j = 0; j < numOfExpired; j++) {
+                handler.onExpiry(expiredIds[j], expiredDeadlines[j]);
+            }
+        }
+        if (nowTick > currentTick) {
+            currentTick = nowTick;
+        }
+    }
+
+    private int collectExpired(int bucket, long nowTick) {
+        long[] ids = idArr[bucket];
+        long[] deadlines = deadlineArr[bucket];
+        int n = sizeArr[bucket];
+        int numOfExpired = 0;
+        int i = 0;
+        while (i < n) {
+            if (tickOf(deadlines[i]) > nowTick) {
+                // it belongs to a later round
+                i += 1;
+                continue;
+            }
+            if (numOfExpired == expiredIds.length) {
+                expiredIds = Arrays.copyOf(expiredIds, numOfExpired * 2);
+                expiredDeadlines = Arrays.copyOf(expiredDeadlines, numOfExpired * 2);
+            }
+            expiredIds[numOfExpired] = ids[i];
+            expiredDeadlines[numOfExpired] = deadlines[i];
+            numOfExpired += 1;
+            // swap the last timer into its place
+            n -= 1;
+            ids[i] = ids[n];
+            deadlines[i] = deadlines[n];
+        }
+        sizeArr[bucket] = n;
+        size -= numOfExpired;
+        return numOfExpired;
+    }
+}
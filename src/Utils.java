@@ -1,8 +1,18 @@
-import java.net.DatagramPacket;
+import java.lang.management.ManagementFactory;
 import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
 import java.nio.ByteBuffer;
+import java.security.SecureRandom;
 import java.util.HashMap;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 public class Utils {
     static final short DATA = 0;
@@ -10,6 +20,48 @@ public class Utils {
     static final short SYN = 2;
     static final short FIN = 3;
     static final short RESET = 4;
+    // path MTU probe, the receiver echoes it with the payload length in ackNo
+    static final short PROBE = 5;
+    // the XOR parity of a group of DATA segments, seqNo is the first seqNo of the group
+    // and ackNo the seqNo after its last byte, see FecEncoder
+    static final short FEC = 6;
+
+    /*
+    STP header, version 4, 16 bytes, big endian:
+    0       1       2               4                  8                  12                 16
+    +-------+-------+---------------+------------------+------------------+------------------+
+    |version| type  |  payloadLen   |      connID      |      seqNo       |      ackNo       |
+    +-------+-------+---------------+------------------+------------------+------------------+
+    payloadLen is the number of payload bytes after the header, the payload
+    is sliced by it, so it may hold any byte, and a datagram shorter than
+    header + payloadLen is dropped as truncated.
+    connID is chosen by the sender, the receiver keeps one session per
+    (address, port, connID) and echoes it in every reply.
+    seqNo and ackNo are 32-bit and wrap around, so they must be
+    compared with seqLessThan and friends instead of < and >.
+    The seqNo of an ACK is the receive window, the bytes after ackNo the
+    sender may send, if both sides agreed on STPOptions.WINDOW_ADVERTISED,
+    and 0 otherwise.
+     */
+    static final byte HEADER_VERSION = 4;
+    static final int HEADER_LENGTH = 16;
+
+    // the largest UDP payload over IPv4, 65535 - 20 (IP) - 8 (UDP)
+    static final int MAX_DATAGRAM_SIZE = 65507;
+    // Ethernet MTU 1500 - 20 (IP) - 8 (UDP), safe on almost every path
+    static final int DEFAULT_DATAGRAM_SIZE = 1472;
+
+    /*
+    if SACK is permitted, the payload of an ACK of DATA carries up to
+    MAX_SACK_BLOCKS blocks of the segments received out of order,
+    each block is [left edge (4 bytes), right edge (4 bytes)),
+    the first block holds the segment that triggered the ACK
+     */
+    static final int MAX_SACK_BLOCKS = 4;
+    static final int SACK_BLOCK_LENGTH = 8;
+
+    // picks the connIds and the seeds that are not given, shared so it is seeded once
+    static final SecureRandom SECURE_RANDOM = new SecureRandom();
 
     static String outputFormat = "%s %.6f \t%s %d %d\n";
 
@@ -41,8 +93,125 @@ public class Utils {
     }
 
 
-    public static short mod(int seqNo) {
-        return (short) (seqNo % Short.MAX_VALUE);
+    /*
+    serial number arithmetic (RFC 1982) on the 32-bit sequence space,
+    a is before b if b is less than 2^31 bytes ahead of a, e.g.
+    seqLessThan(0xFFFFFFF9, 3) is true, since 3 is 10 bytes after 0xFFFFFFF9
+     */
+    public static boolean seqLessThan(int a, int b) {
+        return a - b < 0;
+    }
+
+    public static boolean seqLessOrEqual(int a, int b) {
+        return a - b <= 0;
+    }
+
+    public static boolean seqGreaterThan(int a, int b) {
+        return a - b > 0;
+    }
+
+    public static boolean seqGreaterOrEqual(int a, int b) {
+        return a - b >= 0;
+    }
+
+    /*
+    the largest datagram that does not need to be fragmented by the
+    interface which the address belongs to, e.g. 65507 on loopback,
+    8972 on a jumbo frame link, it is only an upper bound of the path MTU
+     */
+    public static int largestSafeDatagram(InetAddress address) {
+        try {
+            NetworkInterface networkInterface = NetworkInterface.getByInetAddress(address);
+            if (networkInterface != null && networkInterface.getMTU() > 0) {
+                return Math.min(networkInterface.getMTU() - 28, MAX_DATAGRAM_SIZE);
+            }
+        } catch (SocketException e) {
+            // fall through
+        }
+        return DEFAULT_DATAGRAM_SIZE;
+    }
+
+    // optional arguments are given as key=value after the positional ones
+    public static Map<String, String> parseOptionArgs(String[] args, int from) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = from; i < args.length; i++) {
+            int eq = args[i].indexOf('=');
+            if (eq <= 0) {
+                throw new IllegalArgumentException("optional argument should be key=value, got " + args[i]);
+            }
+            options.put(args[i].substring(0, eq), args[i].substring(eq + 1));
+        }
+        return options;
+    }
+
+    public static int getIntOption(Map<String, String> options, String key, int defaultValue) {
+        String value = options.get(key);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+
+    public static boolean getBooleanOption(Map<String, String> options, String key, boolean defaultValue) {
+        String value = options.get(key);
+        return value == null ? defaultValue : Boolean.parseBoolean(value);
+    }
+
+    /*
+    register the metrics of a connection with the platform MBean server,
+    e.g. under ReliableUDP:type=Sender,connId=42,port=50000. Metrics are
+    not worth failing a transfer for, so on error the reason is logged and
+    null is returned
+     */
+    public static ObjectName registerMBean(Object mbean, String type, int connId, int port, EventLog eventLog) {
+        try {
+            ObjectName name = new ObjectName("ReliableUDP:type=" + type
+                    + ",connId=" + Integer.toUnsignedString(connId) + ",port=" + port);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(mbean, name);
+            return name;
+        } catch (JMException e) {
+            eventLog.message(EventLog.Level.INFO, "metrics of connection " + connId
+                    + " are not registered with JMX: " + e);
+            return null;
+        }
+    }
+
+    public static void unregisterMBean(ObjectName name) {
+        if (name == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (JMException e) {
+            // gone already
+        }
+    }
+
+    /*
+    an executor that starts a thread for every task, a virtual thread on
+    Java 21 and later, so a task may block without holding an OS thread.
+    The build targets Java 11, so virtual threads are looked up by
+    reflection, an older JVM gets platform threads. The threads are named
+    namePrefix followed by a counter
+     */
+    public static ExecutorService newThreadPerTaskExecutor(String namePrefix) {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, namePrefix, 0L);
+            ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                    .invoke(null, factory);
+        } catch (ReflectiveOperationException e) {
+            AtomicLong counter = new AtomicLong();
+            return Executors.newCachedThreadPool(task -> new Thread(task, namePrefix + counter.getAndIncrement()));
+        }
+    }
+
+    public static boolean hasVirtualThreads() {
+        try {
+            Thread.class.getMethod("ofVirtual");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
     }
 
     public static double convertTime(long time) {
@@ -50,8 +219,8 @@ public class Utils {
     }
 
     public static String convertTypeNumToString(short type) {
-        if (type < 0 || type > 4) {
-            throw new IllegalArgumentException("type should should between 0 and 4");
+        if (type < 0 || type > 6) {
+            throw new IllegalArgumentException("type should should between 0 and 6");
         }
         String str = "Unknown type";
         switch (type) {
@@ -70,73 +239,67 @@ public class Utils {
             case RESET:
                 str = "RESET";
                 break;
+            case PROBE:
+                str = "PROBE";
+                break;
+            case FEC:
+                str = "FEC";
+                break;
         }
 
         return str;
     }
 
-    public static DatagramPacket createSTPPacket(
-            byte[] stpSegment, InetAddress address, int portNum) {
-
-        DatagramPacket packet = new DatagramPacket(stpSegment,
-                stpSegment.length, address, portNum);
-        return packet;
+    // a control segment, DATA segments are written in place into the slots of SegmentRing
+    public static byte[] createSTPSegment(short segmentType, int connId, int segmentSeqNo,
+                                          int segmentAckNo, byte[] data) {
+        byte[] STPSegmentArr = new byte[HEADER_LENGTH + data.length];
+        ByteBuffer buffer = ByteBuffer.wrap(STPSegmentArr);
+        new STPHeader().wrap(buffer).write(segmentType, connId, segmentSeqNo, segmentAckNo, data.length);
+        System.arraycopy(data, 0, STPSegmentArr, HEADER_LENGTH, data.length);
+        return STPSegmentArr;
     }
 
-    public static short getType(byte[] STPSegmentArr) {
-        byte[] arr = new byte[2];
-        System.arraycopy(STPSegmentArr, 0, arr, 0, 2);
-        return ByteBuffer.wrap(arr).getShort();
+    // blocks holds the edges as pairs, block i is [blocks[2i], blocks[2i+1]), put after the position
+    public static void putSackBlocks(ByteBuffer buffer, int[] blocks, int numOfBlocks) {
+        for (int i = 0; i < 2 * numOfBlocks; i++) {
+            buffer.putInt(blocks[i]);
+        }
     }
 
-    public static short getSeqNo(byte[] STPSegmentArr) {
-        byte[] arr = new byte[2];
-        System.arraycopy(STPSegmentArr, 2, arr, 0, 2);
-        return ByteBuffer.wrap(arr).getShort();
+    // return the number of blocks in the ACK segment of the given length, header included
+    public static int getSackBlocks(ByteBuffer STPSegment, int length, int[] blocks) {
+        int numOfBlocks = Math.min((length - HEADER_LENGTH) / SACK_BLOCK_LENGTH, blocks.length / 2);
+        for (int i = 0; i < 2 * numOfBlocks; i++) {
+            blocks[i] = STPSegment.getInt(HEADER_LENGTH + 4 * i);
+        }
+        return numOfBlocks;
     }
 
-    private static byte[] createHeaderArr(short segmentType, short segmentSeqNo) {
-        if (segmentType < 0 || segmentType > 5) {
-            throw new IllegalArgumentException("Invalid type, it must between 0 and 4");
+    /*
+    target[targetOffset, +length) ^= source[sourceOffset, +length), with
+    absolute gets and puts, 8 bytes at a time, the positions stay as they are
+     */
+    public static void xor(ByteBuffer target, int targetOffset, ByteBuffer source, int sourceOffset, int length) {
+        int i = 0;
+        for (; i + 8 <= length; i += 8) {
+            target.putLong(targetOffset + i, target.getLong(targetOffset + i) ^ source.getLong(sourceOffset + i));
         }
-        if (segmentSeqNo < 0 || segmentSeqNo > Math.pow(2, 16) - 1) {
-            throw new IllegalArgumentException("Invalid sequence number, it must between 0 and 2^16-1");
+        for (; i < length; i++) {
+            target.put(targetOffset + i, (byte) (target.get(targetOffset + i) ^ source.get(sourceOffset + i)));
         }
-        ByteBuffer buffer;
-
-        byte[] typeArr = new byte[2];
-        buffer = ByteBuffer.wrap(typeArr);
-        buffer.putShort(segmentType);
-
-        byte[] seqNoArr = new byte[2];
-        buffer = ByteBuffer.wrap(seqNoArr);
-        buffer.putShort(segmentSeqNo);
-
-        byte[] headerArr = new byte[4];
-        System.arraycopy(typeArr, 0, headerArr, 0, typeArr.length);
-        System.arraycopy(seqNoArr, 0, headerArr, typeArr.length, seqNoArr.length);
-
-        return headerArr;
     }
 
     /*
-    static byte[] createSTPSegment(byte[] headerArr, String data) {
-        byte[] dataArr = data.getBytes();
-        return createSTPSegment(headerArr, dataArr);
-    }
+    a copy of the payload, the segment of the given length, header
+    included, may sit in a larger receive buffer. Only options and the log
+    need a copy, the data path reads the payload in place
      */
-
-    public static byte[] createSTPSegment(short segmentType, short segmentSeqNo, byte[] data) {
-        byte[] headerArr = createHeaderArr(segmentType, segmentSeqNo);
-        byte[] STPSegmentArr = new byte[headerArr.length + data.length];
-        System.arraycopy(headerArr, 0, STPSegmentArr, 0, headerArr.length);
-        System.arraycopy(data, 0, STPSegmentArr, headerArr.length, data.length);
-        return STPSegmentArr;
-    }
-
-    public static byte[] getData(byte[] STPSegment) {
-        byte[] data = new byte[STPSegment.length - 4];
-        System.arraycopy(STPSegment, 4, data, 0, data.length);
+    public static byte[] getData(ByteBuffer STPSegment, int length) {
+        byte[] data = new byte[length - HEADER_LENGTH];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = STPSegment.get(HEADER_LENGTH + i);
+        }
         return data;
     }
 
@@ -0,0 +1,100 @@
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FecDecoderTest {
+    private static final int MSS = 100;
+    private static final int GROUP_SIZE = 4;
+    // the group crosses Integer.MAX_VALUE, and its last segment is short
+    private static final int FIRST_SEQ_NO = Integer.MAX_VALUE - 150;
+    private static final long FILE_SIZE = 3 * MSS + 40;
+
+    private final ByteBuffer[] datagrams = new ByteBuffer[GROUP_SIZE];
+    private final int[] seqNos = new int[GROUP_SIZE];
+    private final int[] groupEnds = new int[GROUP_SIZE];
+    private ByteBuffer parity;
+
+    // what the sender sends, the DATA segments of one group and its parity
+    private void encode() {
+        FecEncoder encoder = new FecEncoder(1, MSS, FIRST_SEQ_NO, FILE_SIZE, GROUP_SIZE, 16);
+        Random random = new Random(42);
+        for (int i = 0; i < GROUP_SIZE; i++) {
+            int dataLen = (int) Math.min(MSS, FILE_SIZE - (long) i * MSS);
+            byte[] data = new byte[dataLen];
+            random.nextBytes(data);
+            seqNos[i] = FIRST_SEQ_NO + i * MSS;
+            groupEnds[i] = encoder.startSegment(i);
+            ByteBuffer datagram = ByteBuffer.allocate(Utils.HEADER_LENGTH + MSS);
+            datagram.position(Utils.HEADER_LENGTH);
+            datagram.put(data);
+            datagrams[i] = datagram;
+            ByteBuffer fec = encoder.addSegment(i, datagram, dataLen);
+            if (i < GROUP_SIZE - 1) {
+                assertNull(fec);
+            } else {
+                assertNotNull(fec);
+                parity = ByteBuffer.allocate(fec.remaining());
+                parity.put(fec).flip();
+            }
+        }
+        encoder.close();
+    }
+
+    private static ByteBuffer payloadOf(ByteBuffer datagram) {
+        ByteBuffer payload = datagram.duplicate();
+        payload.flip().position(Utils.HEADER_LENGTH);
+        return payload;
+    }
+
+    @Test
+    void rebuildsAnySingleLostSegment() {
+        encode();
+        STPHeader parityHeader = new STPHeader().wrap(parity);
+        assertEquals(FIRST_SEQ_NO, parityHeader.getSeqNo());
+        assertEquals((int) (FIRST_SEQ_NO + FILE_SIZE), parityHeader.getAckNo());
+
+        for (int lost = 0; lost < GROUP_SIZE; lost++) {
+            FecDecoder decoder = new FecDecoder(MSS);
+            for (int i = 0; i < GROUP_SIZE; i++) {
+                assertEquals(groupEnds[i], parityHeader.getAckNo());
+                if (i != lost) {
+                    assertFalse(decoder.onData(seqNos[i], groupEnds[i], payloadOf(datagrams[i])));
+                }
+            }
+            ByteBuffer parityPayload = parity.duplicate().position(Utils.HEADER_LENGTH);
+            assertTrue(decoder.onParity(parityHeader.getSeqNo(), parityHeader.getAckNo(), parityPayload,
+                    FIRST_SEQ_NO));
+
+            ByteBuffer rebuilt = ByteBuffer.allocate(MSS);
+            assertEquals(seqNos[lost], decoder.rebuild(rebuilt));
+            rebuilt.flip();
+            assertEquals(payloadOf(datagrams[lost]), rebuilt);
+            assertFalse(decoder.hasRecoverable());
+            decoder.close();
+        }
+    }
+
+    @Test
+    void twoLostSegmentsAreNotRebuilt() {
+        encode();
+        STPHeader parityHeader = new STPHeader().wrap(parity);
+        FecDecoder decoder = new FecDecoder(MSS);
+        assertFalse(decoder.onData(seqNos[0], groupEnds[0], payloadOf(datagrams[0])));
+        assertFalse(decoder.onData(seqNos[3], groupEnds[3], payloadOf(datagrams[3])));
+        ByteBuffer parityPayload = parity.duplicate().position(Utils.HEADER_LENGTH);
+        assertFalse(decoder.onParity(parityHeader.getSeqNo(), parityHeader.getAckNo(), parityPayload,
+                FIRST_SEQ_NO));
+        assertFalse(decoder.hasRecoverable());
+
+        // the cumulative ACK has passed the group, it is dropped
+        decoder.release(parityHeader.getAckNo());
+        decoder.close();
+    }
+}
@@ -0,0 +1,122 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class ReceiveCheckpointTest {
+    private static final int BLOCK = ReceiveCheckpoint.HASH_BLOCK_SIZE;
+    private static final long SOURCE_SIZE = 3L * BLOCK + 1234;
+    private static final long SOURCE_ID = 7;
+    private static final int SEGMENT_SIZE = 1000;
+
+    @TempDir
+    Path dir;
+    private File file;
+    private FileChannel channel;
+
+    @BeforeEach
+    void writeFile() throws IOException {
+        file = dir.resolve("FileReceived.txt").toFile();
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        byte[] content = new byte[(int) SOURCE_SIZE];
+        new Random(42).nextBytes(content);
+        ByteBuffer buffer = ByteBuffer.wrap(content);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, buffer.position());
+        }
+    }
+
+    @AfterEach
+    void closeFile() throws IOException {
+        channel.close();
+    }
+
+    // a checkpoint with [0, inOrderOffset) written in order
+    private ReceiveCheckpoint save(long inOrderOffset) throws IOException {
+        ReceiveCheckpoint checkpoint = new ReceiveCheckpoint(file, channel, SOURCE_SIZE, SOURCE_ID);
+        checkpoint.startAttempt(0, SEGMENT_SIZE);
+        checkpoint.save(inOrderOffset);
+        return checkpoint;
+    }
+
+    @Test
+    void theLoadedPrefixEndsAtABlockBoundary() throws IOException {
+        ReceiveCheckpoint saved = save(2L * BLOCK + 500);
+        assertEquals(2L * BLOCK, saved.getCommittedOffset());
+        assertEquals(ReceiveCheckpoint.prefixHash(channel, 0, 2L * BLOCK), saved.getPrefixHash());
+
+        ReceiveCheckpoint loaded = ReceiveCheckpoint.load(file, channel, SOURCE_SIZE, SOURCE_ID);
+        assertNotNull(loaded);
+        assertEquals(saved.getCommittedOffset(), loaded.getCommittedOffset());
+        assertEquals(saved.getPrefixHash(), loaded.getPrefixHash());
+    }
+
+    @Test
+    void segmentsWrittenOutOfOrderExtendThePrefix() throws IOException {
+        ReceiveCheckpoint checkpoint = new ReceiveCheckpoint(file, channel, SOURCE_SIZE, SOURCE_ID);
+        checkpoint.startAttempt(0, SEGMENT_SIZE);
+        long inOrderOffset = 500L * SEGMENT_SIZE;
+        // the segments from the in-order offset up to past the end of the first block
+        for (long offset = inOrderOffset; offset < BLOCK + SEGMENT_SIZE; offset += SEGMENT_SIZE) {
+            checkpoint.markSegment(offset);
+        }
+        checkpoint.save(inOrderOffset);
+        assertEquals(BLOCK, checkpoint.getCommittedOffset());
+
+        ReceiveCheckpoint loaded = ReceiveCheckpoint.load(file, channel, SOURCE_SIZE, SOURCE_ID);
+        assertNotNull(loaded);
+        assertEquals(BLOCK, loaded.getCommittedOffset());
+        assertEquals(ReceiveCheckpoint.prefixHash(channel, 0, BLOCK), loaded.getPrefixHash());
+    }
+
+    @Test
+    void aCheckpointOfAnotherSourceIsRejected() throws IOException {
+        save(2L * BLOCK);
+        assertNull(ReceiveCheckpoint.load(file, channel, SOURCE_SIZE + 1, SOURCE_ID));
+        assertNull(ReceiveCheckpoint.load(file, channel, SOURCE_SIZE, SOURCE_ID + 1));
+    }
+
+    @Test
+    void aCheckpointBeyondTheFileIsRejected() throws IOException {
+        save(2L * BLOCK);
+        // the file lost what the checkpoint claims
+        channel.truncate(BLOCK);
+        assertNull(ReceiveCheckpoint.load(file, channel, SOURCE_SIZE, SOURCE_ID));
+    }
+
+    @Test
+    void aDamagedCheckpointIsRejected() throws IOException {
+        save(2L * BLOCK);
+        Path path = ReceiveCheckpoint.pathOf(file);
+        byte[] bytes = Files.readAllBytes(path);
+        Files.write(path, Arrays.copyOf(bytes, bytes.length - 3));
+        assertNull(ReceiveCheckpoint.load(file, channel, SOURCE_SIZE, SOURCE_ID));
+
+        bytes[0] ^= 1;
+        Files.write(path, bytes);
+        assertNull(ReceiveCheckpoint.load(file, channel, SOURCE_SIZE, SOURCE_ID));
+    }
+
+    @Test
+    void aDeletedCheckpointIsNotLoaded() throws IOException {
+        save(2L * BLOCK).delete();
+        assertFalse(Files.exists(ReceiveCheckpoint.pathOf(file)));
+        assertNull(ReceiveCheckpoint.load(file, channel, SOURCE_SIZE, SOURCE_ID));
+    }
+}
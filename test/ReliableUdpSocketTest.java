@@ -0,0 +1,90 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ReliableUdpSocketTest {
+    private static final Map<String, String> OPTIONS = Map.of("log", "off", "stats", "0");
+    // more than the pipe and the window of the receiver together
+    private static final int CONTENT_SIZE = 4_000_000;
+    private static final int WINDOW_SIZE = 1 << 20;
+
+    private ReliableUdpServerSocket server;
+    private byte[] content;
+
+    @BeforeEach
+    void open() throws IOException {
+        server = new ReliableUdpServerSocket(new InetSocketAddress("127.0.0.1", 0), OPTIONS);
+        content = new byte[CONTENT_SIZE];
+        new Random(42).nextBytes(content);
+    }
+
+    @AfterEach
+    void close() throws IOException {
+        server.close();
+    }
+
+    // writes the content and closes the socket, the future holds the sending socket
+    private CompletableFuture<ReliableUdpSocket> send() {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                ReliableUdpSocket socket = new ReliableUdpSocket(new InetSocketAddress(0),
+                        server.getLocalAddress(), WINDOW_SIZE, 100, OPTIONS);
+                OutputStream out = socket.getOutputStream();
+                out.write(content);
+                socket.close();
+                return socket;
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+    }
+
+    @Test
+    void aPausedReaderClosesTheWindowWithoutLoss() throws Exception {
+        CompletableFuture<ReliableUdpSocket> sent = send();
+        ReliableUdpSocket accepted = server.accept();
+        InputStream in = accepted.getInputStream();
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        received.write(in.readNBytes(100_000));
+
+        // longer than many retransmission timeouts, the sender only probes the closed window
+        Thread.sleep(3000);
+        received.write(in.readAllBytes());
+        accepted.close();
+
+        assertArrayEquals(content, received.toByteArray());
+        SenderMetricsMBean metrics = sent.get(10, TimeUnit.SECONDS).getMetrics();
+        assertEquals(0, metrics.getFastRetransmits());
+        assertEquals(0, metrics.getTimeouts());
+    }
+
+    @Test
+    void closingTheAcceptedSocketResetsTheSender() throws Exception {
+        CompletableFuture<ReliableUdpSocket> sent = send();
+        ReliableUdpSocket accepted = server.accept();
+        accepted.getInputStream().readNBytes(100_000);
+
+        long start = System.nanoTime();
+        accepted.close();
+        Exception e = assertThrows(Exception.class, () -> sent.get(10, TimeUnit.SECONDS));
+        assertTrue(e.getCause() instanceof RuntimeException
+                && e.getCause().getCause() instanceof IOException, e.toString());
+        long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+        assertTrue(elapsedMillis < 5000, "the sender stopped after " + elapsedMillis + " ms");
+    }
+}
@@ -0,0 +1,98 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ReorderBufferTest {
+    private static final int MSS = 100;
+    // the sequence numbers of the window cross Integer.MAX_VALUE
+    private static final int FIRST_SEQ_NO = Integer.MAX_VALUE - 250;
+
+    private ReorderBuffer reorderBuffer;
+
+    @AfterEach
+    void close() {
+        reorderBuffer.close();
+    }
+
+    private void put(int seqNo, int length) {
+        int index = reorderBuffer.indexOf(seqNo, length);
+        assertEquals((seqNo - reorderBuffer.getNextSeqNo()) / MSS, index);
+        reorderBuffer.put(index, ByteBuffer.allocate(length), length, false);
+    }
+
+    private void release(int numOfSegments) {
+        for (int i = 0; i < numOfSegments; i++) {
+            reorderBuffer.releaseHead();
+        }
+    }
+
+    @Test
+    void sackBlocksAcrossTheWrap() {
+        reorderBuffer = new ReorderBuffer(FIRST_SEQ_NO, MSS, 10 * MSS);
+        put(FIRST_SEQ_NO + MSS, MSS);
+        put(FIRST_SEQ_NO + 2 * MSS, MSS);
+        put(FIRST_SEQ_NO + 4 * MSS, MSS);
+        // the last segment of the file is short
+        put(FIRST_SEQ_NO + 5 * MSS, 40);
+        assertEquals(0, reorderBuffer.countInOrder());
+
+        int[] blocks = new int[8];
+        // the block of the segment that has just arrived comes first
+        int numOfBlocks = reorderBuffer.getSackBlocks(blocks, 4, FIRST_SEQ_NO + 5 * MSS);
+        assertEquals(2, numOfBlocks);
+        assertArrayEquals(new int[]{FIRST_SEQ_NO + 4 * MSS, FIRST_SEQ_NO + 5 * MSS + 40,
+                FIRST_SEQ_NO + MSS, FIRST_SEQ_NO + 3 * MSS}, Arrays.copyOf(blocks, 4));
+
+        put(FIRST_SEQ_NO, MSS);
+        assertEquals(3, reorderBuffer.countInOrder());
+        release(3);
+        // the cumulative ACK has wrapped to a negative int
+        assertEquals(FIRST_SEQ_NO + 3 * MSS, reorderBuffer.getNextSeqNo());
+        assertEquals(3 * MSS, reorderBuffer.getNextFileOffset());
+        assertEquals(-1, reorderBuffer.indexOf(FIRST_SEQ_NO + 2 * MSS, MSS));
+
+        numOfBlocks = reorderBuffer.getSackBlocks(blocks, 4, FIRST_SEQ_NO + 4 * MSS);
+        assertEquals(1, numOfBlocks);
+        assertEquals(FIRST_SEQ_NO + 4 * MSS, blocks[0]);
+        assertEquals(FIRST_SEQ_NO + 5 * MSS + 40, blocks[1]);
+    }
+
+    @Test
+    void countInOrderRunsOverTheEndOfTheSlots() {
+        reorderBuffer = new ReorderBuffer(FIRST_SEQ_NO, MSS, 10 * MSS);
+        for (int i = 0; i < 8; i++) {
+            put(FIRST_SEQ_NO + i * MSS, MSS);
+        }
+        release(8);
+        // head is slot 8, the run goes on in slots 0 to 2
+        int nextSeqNo = reorderBuffer.getNextSeqNo();
+        for (int i = 0; i < 5; i++) {
+            put(nextSeqNo + i * MSS, MSS);
+        }
+        put(nextSeqNo + 6 * MSS, MSS);
+        assertEquals(5, reorderBuffer.countInOrder());
+    }
+
+    @Test
+    void countInOrderRunsOverAWordOfTheBitmap() {
+        reorderBuffer = new ReorderBuffer(FIRST_SEQ_NO, MSS, 100 * MSS);
+        for (int i = 0; i < 70; i++) {
+            put(FIRST_SEQ_NO + i * MSS, MSS);
+        }
+        assertEquals(70, reorderBuffer.countInOrder());
+
+        // a full window of the next 100 segments, after head has moved to slot 70
+        release(70);
+        int nextSeqNo = reorderBuffer.getNextSeqNo();
+        for (int i = 0; i < 100; i++) {
+            put(nextSeqNo + i * MSS, MSS);
+        }
+        assertEquals(100, reorderBuffer.countInOrder());
+        assertEquals(-1, reorderBuffer.indexOf(nextSeqNo + 100 * MSS, MSS));
+    }
+}
@@ -0,0 +1,134 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SenderTest {
+    private static final int MSS = 1000;
+    private static final int MIN_RTO_MILLIS = 3000;
+
+    private static int freePort() throws IOException {
+        try (DatagramSocket socket = new DatagramSocket(0, InetAddress.getLoopbackAddress())) {
+            return socket.getLocalPort();
+        }
+    }
+
+    /*
+    relays between the sender and the receiver, and drops the first copy
+    of the DATA segments whose index is in dropped
+     */
+    private static final class DroppingRelay implements Runnable {
+        private final DatagramChannel channel;
+        private final InetSocketAddress receiverAddress;
+        private final List<Integer> dropped;
+        private final List<Integer> seenSeqNos = new ArrayList<>();
+        private SocketAddress senderAddress;
+
+        DroppingRelay(int receiverPort, List<Integer> dropped) throws IOException {
+            this.channel = DatagramChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            this.receiverAddress = new InetSocketAddress(InetAddress.getLoopbackAddress(), receiverPort);
+            this.dropped = dropped;
+        }
+
+        int getPort() throws IOException {
+            return ((InetSocketAddress) channel.getLocalAddress()).getPort();
+        }
+
+        @Override
+        public void run() {
+            ByteBuffer buffer = ByteBuffer.allocate(Utils.MAX_DATAGRAM_SIZE);
+            STPHeader header = new STPHeader().wrap(buffer);
+            try {
+                while (true) {
+                    buffer.clear();
+                    SocketAddress source = channel.receive(buffer);
+                    buffer.flip();
+                    if (source.equals(receiverAddress)) {
+                        channel.send(buffer, senderAddress);
+                        continue;
+                    }
+                    senderAddress = source;
+                    if (header.getType() == Utils.DATA && !seenSeqNos.contains(header.getSeqNo())) {
+                        seenSeqNos.add(header.getSeqNo());
+                        if (dropped.contains(seenSeqNos.size() - 1)) {
+                            continue;
+                        }
+                    }
+                    channel.send(buffer, receiverAddress);
+                }
+            } catch (ClosedChannelException e) {
+                // the test is over
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    @Test
+    void aPartialAckResendsTheNextHoleBeforeItsTimer() throws Exception {
+        // one initial window of 10 segments, with two holes at its end
+        byte[] content = new byte[10 * MSS];
+        new Random(42).nextBytes(content);
+        Path input = Path.of(System.getProperty("user.dir"), "partialAck.in");
+        Path output = Path.of(System.getProperty("user.dir"), "partialAck.out");
+        Files.write(input, content);
+        Files.deleteIfExists(output);
+
+        int receiverPort = freePort();
+        int senderPort = freePort();
+        // every segment is ACKed at once, a delayed ACK would swallow a duplicate
+        Receiver receiver = new Receiver(receiverPort, senderPort, output.getFileName().toString(), 0, 0,
+                Map.of("log", "off", "linger", "0", "ackEvery", "1"));
+        Thread receiverThread = new Thread(() -> {
+            try {
+                receiver.run();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        receiverThread.start();
+        DroppingRelay relay = new DroppingRelay(receiverPort, List.of(5, 7));
+        Thread relayThread = new Thread(relay);
+        relayThread.start();
+
+        /*
+        segments 6, 8 and 9 give the 3 duplicate ACKs that resend segment 5,
+        its ACK is a partial ACK up to segment 7. No more segments are left
+        to give duplicate ACKs, so only the partial ACK resends segment 7
+        before its retransmission timer
+         */
+        long start = System.nanoTime();
+        Sender sender = new Sender(senderPort, relay.getPort(), input.getFileName().toString(), 100 * MSS,
+                MIN_RTO_MILLIS, Map.of("mss", String.valueOf(MSS), "sack", "false",
+                "minRto", String.valueOf(MIN_RTO_MILLIS), "log", "off", "stats", "0"));
+        sender.run();
+        long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+
+        receiverThread.join(10_000);
+        relay.close();
+        relayThread.join();
+        assertArrayEquals(content, Files.readAllBytes(output));
+        assertTrue(elapsedMillis < MIN_RTO_MILLIS, "the transfer took " + elapsedMillis + " ms");
+        Files.delete(input);
+        Files.delete(output);
+    }
+}
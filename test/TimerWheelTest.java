@@ -0,0 +1,80 @@
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TimerWheelTest {
+    // 8 buckets of 10 ms, one round of the wheel is 80 ms
+    private final TimerWheel wheel = new TimerWheel(10, 8, 0);
+    private final List<Long> fired = new ArrayList<>();
+
+    private void expire(long nowMillis) throws IOException {
+        wheel.expire(nowMillis, (id, deadlineMillis) -> fired.add(id));
+    }
+
+    @Test
+    void aTimerOfALaterRoundWaitsInItsBucket() throws IOException {
+        wheel.schedule(1, 25);
+        // the same bucket one and twelve rounds later
+        wheel.schedule(2, 25 + 80);
+        wheel.schedule(3, 25 + 12 * 80);
+        assertEquals(3, wheel.size());
+
+        expire(29);
+        assertTrue(fired.isEmpty());
+        expire(30);
+        assertEquals(List.of(1L), fired);
+
+        // the wheel passes the bucket again, the second timer is not due yet
+        expire(104);
+        assertEquals(List.of(1L), fired);
+        expire(110);
+        assertEquals(List.of(1L, 2L), fired);
+
+        expire(25 + 12 * 80 - 1);
+        assertEquals(List.of(1L, 2L), fired);
+        expire(25 + 12 * 80 + 5);
+        assertEquals(List.of(1L, 2L, 3L), fired);
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    void aLongPauseFiresEveryDueTimerOnce() throws IOException {
+        for (long id = 0; id < 20; id++) {
+            wheel.schedule(id, 10 + id * 7);
+        }
+        // more than a round has passed, every bucket is visited once
+        expire(1000);
+        assertEquals(20, fired.size());
+        assertEquals(20, fired.stream().distinct().count());
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    void aDeadlineInThePastFiresOnTheNextTick() throws IOException {
+        expire(1000);
+        wheel.schedule(1, 500);
+        expire(1009);
+        assertTrue(fired.isEmpty());
+        expire(1010);
+        assertEquals(List.of(1L), fired);
+    }
+
+    @Test
+    void aTimerScheduledByAHandlerIsNotFiredInTheSamePass() throws IOException {
+        wheel.schedule(1, 10);
+        wheel.expire(10, (id, deadlineMillis) -> {
+            fired.add(id);
+            // already due, like a retransmission rescheduled with a tiny rto
+            wheel.schedule(id + 1, deadlineMillis);
+        });
+        assertEquals(List.of(1L), fired);
+        assertEquals(1, wheel.size());
+        expire(20);
+        assertEquals(List.of(1L, 2L), fired);
+    }
+}
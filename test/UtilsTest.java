@@ -0,0 +1,46 @@
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class UtilsTest {
+    @Test
+    void seqOrderIsKeptAcrossTheSignBit() {
+        // Integer.MAX_VALUE + 1 wraps to Integer.MIN_VALUE, 2^31 in the unsigned sequence space
+        int before = Integer.MAX_VALUE - 10;
+        int after = Integer.MIN_VALUE + 10;
+        assertTrue(Utils.seqLessThan(before, after));
+        assertTrue(Utils.seqLessOrEqual(before, after));
+        assertTrue(Utils.seqGreaterThan(after, before));
+        assertTrue(Utils.seqGreaterOrEqual(after, before));
+        assertFalse(Utils.seqLessThan(after, before));
+        assertFalse(Utils.seqGreaterThan(before, after));
+    }
+
+    @Test
+    void seqOrderIsKeptAcrossZero() {
+        int before = 0xFFFFFFF9;
+        assertTrue(Utils.seqLessThan(before, 3));
+        assertTrue(Utils.seqGreaterThan(3, before));
+        assertFalse(Utils.seqLessThan(3, before));
+    }
+
+    @Test
+    void equalSeqNosAreNeitherBeforeNorAfter() {
+        int seqNo = Integer.MIN_VALUE;
+        assertFalse(Utils.seqLessThan(seqNo, seqNo));
+        assertFalse(Utils.seqGreaterThan(seqNo, seqNo));
+        assertTrue(Utils.seqLessOrEqual(seqNo, seqNo));
+        assertTrue(Utils.seqGreaterOrEqual(seqNo, seqNo));
+    }
+
+    @Test
+    void aSeqNoLessThanHalfTheSpaceAheadIsAfter() {
+        int seqNo = Integer.MAX_VALUE - 5;
+        int farthest = seqNo + Integer.MAX_VALUE;
+        assertTrue(Utils.seqLessThan(seqNo, farthest));
+        assertTrue(Utils.seqGreaterThan(farthest, seqNo));
+        // one more byte and it is half the space away in the other direction
+        assertTrue(Utils.seqGreaterThan(seqNo, farthest + 2));
+    }
+}